@@ -5,6 +5,7 @@ import android.os.Bundle;
 import android.os.Handler;
 
 import com.ldeng7.learningwebrtc.databinding.ActivityChatBinding;
+import com.ldeng7.learningwebrtc.webrtcclient.LeaLatestValue;
 import com.ldeng7.learningwebrtc.webrtcclient.LeaWebRTCClient;
 
 import org.webrtc.EglBase;
@@ -15,26 +16,31 @@ public class ChatActivity extends Activity {
     private ActivityChatBinding binding;
     private Handler mainHandler;
     private LeaWebRTCClient webRTCClient;
+    private boolean videoInitialized;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         this.binding = ActivityChatBinding.inflate(this.getLayoutInflater());
         this.mainHandler = new Handler();
+        // Bursts of messages update the text view at most once per frame.
+        final LeaLatestValue<String> dataChannelText = new LeaLatestValue<>(s ->
+            this.binding.dataChannelText.setText(s));
         this.setContentView(this.binding.getRoot());
 
         this.binding.dataChannelSendButton.setOnClickListener(view ->
             this.webRTCClient.getDataChannel().send(
                 this.binding.dataChannelEditText.getText().toString()));
 
-        this.webRTCClient = new LeaWebRTCClient(this.getApplicationContext()) {
+        final LeaWebRTCClient.Conf conf = (LeaWebRTCClient.Conf) (
+            this.getIntent().getSerializableExtra(INTENT_KEY_CONF));
+        this.webRTCClient = new LeaWebRTCClient(this.getApplicationContext(), conf.noVideo) {
             @Override public void onConnected() {
                 ChatActivity.this.onWebRTCClientConnected();
             }
 
             @Override public void onDataChannelMsg(String s) {
-                ChatActivity.this.mainHandler.post(() ->
-                    ChatActivity.this.binding.dataChannelText.setText(s));
+                dataChannelText.post(s);
             }
 
             @Override public void onStop() {
@@ -42,13 +48,14 @@ public class ChatActivity extends Activity {
                 ChatActivity.this.mainHandler.post(ChatActivity.this::finish);
             }
         };
-        final EglBase.Context eglBaseContext = this.webRTCClient.getEglBase().getEglBaseContext();
-        this.binding.localVideo.init(eglBaseContext, null);
-        this.binding.remoteVideo.init(eglBaseContext, null);
+        this.videoInitialized = !conf.noVideo;
+        if (this.videoInitialized) {
+            final EglBase.Context eglBaseContext = this.webRTCClient.getEglBase().getEglBaseContext();
+            this.binding.localVideo.init(eglBaseContext, null);
+            this.binding.remoteVideo.init(eglBaseContext, null);
+        }
 
         new Thread(() -> {
-            LeaWebRTCClient.Conf conf = (LeaWebRTCClient.Conf) (
-                this.getIntent().getSerializableExtra(INTENT_KEY_CONF));
             if (!this.webRTCClient.start(conf, this.binding.localVideo, this.binding.remoteVideo)) {
                 this.mainHandler.post(this::finish);
             }
@@ -67,6 +74,10 @@ public class ChatActivity extends Activity {
             this.webRTCClient.stop();
             this.webRTCClient = null;
         }
+        if (this.videoInitialized) {
+            this.binding.localVideo.release();
+            this.binding.remoteVideo.release();
+        }
         super.onDestroy();
     }
 }
@@ -17,6 +17,17 @@ public class PrepareActivity extends Activity {
         this.setContentView(this.binding.getRoot());
 
         this.binding.startButton.setOnClickListener(view -> this.onStartButtonClick());
+        // ChatActivity creates an audio-only client for noVideo calls, so that is the variant
+        // to have ready.
+        this.binding.noVideoCheck.setOnCheckedChangeListener((view, checked) ->
+            LeaWebRTCClient.prewarm(this, checked));
+        LeaWebRTCClient.prewarm(this, this.binding.noVideoCheck.isChecked());
+    }
+
+    @Override
+    protected void onDestroy() {
+        LeaWebRTCClient.releasePrewarm();
+        super.onDestroy();
     }
 
     private void onStartButtonClick() {
@@ -0,0 +1,111 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// AAC-LC from the microphone samples the audio device module records. The record thread
+// only copies each 10 ms buffer into a pooled one; the format is taken from the first.
+class LeaAudioRecordEncoder extends LeaRecordEncoder implements JavaAudioDeviceModule.SamplesReadyCallback {
+    private static final String MIME = MediaFormat.MIMETYPE_AUDIO_AAC;
+    private static final long INPUT_TIMEOUT_US = 10_000;
+
+    private final LeaBufferPool pool = LeaBufferPool.shared;
+    private final int bitrate;
+    // Touched on the encoder thread only.
+    private int sampleRate;
+    private int channels;
+    private long lastPtsUs = -1;
+
+    LeaAudioRecordEncoder(LeaMp4Writer writer, int bitrate, int maxPending) {
+        super("lea-rec-audio", writer, false, maxPending);
+        this.bitrate = bitrate;
+    }
+
+    @Override
+    public void onWebRtcAudioRecordSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
+        if (this.isClosed() || samples.getAudioFormat() != AudioFormat.ENCODING_PCM_16BIT) {
+            return;
+        }
+        final byte[] data = samples.getData();
+        final int rate = samples.getSampleRate();
+        final int ch = samples.getChannelCount();
+        // Stamped with when the buffer started, in the same clock as video frames.
+        final long ptsUs = System.nanoTime() / 1000 - (long) data.length / (2 * ch) * 1_000_000 / rate;
+        final ByteBuffer b = this.pool.acquire(data.length);
+        b.put(data);
+        b.flip();
+        if (!this.offer(() -> {
+            try {
+                this.encode(b, rate, ch, ptsUs);
+            } finally {
+                this.pool.release(b);
+            }
+        })) {
+            this.pool.release(b);
+        }
+    }
+
+    private void encode(ByteBuffer pcm, int rate, int ch, long ptsUs) {
+        if (null == this.codec && !this.configure(rate, ch)) {
+            this.fail();
+            return;
+        }
+        if (rate != this.sampleRate || ch != this.channels) {
+            return;
+        }
+        long pts = Math.max(ptsUs, this.lastPtsUs + 1);
+        while (pcm.hasRemaining()) {
+            final int i = this.codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (i < 0) {
+                break;
+            }
+            final ByteBuffer in = this.codec.getInputBuffer(i);
+            final int n = Math.min(pcm.remaining(), in.remaining());
+            final int limit = pcm.limit();
+            pcm.limit(pcm.position() + n);
+            in.put(pcm);
+            pcm.limit(limit);
+            this.codec.queueInputBuffer(i, 0, n, pts, 0);
+            this.lastPtsUs = pts;
+            pts += (long) n / (2 * ch) * 1_000_000 / rate;
+        }
+        this.drain(false);
+    }
+
+    private boolean configure(int rate, int ch) {
+        this.sampleRate = rate;
+        this.channels = ch;
+        final MediaFormat f = MediaFormat.createAudioFormat(MIME, rate, ch);
+        f.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        f.setInteger(MediaFormat.KEY_BIT_RATE, this.bitrate);
+        try {
+            this.codec = MediaCodec.createEncoderByType(MIME);
+            this.codec.configure(f, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            this.codec.start();
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "audio codec: " + e.toString());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    void signalEndOfStream() {
+        final int i = this.codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (i >= 0) {
+            this.codec.queueInputBuffer(i, 0, 0, this.lastPtsUs + 1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    @Override
+    void releaseResources() {
+    }
+}
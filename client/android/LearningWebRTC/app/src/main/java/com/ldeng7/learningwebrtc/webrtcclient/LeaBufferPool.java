@@ -0,0 +1,87 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Direct buffers in power-of-two size classes from 64 B to 64 KB. Larger requests are
+// served with a fresh buffer and not kept on release.
+public class LeaBufferPool {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 16;
+    static final int MAX_PER_CLASS = 32;
+    static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+    static final LeaBufferPool shared = new LeaBufferPool();
+
+    private static class SizeClass {
+        final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+
+    LeaBufferPool() {
+        for (int i = 0; i < this.classes.length; i++) {
+            this.classes[i] = new SizeClass();
+        }
+    }
+
+    private static int shiftFor(int size) {
+        return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+    }
+
+    // The returned buffer has position 0 and limit == size.
+    public ByteBuffer acquire(int size) {
+        this.acquires.incrementAndGet();
+        final int shift = shiftFor(size);
+        if (shift > MAX_SHIFT) {
+            this.allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+        final SizeClass c = this.classes[shift - MIN_SHIFT];
+        ByteBuffer b = c.free.poll();
+        if (null != b) {
+            c.size.decrementAndGet();
+        } else {
+            this.allocations.incrementAndGet();
+            b = ByteBuffer.allocateDirect(1 << shift);
+        }
+        b.clear();
+        b.limit(size);
+        return b;
+    }
+
+    public void release(ByteBuffer b) {
+        if (null == b || !b.isDirect()) {
+            return;
+        }
+        final int cap = b.capacity();
+        if (Integer.bitCount(cap) != 1) {
+            return;
+        }
+        final int shift = Integer.numberOfTrailingZeros(cap);
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        final SizeClass c = this.classes[shift - MIN_SHIFT];
+        if (c.size.incrementAndGet() > MAX_PER_CLASS) {
+            c.size.decrementAndGet();
+            return;
+        }
+        c.free.offer(b);
+    }
+
+    // Every acquire(); with getAllocationCount() it gives the pool's hit rate.
+    public long getAcquireCount() {
+        return this.acquires.get();
+    }
+
+    // Buffers created because no pooled one was free; a steady value means no churn.
+    public long getAllocationCount() {
+        return this.allocations.get();
+    }
+}
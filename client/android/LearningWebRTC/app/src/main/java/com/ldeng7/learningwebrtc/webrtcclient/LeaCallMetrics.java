@@ -0,0 +1,316 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.google.gson.stream.JsonWriter;
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
+
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+// Call quality over time. Every stats report is reduced to one row of per-interval values
+// (cumulative counters become deltas) in fixed primitive rings, so sampling allocates
+// nothing of its own. Every exportEvery samples a compact JSON summary of the rows since
+// the last export goes to the sink.
+public class LeaCallMetrics implements LeaStatsPoller.Listener {
+    public enum EMetric {
+        RTT_MS,
+        JITTER_MS,
+        LOSS_PERMILLE,
+        BITRATE_OUT_BPS,
+        BITRATE_IN_BPS,
+        AVAILABLE_OUT_BPS,
+        FPS_OUT,
+        FPS_IN,
+    }
+
+    public interface Sink {
+        void onSummary(String json);
+    }
+
+    private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":metrics";
+    private static final int DIR_SENT = 0;
+    private static final int DIR_RECV = 1;
+
+    private static final int C_BYTES_SENT = 0;
+    private static final int C_BYTES_RECV = 1;
+    private static final int C_PACKETS_RECV = 2;
+    private static final int C_PACKETS_LOST = 3;
+    private static final int C_FRAMES_ENCODED = 4;
+    private static final int C_FRAMES_DECODED = 5;
+    private static final int COUNTERS = 6;
+
+    public static final int DEFAULT_CAPACITY = 300;
+    public static final int DEFAULT_EXPORT_EVERY = 10;
+
+    private final LeaCallTimings timings;
+    private final long startNs = System.nanoTime();
+    private final int capacity;
+    private final int exportEvery;
+    private final long[] timesMs;
+    private final long[][] rings;
+    private int head;
+    private int count;
+    private int sinceExport;
+    private final long[] prevCounters = new long[COUNTERS];
+    private final long[] counters = new long[COUNTERS];
+    private long prevTimeUs = -1;
+    private long overheadCpuNs;
+    private long samplingSinceNs;
+    private Sink sink;
+    private String encoderImplementation;
+    private String decoderImplementation;
+    private LeaRtcProfile.EPreset rtcPreset;
+    private int localCandidates;
+
+    private final long[][] phaseFirstMs = new long[2][LeaWebSocketMessage.PHASE_COUNT];
+    private final int[][] phaseCount = new int[2][LeaWebSocketMessage.PHASE_COUNT];
+
+    LeaCallMetrics(final LeaCallTimings timings, int capacity, int exportEvery) {
+        this.timings = timings;
+        this.capacity = Math.max(capacity, 1);
+        this.exportEvery = Math.max(Math.min(exportEvery, this.capacity), 1);
+        this.timesMs = new long[this.capacity];
+        this.rings = new long[EMetric.values().length][this.capacity];
+    }
+
+    // Sends summaries as text messages on ch, e.g. to a peer that aggregates them.
+    public static Sink dataChannelSink(final LeaDataChannel ch) {
+        return ch::send;
+    }
+
+    public synchronized void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    synchronized void setRtcPreset(LeaRtcProfile.EPreset preset) {
+        this.rtcPreset = preset;
+    }
+
+    synchronized void onLocalCandidate() {
+        this.localCandidates++;
+    }
+
+    public synchronized int getLocalCandidateCount() {
+        return this.localCandidates;
+    }
+
+    synchronized void onPhase(LeaWebSocketMessage.EPhase phase, boolean sent) {
+        final int dir = sent ? DIR_SENT : DIR_RECV;
+        if (0 == this.phaseCount[dir][phase.ordinal()]++) {
+            this.phaseFirstMs[dir][phase.ordinal()] = (System.nanoTime() - this.startNs) / 1000000;
+        }
+    }
+
+    public synchronized int getSampleCount() {
+        return this.count;
+    }
+
+    // The i-th most recent value of m, i < getSampleCount().
+    public synchronized long get(EMetric m, int i) {
+        return this.rings[m.ordinal()][(this.head - 1 - i + this.capacity) % this.capacity];
+    }
+
+    // The video codec implementations in use, as reported by the stats (e.g. "MediaCodec",
+    // "libvpx"), or null before the first video frame.
+    public synchronized String getEncoderImplementation() {
+        return this.encoderImplementation;
+    }
+
+    public synchronized String getDecoderImplementation() {
+        return this.decoderImplementation;
+    }
+
+    // Sampling thread CPU time as a share of wall time since sampling began, in permille.
+    public synchronized double getOverheadPermille() {
+        final long wall = System.nanoTime() - this.samplingSinceNs;
+        return 0 == this.samplingSinceNs || wall <= 0 ? 0 : this.overheadCpuNs * 1000.0 / wall;
+    }
+
+    @Override
+    public void onStatsReport(RTCStatsReport report) {
+        final long cpu0 = Debug.threadCpuTimeNanos();
+        String summary = null;
+        Sink sink;
+        synchronized (this) {
+            if (0 == this.samplingSinceNs) {
+                this.samplingSinceNs = System.nanoTime();
+            }
+            this.sample(report);
+            sink = this.sink;
+            if (++this.sinceExport >= this.exportEvery) {
+                this.sinceExport = 0;
+                if (null != sink) {
+                    summary = this.summarize(this.exportEvery);
+                }
+            }
+            this.overheadCpuNs += Debug.threadCpuTimeNanos() - cpu0;
+        }
+        if (null != summary) {
+            sink.onSummary(summary);
+        }
+    }
+
+    // Exports the rows not yet covered by a summary, e.g. right before the call ends.
+    void flush() {
+        String summary = null;
+        Sink sink;
+        synchronized (this) {
+            sink = this.sink;
+            if (null != sink && this.sinceExport > 0) {
+                summary = this.summarize(this.sinceExport);
+            }
+            this.sinceExport = 0;
+        }
+        if (null != summary) {
+            sink.onSummary(summary);
+        }
+    }
+
+    private void sample(RTCStatsReport report) {
+        final long timeUs = (long) report.getTimestampUs();
+        long rttMs = -1;
+        long jitterMs = -1;
+        long availableBps = -1;
+        for (int i = 0; i < COUNTERS; i++) {
+            this.counters[i] = 0;
+        }
+        for (RTCStats s : report.getStatsMap().values()) {
+            switch (s.getType()) {
+                case "candidate-pair":
+                    if (Boolean.TRUE.equals(s.getMembers().get("nominated"))) {
+                        rttMs = (long) (LeaStatsPoller.number(s, "currentRoundTripTime", -0.001) * 1000);
+                        availableBps = (long) LeaStatsPoller.number(s, "availableOutgoingBitrate", -1);
+                    }
+                    break;
+                case "inbound-rtp":
+                    jitterMs = Math.max(jitterMs, (long) (LeaStatsPoller.number(s, "jitter", -0.001) * 1000));
+                    this.counters[C_BYTES_RECV] += (long) LeaStatsPoller.number(s, "bytesReceived", 0);
+                    this.counters[C_PACKETS_RECV] += (long) LeaStatsPoller.number(s, "packetsReceived", 0);
+                    this.counters[C_PACKETS_LOST] += (long) LeaStatsPoller.number(s, "packetsLost", 0);
+                    if (MediaStreamTrack.VIDEO_TRACK_KIND.equals(s.getMembers().get("kind"))) {
+                        this.counters[C_FRAMES_DECODED] += (long) LeaStatsPoller.number(s, "framesDecoded", 0);
+                        final Object impl = s.getMembers().get("decoderImplementation");
+                        if (impl instanceof String) {
+                            this.decoderImplementation = (String) impl;
+                        }
+                    }
+                    break;
+                case "outbound-rtp":
+                    this.counters[C_BYTES_SENT] += (long) LeaStatsPoller.number(s, "bytesSent", 0);
+                    if (MediaStreamTrack.VIDEO_TRACK_KIND.equals(s.getMembers().get("kind"))) {
+                        this.counters[C_FRAMES_ENCODED] += (long) LeaStatsPoller.number(s, "framesEncoded", 0);
+                        final Object impl = s.getMembers().get("encoderImplementation");
+                        if (impl instanceof String) {
+                            this.encoderImplementation = (String) impl;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        final long dtUs = this.prevTimeUs < 0 ? 0 : timeUs - this.prevTimeUs;
+        this.prevTimeUs = timeUs;
+        final long[] d = this.prevCounters;
+        for (int i = 0; i < COUNTERS; i++) {
+            final long v = this.counters[i];
+            this.counters[i] = v - d[i];
+            d[i] = v;
+        }
+        if (dtUs <= 0) {
+            // The first report only seeds the counters.
+            return;
+        }
+
+        final int at = this.head;
+        final long[][] r = this.rings;
+        final long[] c = this.counters;
+        this.timesMs[at] = timeUs / 1000;
+        r[EMetric.RTT_MS.ordinal()][at] = rttMs;
+        r[EMetric.JITTER_MS.ordinal()][at] = jitterMs;
+        final long packets = c[C_PACKETS_RECV] + c[C_PACKETS_LOST];
+        r[EMetric.LOSS_PERMILLE.ordinal()][at] = packets > 0 ? c[C_PACKETS_LOST] * 1000 / packets : 0;
+        r[EMetric.BITRATE_OUT_BPS.ordinal()][at] = c[C_BYTES_SENT] * 8000000 / dtUs;
+        r[EMetric.BITRATE_IN_BPS.ordinal()][at] = c[C_BYTES_RECV] * 8000000 / dtUs;
+        r[EMetric.AVAILABLE_OUT_BPS.ordinal()][at] = availableBps;
+        r[EMetric.FPS_OUT.ordinal()][at] = c[C_FRAMES_ENCODED] * 1000000 / dtUs;
+        r[EMetric.FPS_IN.ordinal()][at] = c[C_FRAMES_DECODED] * 1000000 / dtUs;
+        this.head = (at + 1) % this.capacity;
+        this.count = Math.min(this.count + 1, this.capacity);
+    }
+
+    // {"t":ms,"n":rows,"rtt_ms":[min,avg,max],...,"setup":{...},"phases":{...},"encoder":...}; metrics
+    // with no known value in the window are left out.
+    public synchronized String summarize(int rows) {
+        final int n = Math.min(rows, this.count);
+        final StringWriter sw = new StringWriter();
+        try {
+            final JsonWriter w = new JsonWriter(sw);
+            w.beginObject();
+            w.name("t").value(n > 0 ? this.timesMs[(this.head - 1 + this.capacity) % this.capacity] : 0);
+            w.name("n").value(n);
+            for (EMetric m : EMetric.values()) {
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                long sum = 0;
+                int known = 0;
+                for (int i = 0; i < n; i++) {
+                    final long v = this.get(m, i);
+                    if (v < 0) {
+                        continue;
+                    }
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                    sum += v;
+                    known++;
+                }
+                if (0 == known) {
+                    continue;
+                }
+                w.name(m.name().toLowerCase());
+                w.beginArray().value(min).value(sum / known).value(max).endArray();
+            }
+            w.name("setup").beginObject();
+            for (LeaCallTimings.EMark mark : LeaCallTimings.EMark.values()) {
+                final long ms = this.timings.getMs(mark);
+                if (ms >= 0) {
+                    w.name(mark.name().toLowerCase()).value(ms);
+                }
+            }
+            w.endObject();
+            w.name("phases").beginObject();
+            for (LeaWebSocketMessage.EPhase p : LeaWebSocketMessage.EPhase.values()) {
+                for (int dir = DIR_SENT; dir <= DIR_RECV; dir++) {
+                    if (0 == this.phaseCount[dir][p.ordinal()]) {
+                        continue;
+                    }
+                    w.name(p.name().toLowerCase() + (dir == DIR_SENT ? "_tx" : "_rx"));
+                    w.beginArray().value(this.phaseFirstMs[dir][p.ordinal()])
+                        .value(this.phaseCount[dir][p.ordinal()]).endArray();
+                }
+            }
+            w.endObject();
+            if (null != this.rtcPreset) {
+                w.name("rtc_profile").value(this.rtcPreset.name().toLowerCase());
+            }
+            w.name("candidates").value(this.localCandidates);
+            if (null != this.encoderImplementation) {
+                w.name("encoder").value(this.encoderImplementation);
+            }
+            if (null != this.decoderImplementation) {
+                w.name("decoder").value(this.decoderImplementation);
+            }
+            w.name("overhead_permille").value(this.getOverheadPermille());
+            w.endObject();
+            w.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "summary: " + e.toString());
+        }
+        return sw.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+public class LeaCallTimings {
+    public enum EMark {
+        FACTORY_READY,
+        CAPTURER_STARTED,
+        WS_OPEN,
+        DIAL_ACK,
+        FIRST_CANDIDATE,
+        REMOTE_SDP_SET,
+        ICE_CONNECTED,
+    }
+
+    private final long startNs = System.nanoTime();
+    private final long[] marksNs = new long[EMark.values().length];
+
+    synchronized void mark(EMark m) {
+        if (0 == this.marksNs[m.ordinal()]) {
+            this.marksNs[m.ordinal()] = System.nanoTime() - this.startNs;
+        }
+    }
+
+    // Milliseconds since the client was constructed, or -1 if the phase was not reached.
+    public synchronized long getMs(EMark m) {
+        final long ns = this.marksNs[m.ordinal()];
+        return 0 == ns ? -1 : ns / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (EMark m : EMark.values()) {
+            if (sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append(m.name().toLowerCase()).append('=').append(this.getMs(m));
+        }
+        return sb.toString();
+    }
+}
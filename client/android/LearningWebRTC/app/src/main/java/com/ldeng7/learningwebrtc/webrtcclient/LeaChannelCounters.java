@@ -0,0 +1,95 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+// Per-channel traffic counters. Queue delay is the time a message waited in LeaDataChannel
+// before being handed to the native channel. Transit latency is recorded on the receiving
+// side of a Spec.timestamped channel, from the sender's wall clock to this one's, in
+// milliseconds: it includes the offset between the two clocks, so compare channels of one
+// call with each other rather than reading it as an absolute one-way delay.
+public class LeaChannelCounters {
+    private long startNs = System.nanoTime();
+    private long messagesSent;
+    private long bytesSent;
+    private long sendFailures;
+    private long messagesReceived;
+    private long bytesReceived;
+    private final LeaLatencyHistogram queueDelay = new LeaLatencyHistogram();
+    private final LeaLatencyHistogram transitLatency = new LeaLatencyHistogram();
+
+    synchronized void onSent(int bytes, long queueDelayNs, boolean sent) {
+        if (!sent) {
+            this.sendFailures++;
+            return;
+        }
+        this.messagesSent++;
+        this.bytesSent += bytes;
+        this.queueDelay.record(queueDelayNs);
+    }
+
+    void onTransit(long ns) {
+        this.transitLatency.record(ns);
+    }
+
+    synchronized void onReceived(int bytes) {
+        this.messagesReceived++;
+        this.bytesReceived += bytes;
+    }
+
+    public synchronized long getMessagesSent() {
+        return this.messagesSent;
+    }
+
+    public synchronized long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    public synchronized long getSendFailures() {
+        return this.sendFailures;
+    }
+
+    public synchronized long getMessagesReceived() {
+        return this.messagesReceived;
+    }
+
+    public synchronized long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    public synchronized long getSentBytesPerSec() {
+        return this.bytesSent * 1000000000L / Math.max(System.nanoTime() - this.startNs, 1);
+    }
+
+    public synchronized long getReceivedBytesPerSec() {
+        return this.bytesReceived * 1000000000L / Math.max(System.nanoTime() - this.startNs, 1);
+    }
+
+    public LeaLatencyHistogram getQueueDelay() {
+        return this.queueDelay;
+    }
+
+    // Empty unless the channel is Spec.timestamped.
+    public LeaLatencyHistogram getTransitLatency() {
+        return this.transitLatency;
+    }
+
+    public synchronized void reset() {
+        this.startNs = System.nanoTime();
+        this.messagesSent = 0;
+        this.bytesSent = 0;
+        this.sendFailures = 0;
+        this.messagesReceived = 0;
+        this.bytesReceived = 0;
+        this.queueDelay.reset();
+        this.transitLatency.reset();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sent=" + this.messagesSent + "/" + this.bytesSent + "B" +
+            " recv=" + this.messagesReceived + "/" + this.bytesReceived + "B" +
+            " failed=" + this.sendFailures +
+            " tx=" + this.getSentBytesPerSec() + "B/s" +
+            " rx=" + this.getReceivedBytesPerSec() + "B/s" +
+            " queue delay " + this.queueDelay +
+            " transit " + this.transitLatency;
+    }
+}
@@ -0,0 +1,276 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Splits messages of any size into chunks over a LeaFrameChannel and reassembles them on
+// the other side. Each chunk carries a 13 byte header:
+//   int streamId | byte flags | int totalLength | int offset | payload
+// Messages on one stream go out in order; streams are served round-robin one chunk at a
+// time, so a small control message is not stuck behind a large transfer on another stream.
+// Plain Java, so it runs over LeaLoopbackChannel on the JVM as well.
+public class LeaChunkedChannel implements LeaFrameChannel.Receiver {
+    public interface Listener {
+        // data is positioned over the whole message; hand it back through recycle() when done.
+        void onMessage(int streamId, ByteBuffer data, boolean text);
+    }
+
+    private static final int HEADER_SIZE = 13;
+    private static final byte FLAG_TEXT = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 256 * 1024 * 1024;
+    // The first chunk's header sizes the whole reassembly buffer, so the remote side could
+    // otherwise claim DEFAULT_MAX_MESSAGE_SIZE per stream id with a few bytes each.
+    public static final int DEFAULT_MAX_IN_STREAMS = 16;
+    public static final long DEFAULT_MAX_REASSEMBLY_BYTES = 256L * 1024 * 1024;
+
+    private static class OutMessage {
+        final ByteBuffer data;
+        final boolean text;
+        final boolean pooled;
+        final LeaFrameChannel.SendCallback cb;
+        final int total;
+        int offset;
+        boolean finished;
+
+        OutMessage(ByteBuffer data, boolean text, boolean pooled, LeaFrameChannel.SendCallback cb) {
+            this.data = data;
+            this.text = text;
+            this.pooled = pooled;
+            this.cb = cb;
+            this.total = data.remaining();
+        }
+    }
+
+    private static class OutStream {
+        final int id;
+        final ArrayDeque<OutMessage> messages = new ArrayDeque<>();
+
+        OutStream(int id) {
+            this.id = id;
+        }
+    }
+
+    private static class InMessage {
+        final ByteBuffer data;
+        final boolean text;
+
+        InMessage(ByteBuffer data, boolean text) {
+            this.data = data;
+            this.text = text;
+        }
+    }
+
+    private final LeaFrameChannel channel;
+    private final Listener listener;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final int maxMessageSize;
+    private final int maxInStreams;
+    private final long maxReassemblyBytes;
+    private final LeaBufferPool pool = LeaBufferPool.shared;
+    // Held only to pick and fill the next chunk; channel calls are made outside it.
+    private final Object lock = new Object();
+    private final Map<Integer, OutStream> outStreams = new HashMap<>();
+    private final ArrayDeque<OutStream> ready = new ArrayDeque<>();
+    private int inFlight;
+    private boolean pumping;
+    private boolean pumpRequested;
+    // Touched only from the channel's receiving thread.
+    private final Map<Integer, InMessage> inStreams = new HashMap<>();
+    private long reassemblyBytes;
+    private volatile int droppedMessages;
+
+    public LeaChunkedChannel(final LeaFrameChannel channel, final Listener listener) {
+        this(channel, listener, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_MESSAGE_SIZE,
+            DEFAULT_MAX_IN_STREAMS, DEFAULT_MAX_REASSEMBLY_BYTES);
+    }
+
+    // maxInStreams and maxReassemblyBytes bound the partial messages held at once, across
+    // all streams; a first chunk that would exceed either is dropped.
+    public LeaChunkedChannel(final LeaFrameChannel channel, final Listener listener,
+            int chunkSize, int maxInFlight, int maxMessageSize, int maxInStreams, long maxReassemblyBytes) {
+        this.channel = channel;
+        this.listener = listener;
+        this.chunkSize = Math.max(chunkSize, HEADER_SIZE + 1);
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.maxMessageSize = maxMessageSize;
+        this.maxInStreams = Math.max(maxInStreams, 1);
+        this.maxReassemblyBytes = maxReassemblyBytes;
+        channel.setReceiver(this);
+    }
+
+    public void recycle(ByteBuffer b) {
+        this.pool.release(b);
+    }
+
+    // Messages discarded because a chunk was short, missing, out of place or oversized, or
+    // because the receive limits were reached.
+    public int getDroppedMessages() {
+        return this.droppedMessages;
+    }
+
+    // b is not copied and belongs to this channel until cb runs.
+    public void send(int streamId, ByteBuffer b, LeaFrameChannel.SendCallback cb) {
+        this.enqueue(streamId, new OutMessage(b, false, false, cb));
+    }
+
+    public void send(int streamId, String s, LeaFrameChannel.SendCallback cb) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer b = this.pool.acquire(bytes.length);
+        b.put(bytes);
+        b.flip();
+        this.enqueue(streamId, new OutMessage(b, true, true, cb));
+    }
+
+    private void enqueue(int streamId, OutMessage m) {
+        synchronized (this.lock) {
+            OutStream s = this.outStreams.get(streamId);
+            if (null == s) {
+                s = new OutStream(streamId);
+                this.outStreams.put(streamId, s);
+            }
+            if (s.messages.isEmpty()) {
+                this.ready.addLast(s);
+            }
+            s.messages.addLast(m);
+        }
+        this.pump();
+    }
+
+    private void pump() {
+        synchronized (this.lock) {
+            if (this.pumping) {
+                this.pumpRequested = true;
+                return;
+            }
+            this.pumping = true;
+        }
+        while (true) {
+            final ByteBuffer frame;
+            final OutStream s;
+            final OutMessage m;
+            final boolean last;
+            synchronized (this.lock) {
+                s = this.inFlight < this.maxInFlight ? this.ready.pollFirst() : null;
+                if (null == s) {
+                    if (this.pumpRequested) {
+                        this.pumpRequested = false;
+                        continue;
+                    }
+                    this.pumping = false;
+                    return;
+                }
+                m = s.messages.peekFirst();
+                final int n = Math.min(this.chunkSize - HEADER_SIZE, m.total - m.offset);
+                frame = this.pool.acquire(HEADER_SIZE + n);
+                frame.order(ByteOrder.BIG_ENDIAN);
+                frame.putInt(s.id);
+                frame.put(m.text ? FLAG_TEXT : 0);
+                frame.putInt(m.total);
+                frame.putInt(m.offset);
+                final ByteBuffer src = m.data.duplicate();
+                src.position(m.data.position() + m.offset);
+                src.limit(src.position() + n);
+                frame.put(src);
+                frame.flip();
+                m.offset += n;
+                last = m.offset == m.total;
+                if (last) {
+                    s.messages.pollFirst();
+                }
+                if (!s.messages.isEmpty()) {
+                    this.ready.addLast(s);
+                }
+                this.inFlight++;
+            }
+            if (!this.channel.offer(frame, (sent) -> this.onFrameSent(frame, s, m, last, sent))) {
+                this.onFrameSent(frame, s, m, last, false);
+            }
+        }
+    }
+
+    private void onFrameSent(ByteBuffer frame, OutStream s, OutMessage m, boolean last, boolean sent) {
+        this.pool.release(frame);
+        boolean done = false;
+        synchronized (this.lock) {
+            this.inFlight--;
+            if (!m.finished && (last || !sent)) {
+                m.finished = true;
+                done = true;
+                // The receiver drops a message with a missing chunk, so the rest need not go out.
+                if (!last && s.messages.peekFirst() == m) {
+                    s.messages.pollFirst();
+                    if (s.messages.isEmpty()) {
+                        this.ready.remove(s);
+                    }
+                }
+            }
+        }
+        if (done) {
+            if (m.pooled) {
+                this.pool.release(m.data);
+            }
+            if (null != m.cb) {
+                m.cb.onComplete(sent);
+            }
+        }
+        this.pump();
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame) {
+        if (frame.remaining() < HEADER_SIZE) {
+            this.droppedMessages++;
+            return;
+        }
+        final ByteBuffer f = frame.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int streamId = f.getInt();
+        final boolean text = (f.get() & FLAG_TEXT) != 0;
+        final int total = f.getInt();
+        final int offset = f.getInt();
+        final int n = f.remaining();
+
+        InMessage m = this.inStreams.get(streamId);
+        if (0 == offset) {
+            if (null != m) {
+                this.drop(streamId, m);
+            }
+            if (total < n || total > this.maxMessageSize || this.inStreams.size() >= this.maxInStreams ||
+                    this.reassemblyBytes + total > this.maxReassemblyBytes) {
+                this.droppedMessages++;
+                return;
+            }
+            // Sized once from the first chunk; later chunks are copied straight into place.
+            m = new InMessage(this.pool.acquire(total), text);
+            this.inStreams.put(streamId, m);
+            this.reassemblyBytes += total;
+        } else if (null == m || offset != m.data.position() || total != m.data.limit() ||
+                offset + n > total) {
+            if (null != m) {
+                this.drop(streamId, m);
+            }
+            return;
+        }
+        m.data.put(f);
+        if (m.data.hasRemaining()) {
+            return;
+        }
+        this.inStreams.remove(streamId);
+        this.reassemblyBytes -= m.data.limit();
+        m.data.flip();
+        this.listener.onMessage(streamId, m.data, m.text);
+    }
+
+    private void drop(int streamId, InMessage m) {
+        this.inStreams.remove(streamId);
+        this.reassemblyBytes -= m.data.limit();
+        this.pool.release(m.data);
+        this.droppedMessages++;
+    }
+}
@@ -0,0 +1,173 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.PeerConnection;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Keeps a call alive across network changes. Once ICE has connected, a DISCONNECTED that
+// lasts longer than the grace period, or any FAILED, starts ICE restarts with exponential
+// backoff until ICE connects again or the attempts run out. The time from the disruption
+// to the next connected state is recorded. Only the offerer restarts; the answerer
+// answers its restart offers and gives up only once the offerer's attempts are spent.
+public class LeaConnectionSupervisor {
+    // Invoked on the supervisor's timer thread without its state lock held.
+    interface Actions {
+        // false on the side that waits for the other to restart.
+        boolean restartsIce();
+        void restartIce(int attempt);
+        void giveUp();
+    }
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 8000;
+
+    private final Actions actions;
+    private final long graceMs;
+    private final int maxAttempts;
+    // Held while an action runs, so close() returns only once none is in flight.
+    private final Object actionLock = new Object();
+    private final LeaLatencyHistogram recoveryTime = new LeaLatencyHistogram();
+    private ScheduledFuture<?> pending;
+    private boolean connectedOnce;
+    private long disruptedAtNs;
+    private int attempts;
+    private boolean waiting;
+    private int restarts;
+    private long lastRecoveryMs = -1;
+    private boolean closed;
+
+    LeaConnectionSupervisor(final Actions actions, long graceMs, int maxAttempts) {
+        this.actions = actions;
+        this.graceMs = Math.max(graceMs, 0);
+        this.maxAttempts = maxAttempts;
+    }
+
+    public synchronized int getRestartCount() {
+        return this.restarts;
+    }
+
+    // Disruption to reconnection, or -1 before the first recovery.
+    public synchronized long getLastRecoveryMs() {
+        return this.lastRecoveryMs;
+    }
+
+    public LeaLatencyHistogram getRecoveryTime() {
+        return this.recoveryTime;
+    }
+
+    public synchronized boolean isRecovering() {
+        return 0 != this.disruptedAtNs;
+    }
+
+    synchronized void onIceConnectionChange(PeerConnection.IceConnectionState state) {
+        if (this.closed || this.maxAttempts <= 0) {
+            return;
+        }
+        switch (state) {
+            case CONNECTED:
+            case COMPLETED:
+                this.connectedOnce = true;
+                if (0 != this.disruptedAtNs) {
+                    final long ns = System.nanoTime() - this.disruptedAtNs;
+                    this.recoveryTime.record(ns);
+                    this.lastRecoveryMs = ns / 1000000;
+                    LeaTrace.event(LeaTrace.EEvent.ICE_RECOVERED, this.lastRecoveryMs);
+                }
+                this.disruptedAtNs = 0;
+                this.attempts = 0;
+                this.waiting = false;
+                this.cancel();
+                break;
+            case DISCONNECTED:
+                // Before the first connection this is still call setup, which has its own
+                // timeouts; afterwards it often clears up by itself within the grace period.
+                if (!this.connectedOnce) {
+                    return;
+                }
+                this.onDisrupted(this.graceMs);
+                break;
+            case FAILED:
+                this.onDisrupted(0);
+                break;
+            case CLOSED:
+                this.cancel();
+                break;
+        }
+    }
+
+    private void onDisrupted(long delayMs) {
+        if (0 == this.disruptedAtNs) {
+            this.disruptedAtNs = System.nanoTime();
+        }
+        // A pending check means an attempt is already scheduled or still in its backoff.
+        if (null == this.pending) {
+            this.pending = timer.schedule(this::attempt, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // How long the offerer's attempts take, with one more backoff for its restart offer to
+    // arrive.
+    private long restartBudgetMs() {
+        long ms = MAX_BACKOFF_MS;
+        for (int a = 1; a <= this.maxAttempts; a++) {
+            ms += Math.min(INITIAL_BACKOFF_MS << Math.min(a - 1, 16), MAX_BACKOFF_MS);
+        }
+        return ms;
+    }
+
+    private void attempt() {
+        final boolean restarter = this.actions.restartsIce();
+        synchronized (this.actionLock) {
+            final int attempt;
+            synchronized (this) {
+                this.pending = null;
+                if (this.closed || 0 == this.disruptedAtNs) {
+                    return;
+                }
+                if (!restarter && !this.waiting) {
+                    this.waiting = true;
+                    this.pending = timer.schedule(this::attempt, this.restartBudgetMs(), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                // A waiting answerer that gets here has heard no restart in time.
+                attempt = restarter ? ++this.attempts : this.maxAttempts + 1;
+                if (attempt <= this.maxAttempts) {
+                    this.restarts++;
+                    final long backoffMs = Math.min(INITIAL_BACKOFF_MS << Math.min(attempt - 1, 16), MAX_BACKOFF_MS);
+                    this.pending = timer.schedule(this::attempt, backoffMs, TimeUnit.MILLISECONDS);
+                } else {
+                    this.closed = true;
+                }
+            }
+            if (attempt <= this.maxAttempts) {
+                LeaTrace.event(LeaTrace.EEvent.ICE_RESTART, attempt);
+                this.actions.restartIce(attempt);
+            } else {
+                LeaTrace.error(LeaTrace.EEvent.ICE_RESTART, -1, LeaWebRTCClient.LOG_TAG,
+                    "ice not recovered after " + this.maxAttempts + " restarts");
+                this.actions.giveUp();
+            }
+        }
+    }
+
+    private void cancel() {
+        if (null != this.pending) {
+            this.pending.cancel(false);
+            this.pending = null;
+        }
+    }
+
+    // No action runs once this returns.
+    void close() {
+        synchronized (this.actionLock) {
+            synchronized (this) {
+                this.closed = true;
+                this.cancel();
+            }
+        }
+    }
+}
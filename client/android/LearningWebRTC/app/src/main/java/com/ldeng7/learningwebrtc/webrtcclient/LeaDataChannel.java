@@ -2,33 +2,420 @@ package com.ldeng7.learningwebrtc.webrtcclient;
 
 import org.webrtc.DataChannel;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 
-public class LeaDataChannel implements DataChannel.Observer {
-    private final LeaWebRTCClient webRTCClient;
+public class LeaDataChannel implements DataChannel.Observer, LeaFrameChannel {
+    // Scheduling weight between this call's channels: a channel only sends while no
+    // higher-priority channel has messages queued.
+    public enum EPriority {
+        VERY_LOW,
+        LOW,
+        MEDIUM,
+        HIGH,
+    }
+
+    // Both peers must declare the same id for a label, since channels are negotiated
+    // out of band. At most one of maxRetransmits and maxPacketLifeTimeMs may be set.
+    public static class Spec implements Serializable {
+        public int id;
+        public String label;
+        public boolean ordered = true;
+        public int maxRetransmits = -1;
+        public int maxPacketLifeTimeMs = -1;
+        public EPriority priority = EPriority.MEDIUM;
+        // Prefixes every message with its send time, so the receiver's counters record
+        // transit latency; the prefix is stripped before delivery. Both peers must agree.
+        public boolean timestamped;
+
+        public Spec(int id, String label) {
+            this.id = id;
+            this.label = label;
+        }
+    }
+
+    public interface FlowListener {
+        void onPause();
+        void onResume();
+    }
+
+    private static final long DEFAULT_LOW_WATERMARK = 256 * 1024;
+    private static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    private static final long DEFAULT_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    private static final int TIMESTAMP_SIZE = 8;
+
+    private static class Pending {
+        final ByteBuffer data;
+        final boolean binary;
+        final boolean pooled;
+        final SendCallback cb;
+        final long enqueuedNs = System.nanoTime();
+
+        Pending(ByteBuffer data, boolean binary, boolean pooled, SendCallback cb) {
+            this.data = data;
+            this.binary = binary;
+            this.pooled = pooled;
+            this.cb = cb;
+        }
+    }
+
+    private final LeaDataChannelRouter router;
+    private final Spec spec;
+    final EPriority priority;
     private final DataChannel ch;
+    private final LeaChannelCounters counters = new LeaChannelCounters();
+    private final LeaBufferPool pool = LeaBufferPool.shared;
+    // DataChannel calls are proxied to the signaling thread, which also delivers
+    // onBufferedAmountChange, so they are never made while holding this lock.
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean draining;
+    private boolean drainRequested;
+    private boolean paused;
+    private long pausedAtNs;
+    private long stallNs;
+    private int stallCount;
+    private long lowWatermark = DEFAULT_LOW_WATERMARK;
+    private long highWatermark = DEFAULT_HIGH_WATERMARK;
+    private long maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private FlowListener flowListener;
+    private volatile Receiver receiver;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    LeaDataChannel(final LeaWebRTCClient webRTCClient, final LeaDataChannelRouter router, final Spec spec) {
+        this(router, spec, webRTCClient.getPeerConnection().createDataChannel(spec.label, init(spec)));
+    }
 
-    LeaDataChannel(final LeaWebRTCClient webRTCClient, int id, String label) {
-        this.webRTCClient = webRTCClient;
+    // Over a channel created elsewhere, e.g. an in-process loopback on the JVM.
+    LeaDataChannel(final LeaDataChannelRouter router, final Spec spec, final DataChannel ch) {
+        this.router = router;
+        this.spec = spec;
+        this.priority = spec.priority;
+        this.ch = ch;
+        this.ch.registerObserver(this);
+    }
+
+    private static DataChannel.Init init(final Spec spec) {
         DataChannel.Init dci = new DataChannel.Init();
         dci.negotiated = true;
-        dci.id = id;
-        this.ch = webRTCClient.getPeerConnection().createDataChannel(label, dci);
-        this.ch.registerObserver(this);
+        dci.id = spec.id;
+        dci.ordered = spec.ordered;
+        dci.maxRetransmits = spec.maxRetransmits;
+        dci.maxRetransmitTimeMs = spec.maxPacketLifeTimeMs;
+        return dci;
+    }
+
+    public int getId() {
+        return this.spec.id;
+    }
+
+    public String getLabel() {
+        return this.spec.label;
+    }
+
+    public Spec getSpec() {
+        return this.spec;
+    }
+
+    // Neither retransmit nor lifetime limit, so the remote side delivers every message.
+    public boolean isReliable() {
+        return this.spec.maxRetransmits < 0 && this.spec.maxPacketLifeTimeMs < 0;
+    }
+
+    public LeaChannelCounters getCounters() {
+        return this.counters;
     }
 
-    @Override public void onBufferedAmountChange(long l) {}
     @Override public void onStateChange() {}
 
+    @Override
+    public void onBufferedAmountChange(long l) {
+        this.drain();
+    }
+
+    public void setWatermarks(long low, long high, long maxQueuedBytes) {
+        synchronized (this.lock) {
+            this.lowWatermark = low;
+            this.highWatermark = high;
+            this.maxQueuedBytes = maxQueuedBytes;
+        }
+    }
+
+    public void setFlowListener(FlowListener l) {
+        synchronized (this.lock) {
+            this.flowListener = l;
+        }
+    }
+
+    public long getBufferedAmount() {
+        return this.ch.bufferedAmount();
+    }
+
+    public int getQueuedMessages() {
+        synchronized (this.lock) {
+            return this.queue.size();
+        }
+    }
+
+    public long getQueuedBytes() {
+        synchronized (this.lock) {
+            return this.queuedBytes;
+        }
+    }
+
+    public long getStallTimeMs() {
+        synchronized (this.lock) {
+            long ns = this.stallNs;
+            if (this.paused) {
+                ns += System.nanoTime() - this.pausedAtNs;
+            }
+            return ns / 1000000;
+        }
+    }
+
+    public int getStallCount() {
+        synchronized (this.lock) {
+            return this.stallCount;
+        }
+    }
+
+    // Runs on the signaling thread. Messages are handed to the router's dispatcher, which
+    // copies them once into a pooled buffer; binary consumers hand it back through recycle().
     @Override
     public void onMessage(DataChannel.Buffer buffer) {
-        String s = StandardCharsets.UTF_8.decode(buffer.data).toString();
-        this.webRTCClient.onDataChannelMsg(s);
+        if (this.spec.timestamped) {
+            final int pos = buffer.data.position();
+            if (buffer.data.remaining() < TIMESTAMP_SIZE) {
+                return;
+            }
+            this.counters.onTransit((System.currentTimeMillis() - buffer.data.getLong(pos)) * 1000000);
+            buffer.data.position(pos + TIMESTAMP_SIZE);
+        }
+        this.counters.onReceived(buffer.data.remaining());
+        final Receiver r = this.receiver;
+        if (buffer.binary && null != r) {
+            r.onFrame(buffer.data);
+            return;
+        }
+        this.router.post(this, buffer.data, buffer.binary);
+    }
+
+    // Hands binary messages to r, straight from the native buffer, instead of the router.
+    @Override
+    public void setReceiver(Receiver r) {
+        this.receiver = r;
+    }
+
+    public ByteBuffer obtain(int size) {
+        return this.pool.acquire(size);
+    }
+
+    public void recycle(ByteBuffer b) {
+        this.pool.release(b);
+    }
+
+    // Sends the remaining bytes of b right away if the channel is below its high watermark
+    // and nothing is queued; otherwise leaves b untouched and returns false.
+    public boolean trySend(ByteBuffer b) {
+        final long high;
+        synchronized (this.lock) {
+            if (!this.queue.isEmpty() || this.draining) {
+                return false;
+            }
+            high = this.highWatermark;
+        }
+        if (this.ch.bufferedAmount() >= high || this.router.shouldYield(this)) {
+            return false;
+        }
+        final int n = b.remaining();
+        final boolean sent = this.sendNow(b, true);
+        this.counters.onSent(n, 0, sent);
+        return sent;
+    }
+
+    // Queues b without copying. b belongs to the channel until cb runs, on whichever thread
+    // ends up sending it. Returns false, and drops nothing, if the queue is full.
+    @Override
+    public boolean offer(ByteBuffer b, SendCallback cb) {
+        return this.enqueue(new Pending(b, true, false, cb));
+    }
+
+    // Flow-controlled like offer(), but b may be reused as soon as this returns; it is only
+    // copied if it has to wait.
+    public boolean send(ByteBuffer b) {
+        if (this.trySend(b)) {
+            return true;
+        }
+        final ByteBuffer copy = this.pool.acquire(b.remaining());
+        copy.put(b.duplicate());
+        copy.flip();
+        if (!this.enqueue(new Pending(copy, true, true, null))) {
+            this.pool.release(copy);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean send(String s) {
+        final ByteBuffer b;
+        synchronized (this.encoder) {
+            b = this.encode(s);
+        }
+        if (!this.enqueue(new Pending(b, false, true, null))) {
+            this.pool.release(b);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean enqueue(Pending p) {
+        FlowListener l = null;
+        synchronized (this.lock) {
+            final int n = p.data.remaining();
+            if (this.queuedBytes + n > this.maxQueuedBytes && !this.queue.isEmpty()) {
+                return false;
+            }
+            this.queue.addLast(p);
+            this.queuedBytes += n;
+            if (!this.paused && this.queuedBytes >= this.highWatermark) {
+                l = this.pause();
+            }
+        }
+        if (null != l) {
+            l.onPause();
+        }
+        this.drain();
+        return true;
+    }
+
+    private FlowListener pause() {
+        this.paused = true;
+        this.pausedAtNs = System.nanoTime();
+        this.stallCount++;
+        return this.flowListener;
+    }
+
+    boolean hasBacklog() {
+        synchronized (this.lock) {
+            return !this.queue.isEmpty();
+        }
+    }
+
+    void kick() {
+        this.drain();
+    }
+
+    private void drain() {
+        synchronized (this.lock) {
+            if (this.draining) {
+                // The running drainer may have read a stale buffered amount; make it recheck.
+                this.drainRequested = true;
+                return;
+            }
+            this.draining = true;
+        }
+        while (true) {
+            final long buffered = this.ch.bufferedAmount();
+            final boolean yield = this.router.shouldYield(this);
+            Pending p;
+            FlowListener pauseListener = null;
+            FlowListener resumeListener = null;
+            boolean idle = false;
+            synchronized (this.lock) {
+                p = this.queue.isEmpty() || buffered >= this.highWatermark || yield ?
+                    null : this.queue.pollFirst();
+                if (null == p && this.drainRequested) {
+                    this.drainRequested = false;
+                    continue;
+                }
+                if (null == p) {
+                    this.draining = false;
+                    idle = this.queue.isEmpty();
+                    if (this.paused && this.queue.isEmpty() && buffered <= this.lowWatermark) {
+                        this.paused = false;
+                        this.stallNs += System.nanoTime() - this.pausedAtNs;
+                        resumeListener = this.flowListener;
+                    } else if (!this.paused && !this.queue.isEmpty()) {
+                        pauseListener = this.pause();
+                    }
+                } else {
+                    this.queuedBytes -= p.data.remaining();
+                }
+            }
+            if (null == p) {
+                if (null != pauseListener) {
+                    pauseListener.onPause();
+                }
+                if (null != resumeListener) {
+                    resumeListener.onResume();
+                }
+                if (idle) {
+                    this.router.onIdle(this);
+                }
+                return;
+            }
+
+            final int n = p.data.remaining();
+            final boolean sent = this.sendNow(p.data, p.binary);
+            this.counters.onSent(n, System.nanoTime() - p.enqueuedNs, sent);
+            if (p.pooled) {
+                this.pool.release(p.data);
+            }
+            if (null != p.cb) {
+                p.cb.onComplete(sent);
+            }
+        }
+    }
+
+    // The stamp is taken as the message leaves the queue, so queue delay is not counted
+    // as transit. DataChannel.send() copies the bytes, so the stamped copy is returned at once.
+    private boolean sendNow(ByteBuffer data, boolean binary) {
+        if (!this.spec.timestamped) {
+            return this.ch.send(new DataChannel.Buffer(data, binary));
+        }
+        final ByteBuffer b = this.pool.acquire(TIMESTAMP_SIZE + data.remaining());
+        b.putLong(System.currentTimeMillis());
+        b.put(data.duplicate());
+        b.flip();
+        try {
+            return this.ch.send(new DataChannel.Buffer(b, binary));
+        } finally {
+            this.pool.release(b);
+        }
     }
 
-    public void send(String s) {
-        final ByteBuffer b = StandardCharsets.UTF_8.encode(s);
-        this.ch.send(new DataChannel.Buffer(b, false));
+    private ByteBuffer encode(String s) {
+        final CharBuffer in = CharBuffer.wrap(s);
+        // Capped so text just under the largest pooled size is not sent past the pool by the
+        // estimate alone; only text that really encodes larger grows out of it.
+        final int guess = (int) (s.length() * this.encoder.averageBytesPerChar()) + 16;
+        ByteBuffer b = this.pool.acquire(Math.max(s.length(), Math.min(guess, LeaBufferPool.MAX_POOLED_SIZE)));
+        this.encoder.reset();
+        while (true) {
+            // Even for an empty string: flush() is only legal after the end of input.
+            CoderResult cr = this.encoder.encode(in, b, true);
+            if (cr.isUnderflow()) {
+                cr = this.encoder.flush(b);
+            }
+            if (cr.isUnderflow()) {
+                break;
+            }
+            final ByteBuffer larger = this.pool.acquire(b.capacity() * 2);
+            b.flip();
+            larger.put(b);
+            this.pool.release(b);
+            b = larger;
+        }
+        b.flip();
+        return b;
     }
 }
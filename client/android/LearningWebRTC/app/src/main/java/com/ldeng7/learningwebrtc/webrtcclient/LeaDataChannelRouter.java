@@ -0,0 +1,132 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Owns the call's data channels, dispatches their messages to per-label handlers on its
+// LeaMessageDispatcher thread and lets higher-priority channels drain ahead of lower ones.
+public class LeaDataChannelRouter {
+    public interface Handler {
+        void onText(LeaDataChannel ch, String s);
+        // b comes from the channel's pool; pass it to ch.recycle() when done.
+        void onBinary(LeaDataChannel ch, ByteBuffer b);
+    }
+
+    private final LeaWebRTCClient webRTCClient;
+    private final Map<String, Handler> handlers = new HashMap<>();
+    private volatile LeaDataChannel[] channels = new LeaDataChannel[0];
+    private LeaMessageDispatcher dispatcher;
+
+    LeaDataChannelRouter(final LeaWebRTCClient webRTCClient) {
+        this.webRTCClient = webRTCClient;
+    }
+
+    public synchronized LeaMessageDispatcher getDispatcher() {
+        return this.dispatcher;
+    }
+
+    // Messages on channels without a handler go to LeaWebRTCClient.onDataChannelMsg and
+    // onDataChannelBinaryMsg.
+    public synchronized void setHandler(String label, Handler h) {
+        if (null == h) {
+            this.handlers.remove(label);
+        } else {
+            this.handlers.put(label, h);
+        }
+    }
+
+    public LeaDataChannel get(String label) {
+        for (LeaDataChannel ch : this.channels) {
+            if (ch.getLabel().equals(label)) {
+                return ch;
+            }
+        }
+        return null;
+    }
+
+    public LeaDataChannel get(int id) {
+        for (LeaDataChannel ch : this.channels) {
+            if (ch.getId() == id) {
+                return ch;
+            }
+        }
+        return null;
+    }
+
+    public List<LeaDataChannel> getAll() {
+        final ArrayList<LeaDataChannel> l = new ArrayList<>();
+        for (LeaDataChannel ch : this.channels) {
+            l.add(ch);
+        }
+        return l;
+    }
+
+    synchronized void add(LeaDataChannel ch) {
+        if (null == this.dispatcher) {
+            this.dispatcher = new LeaMessageDispatcher(this, this.webRTCClient.conf.dispatchQueueSize);
+        }
+        final LeaDataChannel[] a = new LeaDataChannel[this.channels.length + 1];
+        System.arraycopy(this.channels, 0, a, 0, this.channels.length);
+        a[this.channels.length] = ch;
+        this.channels = a;
+    }
+
+    synchronized void clear() {
+        this.channels = new LeaDataChannel[0];
+        if (null != this.dispatcher) {
+            this.dispatcher.close();
+            this.dispatcher = null;
+        }
+    }
+
+    void post(LeaDataChannel ch, ByteBuffer data, boolean binary) {
+        final LeaMessageDispatcher d = this.getDispatcher();
+        if (null != d) {
+            d.post(ch, data, binary);
+        }
+    }
+
+    private synchronized Handler getHandler(String label) {
+        return this.handlers.get(label);
+    }
+
+    void dispatchText(LeaDataChannel ch, String s) {
+        final Handler h = this.getHandler(ch.getLabel());
+        if (null != h) {
+            h.onText(ch, s);
+        } else {
+            this.webRTCClient.onDataChannelMsg(s);
+        }
+    }
+
+    void dispatchBinary(LeaDataChannel ch, ByteBuffer b) {
+        final Handler h = this.getHandler(ch.getLabel());
+        if (null != h) {
+            h.onBinary(ch, b);
+        } else {
+            this.webRTCClient.onDataChannelBinaryMsg(ch, b);
+        }
+    }
+
+    // Called by a draining channel without its own lock held.
+    boolean shouldYield(LeaDataChannel ch) {
+        for (LeaDataChannel other : this.channels) {
+            if (other.priority.ordinal() > ch.priority.ordinal() && other.hasBacklog()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A channel ran out of queued messages; lower-priority ones that yielded to it resume.
+    void onIdle(LeaDataChannel ch) {
+        for (LeaDataChannel other : this.channels) {
+            if (other.priority.ordinal() < ch.priority.ordinal() && other.hasBacklog()) {
+                other.kick();
+            }
+        }
+    }
+}
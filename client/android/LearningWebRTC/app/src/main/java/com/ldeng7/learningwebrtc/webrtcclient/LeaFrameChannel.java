@@ -0,0 +1,19 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.nio.ByteBuffer;
+
+// A message-oriented binary channel: LeaDataChannel on a call, LeaLoopbackChannel offline.
+public interface LeaFrameChannel {
+    interface SendCallback {
+        // sent is false if the channel refused the message, e.g. because it is closed.
+        void onComplete(boolean sent);
+    }
+
+    interface Receiver {
+        // frame is only valid for the duration of the call.
+        void onFrame(ByteBuffer frame);
+    }
+
+    boolean offer(ByteBuffer b, SendCallback cb);
+    void setReceiver(Receiver r);
+}
@@ -0,0 +1,173 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.opengl.GLES20;
+import android.os.Handler;
+
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoProcessor;
+import org.webrtc.VideoSink;
+import org.webrtc.YuvConverter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs the client's LeaFrameStages between the capturer and the VideoSource, on the
+// capture thread where the SurfaceTextureHelper's EGL context is current. Frames stay
+// TextureBuffers throughout: geometry stages only change the texture matrix or the
+// rotation, and shader stages draw into textures, so nothing is read back to memory.
+//
+// Every GPU_SAMPLE_EVERY frames each stage is fenced with glFinish() before and after to
+// sample its GPU time; ES2 contexts have no timer queries. At 30 fps the whole chain has
+// to stay well under 33 ms, which getChainTime() and getStageTime() show.
+public class LeaFrameProcessor implements VideoProcessor {
+    private static final int GPU_SAMPLE_EVERY = 30;
+
+    private final Handler handler;
+    private final List<LeaFrameStage> stages;
+    private final Map<LeaFrameStage, LeaLatencyHistogram> stageTimes = new ConcurrentHashMap<>();
+    private final LeaLatencyHistogram chainTime = new LeaLatencyHistogram();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile VideoSink sink;
+    // Touched on the capture thread only.
+    private YuvConverter yuvConverter;
+    private long frameCount;
+    private boolean drewOnGpu;
+    private boolean closed;
+
+    // stages is read on every frame; it is the client's live list.
+    LeaFrameProcessor(final Handler handler, final List<LeaFrameStage> stages) {
+        this.handler = handler;
+        this.stages = stages;
+    }
+
+    Handler getHandler() {
+        return this.handler;
+    }
+
+    // For TextureBuffers a stage creates, in case a consumer needs them in memory.
+    YuvConverter getYuvConverter() {
+        if (null == this.yuvConverter) {
+            this.yuvConverter = new YuvConverter();
+        }
+        return this.yuvConverter;
+    }
+
+    // Called by a stage that rendered, so the output is finished before other contexts
+    // sample it.
+    void onGpuDraw() {
+        this.drewOnGpu = true;
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    // Capture-thread time per frame for the whole chain.
+    public LeaLatencyHistogram getChainTime() {
+        return this.chainTime;
+    }
+
+    // Sampled GPU time of a stage, or null before its first sample.
+    public LeaLatencyHistogram getStageTime(LeaFrameStage stage) {
+        return this.stageTimes.get(stage);
+    }
+
+    @Override
+    public void setSink(VideoSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+    }
+
+    @Override
+    public void onCapturerStopped() {
+    }
+
+    @Override
+    public void onFrameCaptured(final VideoFrame frame) {
+        final VideoSink s = this.sink;
+        if (null == s || this.closed) {
+            return;
+        }
+        if (this.stages.isEmpty()) {
+            s.onFrame(frame);
+            return;
+        }
+        final long t0 = System.nanoTime();
+        final boolean sample = this.frameCount++ % GPU_SAMPLE_EVERY == 0;
+        this.drewOnGpu = false;
+        VideoFrame cur = frame;
+        for (LeaFrameStage stage : this.stages) {
+            long st = 0;
+            if (sample) {
+                GLES20.glFinish();
+                st = System.nanoTime();
+            }
+            final VideoFrame next = stage.process(this, cur);
+            if (sample) {
+                GLES20.glFinish();
+                this.timeOf(stage).record(System.nanoTime() - st);
+            }
+            if (next != cur && cur != frame) {
+                cur.release();
+            }
+            if (null == next) {
+                this.dropped.incrementAndGet();
+                return;
+            }
+            cur = next;
+        }
+        if (this.drewOnGpu && !sample) {
+            GLES20.glFinish();
+        }
+        this.chainTime.record(System.nanoTime() - t0);
+        s.onFrame(cur);
+        if (cur != frame) {
+            cur.release();
+        }
+    }
+
+    private LeaLatencyHistogram timeOf(LeaFrameStage stage) {
+        LeaLatencyHistogram h = this.stageTimes.get(stage);
+        if (null == h) {
+            h = new LeaLatencyHistogram();
+            this.stageTimes.put(stage, h);
+        }
+        return h;
+    }
+
+    // For a stage taken out of the chain while capturing.
+    void release(final LeaFrameStage stage) {
+        this.handler.post(stage::release);
+    }
+
+    // Releases every stage on the capture thread and waits for it. Call after the capturer
+    // has stopped and before the SurfaceTextureHelper is disposed.
+    void close() {
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean posted = this.handler.post(() -> {
+            this.closed = true;
+            for (LeaFrameStage stage : this.stages) {
+                stage.release();
+            }
+            if (null != this.yuvConverter) {
+                this.yuvConverter.release();
+                this.yuvConverter = null;
+            }
+            done.countDown();
+        });
+        if (!posted) {
+            return;
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
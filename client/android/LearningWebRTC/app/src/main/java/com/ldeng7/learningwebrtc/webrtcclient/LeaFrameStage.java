@@ -0,0 +1,15 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.VideoFrame;
+
+// One step of a LeaFrameProcessor chain. LeaFrameStages has ready-made ones.
+public interface LeaFrameStage {
+    // On the capture thread, with the SurfaceTextureHelper's EGL context current. Returns
+    // frame itself, a new frame the caller then owns, or null to drop the frame. frame
+    // stays owned by the caller either way.
+    VideoFrame process(LeaFrameProcessor processor, VideoFrame frame);
+
+    // On the capture thread, once the stage leaves the chain; GL resources may be rebuilt
+    // if it is added again.
+    void release();
+}
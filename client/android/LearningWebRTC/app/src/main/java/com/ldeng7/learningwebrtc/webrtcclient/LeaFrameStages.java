@@ -0,0 +1,101 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.opengl.GLES20;
+
+import org.webrtc.GlGenericDrawer;
+import org.webrtc.GlShader;
+import org.webrtc.VideoFrame;
+
+// Ready-made LeaFrameStages. Crop, scale and rotate do no GPU work of their own: a
+// TextureBuffer crops and scales by its texture matrix, and rotation is frame metadata,
+// so all of them are applied by whichever draw comes next, a shader stage or the encoder.
+// Coordinates are in the buffer's unrotated space.
+public class LeaFrameStages {
+    private LeaFrameStages() {}
+
+    private static abstract class GeometryStage implements LeaFrameStage {
+        @Override
+        public void release() {}
+    }
+
+    // The crop is clamped to the buffer; an empty one drops the frame.
+    public static LeaFrameStage crop(final int x, final int y, final int width, final int height) {
+        return new GeometryStage() {
+            @Override
+            public VideoFrame process(LeaFrameProcessor processor, VideoFrame frame) {
+                final VideoFrame.Buffer b = frame.getBuffer();
+                final int cx = Math.max(0, Math.min(x, b.getWidth()));
+                final int cy = Math.max(0, Math.min(y, b.getHeight()));
+                final int cw = Math.min(width, b.getWidth() - cx);
+                final int ch = Math.min(height, b.getHeight() - cy);
+                if (cw <= 0 || ch <= 0) {
+                    return null;
+                }
+                if (cw == b.getWidth() && ch == b.getHeight()) {
+                    return frame;
+                }
+                return new VideoFrame(b.cropAndScale(cx, cy, cw, ch, cw, ch), frame.getRotation(),
+                    frame.getTimestampNs());
+            }
+        };
+    }
+
+    public static LeaFrameStage scale(final int width, final int height) {
+        return new GeometryStage() {
+            @Override
+            public VideoFrame process(LeaFrameProcessor processor, VideoFrame frame) {
+                final VideoFrame.Buffer b = frame.getBuffer();
+                if (width == b.getWidth() && height == b.getHeight()) {
+                    return frame;
+                }
+                return new VideoFrame(b.cropAndScale(0, 0, b.getWidth(), b.getHeight(), width, height),
+                    frame.getRotation(), frame.getTimestampNs());
+            }
+        };
+    }
+
+    // Clockwise, in multiples of 90 degrees, on top of the capturer's own rotation.
+    public static LeaFrameStage rotate(final int degrees) {
+        final int d = ((degrees / 90 % 4) + 4) % 4 * 90;
+        return new GeometryStage() {
+            @Override
+            public VideoFrame process(LeaFrameProcessor processor, VideoFrame frame) {
+                if (d == 0) {
+                    return frame;
+                }
+                frame.getBuffer().retain();
+                return new VideoFrame(frame.getBuffer(), (frame.getRotation() + d) % 360, frame.getTimestampNs());
+            }
+        };
+    }
+
+    private static final String BLUR_SHADER =
+        "uniform vec2 texelStep;\n" +
+        "void main() {\n" +
+        "  vec4 c = vec4(0.0);\n" +
+        "  for (int i = -2; i <= 2; i++) {\n" +
+        "    for (int j = -2; j <= 2; j++) {\n" +
+        "      c += sample(tc + vec2(float(i), float(j)) * texelStep);\n" +
+        "    }\n" +
+        "  }\n" +
+        "  gl_FragColor = c / 25.0;\n" +
+        "}\n";
+
+    // A 5x5 box blur with taps radiusPx apart, in one shader pass.
+    public static LeaShaderStage blur(final float radiusPx) {
+        return new LeaShaderStage(BLUR_SHADER, new GlGenericDrawer.ShaderCallbacks() {
+            private int texelStepLocation;
+
+            @Override
+            public void onNewShader(GlShader shader) {
+                this.texelStepLocation = shader.getUniformLocation("texelStep");
+            }
+
+            @Override
+            public void onPrepareShader(GlShader shader, float[] texMatrix, int frameWidth, int frameHeight,
+                    int viewportWidth, int viewportHeight) {
+                GLES20.glUniform2f(this.texelStepLocation, radiusPx / frameWidth, radiusPx / frameHeight);
+            }
+        });
+    }
+}
@@ -0,0 +1,47 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.util.Arrays;
+
+// Latencies in power-of-two microsecond buckets; recording never allocates.
+public class LeaLatencyHistogram {
+    private static final int BUCKETS = 32;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+
+    public synchronized void record(long ns) {
+        final long us = Math.max(ns, 0) / 1000;
+        this.buckets[Math.min(64 - Long.numberOfLeadingZeros(us), BUCKETS - 1)]++;
+        this.count++;
+    }
+
+    public synchronized long getCount() {
+        return this.count;
+    }
+
+    // Upper bound in microseconds of the bucket holding quantile q (0..1), or -1 if empty.
+    public synchronized long getUs(double q) {
+        if (0 == this.count) {
+            return -1;
+        }
+        final long target = Math.max((long) Math.ceil(q * this.count), 1);
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += this.buckets[i];
+            if (n >= target) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(this.buckets, 0);
+        this.count = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + this.count + " p50=" + this.getUs(0.5) + "us p99=" + this.getUs(0.99) + "us";
+    }
+}
@@ -0,0 +1,66 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Coalesces values posted from any thread into at most one delivery per display frame,
+// always the most recent. Construct it on the main thread.
+public class LeaLatestValue<T> implements Choreographer.FrameCallback {
+    public interface Listener<T> {
+        void onValue(T v);
+    }
+
+    private static final long FRAME_NS = 1000000000L / 60;
+
+    private final Listener<T> listener;
+    private final Choreographer choreographer;
+    private final AtomicReference<T> latest = new AtomicReference<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lateFrames = new AtomicLong();
+
+    public LeaLatestValue(final Listener<T> listener) {
+        this.listener = listener;
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    public void post(T v) {
+        this.posted.incrementAndGet();
+        this.latest.set(v);
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.choreographer.postFrameCallback(this);
+        }
+    }
+
+    public long getPostedCount() {
+        return this.posted.get();
+    }
+
+    public long getDeliveredCount() {
+        return this.delivered.get();
+    }
+
+    // Deliveries that ran more than a 60 Hz frame after their vsync, i.e. the main
+    // thread was already behind.
+    public long getLateFrameCount() {
+        return this.lateFrames.get();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (System.nanoTime() - frameTimeNanos > FRAME_NS) {
+            this.lateFrames.incrementAndGet();
+        }
+        // Cleared first, so a value posted from here on schedules another frame.
+        this.scheduled.set(false);
+        final T v = this.latest.getAndSet(null);
+        if (null != v) {
+            this.delivered.incrementAndGet();
+            this.listener.onValue(v);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Two cross-connected in-process channels. Each direction delivers in order on its own
+// thread, so senders never re-enter themselves through the receiver.
+public class LeaLoopbackChannel implements LeaFrameChannel {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private LeaLoopbackChannel peer;
+    private volatile Receiver receiver;
+    private volatile boolean closed;
+
+    private LeaLoopbackChannel() {}
+
+    public static LeaLoopbackChannel[] createPair() {
+        final LeaLoopbackChannel a = new LeaLoopbackChannel();
+        final LeaLoopbackChannel b = new LeaLoopbackChannel();
+        a.peer = b;
+        b.peer = a;
+        return new LeaLoopbackChannel[] {a, b};
+    }
+
+    @Override
+    public boolean offer(final ByteBuffer b, final SendCallback cb) {
+        if (this.closed) {
+            return false;
+        }
+        this.executor.execute(() -> {
+            final Receiver r = this.peer.receiver;
+            if (null != r && !this.peer.closed) {
+                r.onFrame(b.duplicate());
+            }
+            if (null != cb) {
+                cb.onComplete(null != r);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void setReceiver(Receiver r) {
+        this.receiver = r;
+    }
+
+    public void close() {
+        this.closed = true;
+        this.executor.shutdown();
+    }
+}
@@ -0,0 +1,227 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Moves incoming data channel messages off the WebRTC signaling thread. The native side
+// only copies the payload into a pooled buffer and claims a slot in a bounded ring (the
+// bounded MPMC scheme by D. Vyukov, with one consumer); decoding and handlers run on the
+// dispatcher's own thread. Reliable and partially reliable channels have a ring each, and
+// the dispatcher takes from them in turn, so a flood on one cannot starve the other. A
+// full ring drops the message and counts it; for a reliable channel that breaks its
+// guarantee, so it is also logged as an error. Neither stalls the signaling thread.
+public class LeaMessageDispatcher {
+    private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":dispatch";
+
+    private static class Slot {
+        volatile long seq;
+        LeaDataChannel ch;
+        ByteBuffer data;
+        boolean binary;
+        long postedNs;
+    }
+
+    private static class Ring {
+        final Slot[] slots;
+        final int mask;
+        final AtomicLong tail = new AtomicLong();
+        // Consumer only.
+        long head;
+
+        Ring(int capacity) {
+            final int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            this.slots = new Slot[n];
+            for (int i = 0; i < n; i++) {
+                this.slots[i] = new Slot();
+                this.slots[i].seq = i;
+            }
+            this.mask = n - 1;
+        }
+
+        // The claimed position, or -1 if the ring is full.
+        long claim() {
+            long pos = this.tail.get();
+            while (true) {
+                final long d = this.slots[(int) (pos & this.mask)].seq - pos;
+                if (d == 0) {
+                    if (this.tail.compareAndSet(pos, pos + 1)) {
+                        return pos;
+                    }
+                    pos = this.tail.get();
+                } else if (d < 0) {
+                    return -1;
+                } else {
+                    pos = this.tail.get();
+                }
+            }
+        }
+
+        Slot slot(long pos) {
+            return this.slots[(int) (pos & this.mask)];
+        }
+
+        // The next published slot, or null.
+        Slot peek() {
+            final Slot s = this.slot(this.head);
+            return s.seq == this.head + 1 ? s : null;
+        }
+
+        void advance(Slot s) {
+            s.ch = null;
+            s.data = null;
+            s.seq = this.head + this.slots.length;
+            this.head++;
+        }
+    }
+
+    private final LeaDataChannelRouter router;
+    private final LeaBufferPool pool = LeaBufferPool.shared;
+    private final Ring reliable;
+    private final Ring unreliable;
+    private final Thread thread;
+    private volatile boolean parked;
+    private volatile boolean closed;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong reliableDropped = new AtomicLong();
+    // Set from the first reliable drop until a reliable message gets through again, so each
+    // such episode is logged once.
+    private volatile boolean reliableFull;
+    private final LeaLatencyHistogram postTime = new LeaLatencyHistogram();
+    private final LeaLatencyHistogram handoffLatency = new LeaLatencyHistogram();
+    private final LeaLatencyHistogram handlerTime = new LeaLatencyHistogram();
+
+    // capacity is per ring.
+    LeaMessageDispatcher(final LeaDataChannelRouter router, int capacity) {
+        this.router = router;
+        this.reliable = new Ring(capacity);
+        this.unreliable = new Ring(capacity);
+        this.thread = new Thread(this::run, "lea-dispatch");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Messages of partially reliable channels dropped because their ring was full.
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    // Messages of reliable channels dropped because their ring was full.
+    public long getReliableDroppedCount() {
+        return this.reliableDropped.get();
+    }
+
+    // Time spent on the signaling thread per message.
+    public LeaLatencyHistogram getPostTime() {
+        return this.postTime;
+    }
+
+    // From the native callback to the handler starting.
+    public LeaLatencyHistogram getHandoffLatency() {
+        return this.handoffLatency;
+    }
+
+    public LeaLatencyHistogram getHandlerTime() {
+        return this.handlerTime;
+    }
+
+    // data is only read during this call.
+    void post(LeaDataChannel ch, ByteBuffer data, boolean binary) {
+        if (this.closed) {
+            return;
+        }
+        final long t0 = System.nanoTime();
+        final boolean reliable = ch.isReliable();
+        final Ring r = reliable ? this.reliable : this.unreliable;
+        final long pos = r.claim();
+        if (pos < 0) {
+            if (reliable) {
+                this.reliableDropped.incrementAndGet();
+                if (!this.reliableFull) {
+                    this.reliableFull = true;
+                    Log.e(LOG_TAG, "queue full, dropping messages of reliable channel " + ch.getLabel());
+                }
+            } else if (this.dropped.getAndIncrement() == 0) {
+                Log.w(LOG_TAG, "queue full, dropping unreliable messages");
+            }
+            return;
+        }
+        if (reliable && this.reliableFull) {
+            this.reliableFull = false;
+        }
+        final Slot s = r.slot(pos);
+        final ByteBuffer b = this.pool.acquire(data.remaining());
+        b.put(data);
+        b.flip();
+        s.ch = ch;
+        s.data = b;
+        s.binary = binary;
+        s.postedNs = t0;
+        s.seq = pos + 1;
+        if (this.parked) {
+            LockSupport.unpark(this.thread);
+        }
+        this.postTime.record(System.nanoTime() - t0);
+    }
+
+    void close() {
+        this.closed = true;
+        LockSupport.unpark(this.thread);
+    }
+
+    private void run() {
+        // The ring to look at first; after each message it becomes the other one.
+        Ring first = this.reliable;
+        while (true) {
+            final Ring second = first == this.reliable ? this.unreliable : this.reliable;
+            Ring r = first;
+            Slot s = r.peek();
+            if (null == s) {
+                r = second;
+                s = r.peek();
+            }
+            if (null == s) {
+                if (this.closed) {
+                    return;
+                }
+                this.parked = true;
+                if (null == this.reliable.peek() && null == this.unreliable.peek() && !this.closed) {
+                    LockSupport.park(this);
+                }
+                this.parked = false;
+                continue;
+            }
+            first = r == this.reliable ? this.unreliable : this.reliable;
+            final LeaDataChannel ch = s.ch;
+            final ByteBuffer b = s.data;
+            final boolean binary = s.binary;
+            final long postedNs = s.postedNs;
+            r.advance(s);
+            this.handle(ch, b, binary, postedNs);
+        }
+    }
+
+    private void handle(LeaDataChannel ch, ByteBuffer b, boolean binary, long postedNs) {
+        if (this.closed) {
+            this.pool.release(b);
+            return;
+        }
+        final long t0 = System.nanoTime();
+        this.handoffLatency.record(t0 - postedNs);
+        try {
+            if (binary) {
+                this.router.dispatchBinary(ch, b);
+            } else {
+                final String str = StandardCharsets.UTF_8.decode(b).toString();
+                this.pool.release(b);
+                this.router.dispatchText(ch, str);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "handler: " + e.toString());
+        }
+        this.handlerTime.record(System.nanoTime() - t0);
+    }
+}
@@ -0,0 +1,241 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Owns one MediaMuxer on its own thread. Encoders hand over copies of their output through
+// a bounded queue and never wait on the disk: a sample that does not fit is dropped, and a
+// video track then skips to its next key frame and asks its encoder for one, so the file
+// never holds a frame that cannot be decoded. The muxer starts once every track declared
+// with addTrack() has reported its format; samples before that are dropped the same way.
+class LeaMp4Writer {
+    private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":mp4";
+    private static final int MAX_TRACKS = 2;
+
+    interface KeyFrameRequester {
+        void requestKeyFrame();
+    }
+
+    private static class Sample {
+        final int track;
+        final ByteBuffer data;
+        final long ptsUs;
+        final int flags;
+
+        Sample(int track, ByteBuffer data, long ptsUs, int flags) {
+            this.track = track;
+            this.data = data;
+            this.ptsUs = ptsUs;
+            this.flags = flags;
+        }
+    }
+
+    private static final Sample END = new Sample(-1, null, 0, 0);
+
+    private final LeaBufferPool pool = LeaBufferPool.shared;
+    private final MediaMuxer muxer;
+    private final ArrayBlockingQueue<Sample> queue;
+    private final Thread thread;
+    private final boolean[] video = new boolean[MAX_TRACKS];
+    private final KeyFrameRequester[] requesters = new KeyFrameRequester[MAX_TRACKS];
+    private final MediaFormat[] formats = new MediaFormat[MAX_TRACKS];
+    private int trackCount;
+    private final boolean[] needKeyFrame = new boolean[MAX_TRACKS];
+    // Touched on the writer thread only.
+    private final int[] muxerTracks = new int[MAX_TRACKS];
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private boolean started;
+    private long baseUs = -1;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long bytesWritten;
+    private volatile long samplesWritten;
+    private volatile long firstWriteMs;
+    private volatile long lastWriteMs;
+    private volatile long cpuNs;
+
+    LeaMp4Writer(String path, int capacity) throws IOException {
+        this.muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            this.needKeyFrame[i] = true;
+        }
+        this.thread = new Thread(this::run, "lea-mp4");
+        this.thread.setDaemon(true);
+    }
+
+    // Called before start(); the returned index is passed to setFormat() and write().
+    synchronized int addTrack(boolean video, KeyFrameRequester requester) {
+        final int t = this.trackCount++;
+        this.video[t] = video;
+        this.requesters[t] = requester;
+        return t;
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    // From the encoder's INFO_OUTPUT_FORMAT_CHANGED, before its first sample.
+    synchronized void setFormat(int track, MediaFormat format) {
+        this.formats[track] = format;
+    }
+
+    private synchronized boolean allFormatsSet() {
+        for (int i = 0; i < this.trackCount; i++) {
+            if (null == this.formats[i]) {
+                return false;
+            }
+        }
+        return this.trackCount > 0;
+    }
+
+    // Copies the encoder's output buffer, so the caller may release it right away.
+    void write(int track, ByteBuffer src, MediaCodec.BufferInfo info) {
+        src.position(info.offset);
+        src.limit(info.offset + info.size);
+        final ByteBuffer b = this.pool.acquire(info.size);
+        b.put(src);
+        b.flip();
+        if (!this.queue.offer(new Sample(track, b, info.presentationTimeUs, info.flags))) {
+            this.pool.release(b);
+            this.onDropped(track, info.flags);
+        }
+    }
+
+    // Drains what is queued, then finalizes the file.
+    void close() {
+        while (!this.queue.offer(END)) {
+            final Sample s = this.queue.poll();
+            if (null != s && s != END) {
+                this.pool.release(s.data);
+                this.dropped.incrementAndGet();
+            }
+        }
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    public long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    public long getSamplesWritten() {
+        return this.samplesWritten;
+    }
+
+    // Average since the first sample reached the file.
+    public long getWriteKbps() {
+        final long ms = this.lastWriteMs - this.firstWriteMs;
+        return ms > 0 ? this.bytesWritten * 8 / ms : 0;
+    }
+
+    public long getCpuTimeNs() {
+        return this.cpuNs;
+    }
+
+    // Losing a key frame, or the first delta frame after one, means waiting for a new key.
+    private void onDropped(int track, int flags) {
+        this.dropped.incrementAndGet();
+        if (!this.video[track]) {
+            return;
+        }
+        synchronized (this) {
+            if (this.needKeyFrame[track] && (flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                return;
+            }
+            this.needKeyFrame[track] = true;
+        }
+        this.requesters[track].requestKeyFrame();
+    }
+
+    private void run() {
+        while (true) {
+            final Sample s;
+            try {
+                s = this.queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (s == END) {
+                break;
+            }
+            this.writeSample(s);
+            this.pool.release(s.data);
+            this.cpuNs = Debug.threadCpuTimeNanos();
+        }
+        try {
+            if (this.started) {
+                this.muxer.stop();
+            }
+        } catch (IllegalStateException e) {
+            Log.e(LOG_TAG, "finalizing: " + e.toString());
+        }
+        this.muxer.release();
+        this.cpuNs = Debug.threadCpuTimeNanos();
+    }
+
+    private void writeSample(Sample s) {
+        if (!this.started) {
+            if (!this.allFormatsSet()) {
+                this.onDropped(s.track, s.flags);
+                return;
+            }
+            synchronized (this) {
+                for (int i = 0; i < this.trackCount; i++) {
+                    this.muxerTracks[i] = this.muxer.addTrack(this.formats[i]);
+                }
+            }
+            this.muxer.start();
+            this.started = true;
+        }
+        final boolean key = (s.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (this.video[s.track]) {
+            synchronized (this) {
+                if (this.needKeyFrame[s.track]) {
+                    if (!key) {
+                        this.dropped.incrementAndGet();
+                        return;
+                    }
+                    this.needKeyFrame[s.track] = false;
+                }
+            }
+        }
+        // Tracks share the first written sample's time as zero.
+        if (this.baseUs < 0) {
+            this.baseUs = s.ptsUs;
+        }
+        if (s.ptsUs < this.baseUs) {
+            this.onDropped(s.track, s.flags);
+            return;
+        }
+        this.info.set(0, s.data.remaining(), s.ptsUs - this.baseUs, s.flags);
+        try {
+            this.muxer.writeSampleData(this.muxerTracks[s.track], s.data, this.info);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            this.onDropped(s.track, s.flags);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (this.samplesWritten == 0) {
+            this.firstWriteMs = now;
+        }
+        this.lastWriteMs = now;
+        this.samplesWritten++;
+        this.bytesWritten += this.info.size;
+    }
+}
@@ -1,10 +1,13 @@
 package com.ldeng7.learningwebrtc.webrtcclient;
 
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
+
 import org.webrtc.DataChannel;
 import org.webrtc.IceCandidate;
 import org.webrtc.MediaStream;
 import org.webrtc.PeerConnection;
 import org.webrtc.RtpReceiver;
+import org.webrtc.RtpTransceiver;
 
 class LeaPeerConnectionObserver implements PeerConnection.Observer {
     private final LeaWebRTCClient webRTCClient;
@@ -16,9 +19,7 @@ class LeaPeerConnectionObserver implements PeerConnection.Observer {
     }
 
     @Override public void onSignalingChange(PeerConnection.SignalingState signalingState) {}
-    @Override public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {}
     @Override public void onIceConnectionReceivingChange(boolean b) {}
-    @Override public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {}
     @Override public void onIceCandidatesRemoved(IceCandidate[] iceCandidates) {}
     @Override public void onRemoveStream(MediaStream mediaStream) {}
     @Override public void onRenegotiationNeeded() {}
@@ -27,15 +28,38 @@ class LeaPeerConnectionObserver implements PeerConnection.Observer {
 
     @Override
     public void onIceCandidate(IceCandidate iceCandidate) {
+        this.webRTCClient.timings.mark(LeaCallTimings.EMark.FIRST_CANDIDATE);
+        this.webRTCClient.metrics.onLocalCandidate();
         LeaWebSocketMessage.CandidateData data = new LeaWebSocketMessage.CandidateData();
         data.candidate = iceCandidate.sdp;
         data.sdpMid = iceCandidate.sdpMid;
         data.sdpMLineIndex = iceCandidate.sdpMLineIndex;
-        this.webSocketClient.send(LeaWebSocketMessage.EPhase.CAND, data);
+        this.webSocketClient.getSession().onLocalCandidate(data);
+    }
+
+    @Override
+    public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
+        LeaTrace.event(LeaTrace.EEvent.ICE_CONNECTION_STATE, iceConnectionState.ordinal());
+        this.webSocketClient.getSupervisor().onIceConnectionChange(iceConnectionState);
+        if (iceConnectionState == PeerConnection.IceConnectionState.CONNECTED) {
+            this.webSocketClient.getSession().onConnected();
+            this.webRTCClient.onIceConnected();
+        }
     }
 
     @Override
-    public void onAddStream(MediaStream mediaStream) {
-        this.webRTCClient.addRemoteStream(mediaStream);
+    public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
+        LeaTrace.event(LeaTrace.EEvent.ICE_GATHERING_STATE, iceGatheringState.ordinal());
+        if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
+            this.webSocketClient.getSession().onGatheringComplete();
+        }
+    }
+
+    @Override public void onAddStream(MediaStream mediaStream) {}
+
+    // Unified Plan reports remote media per transceiver.
+    @Override
+    public void onTrack(RtpTransceiver transceiver) {
+        this.webRTCClient.onRemoteTrack(transceiver);
     }
 }
@@ -0,0 +1,173 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One MediaCodec encoder feeding a LeaMp4Writer track from its own thread. Producers post
+// work with offer(), which drops instead of queueing more than maxPending tasks, so the
+// capture and render threads never wait on the codec.
+abstract class LeaRecordEncoder implements LeaMp4Writer.KeyFrameRequester {
+    static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":record";
+    private static final long EOS_TIMEOUT_US = 10_000;
+    private static final int EOS_MAX_TRIES = 100;
+
+    final LeaMp4Writer writer;
+    final int track;
+    private final int maxPending;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final LeaLatencyHistogram encodeTime = new LeaLatencyHistogram();
+    private volatile long cpuNs;
+    private volatile boolean closed;
+    // Touched on the encoder thread only; null until configured or after a failure.
+    MediaCodec codec;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    LeaRecordEncoder(String name, LeaMp4Writer writer, boolean video, int maxPending) {
+        this.writer = writer;
+        this.track = writer.addTrack(video, this);
+        this.maxPending = maxPending;
+        this.thread = new HandlerThread(name);
+        this.thread.start();
+        this.handler = new Handler(this.thread.getLooper());
+    }
+
+    // Asks the codec for end of stream; the output is then drained until it arrives.
+    abstract void signalEndOfStream();
+
+    // Frees whatever the subclass built along with the codec.
+    abstract void releaseResources();
+
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    // Per posted task on the encoder thread.
+    public LeaLatencyHistogram getEncodeTime() {
+        return this.encodeTime;
+    }
+
+    public long getCpuTimeNs() {
+        return this.cpuNs;
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    // Returns false if r was dropped, in which case it never runs.
+    boolean offer(final Runnable r) {
+        if (this.closed) {
+            return false;
+        }
+        if (this.pending.incrementAndGet() > this.maxPending) {
+            this.pending.decrementAndGet();
+            this.dropped.incrementAndGet();
+            return false;
+        }
+        final boolean posted = this.handler.post(() -> {
+            final long t0 = System.nanoTime();
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "encoding: " + e.toString());
+                this.fail();
+            } finally {
+                this.pending.decrementAndGet();
+                this.encodeTime.record(System.nanoTime() - t0);
+                this.cpuNs = Debug.threadCpuTimeNanos();
+            }
+        });
+        if (!posted) {
+            this.pending.decrementAndGet();
+        }
+        return posted;
+    }
+
+    // Moves everything the codec has produced to the writer. At end of stream it waits,
+    // boundedly, for the codec to flush.
+    void drain(boolean eos) {
+        int tries = 0;
+        while (null != this.codec) {
+            final int i = this.codec.dequeueOutputBuffer(this.info, eos ? EOS_TIMEOUT_US : 0);
+            if (i == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!eos || ++tries > EOS_MAX_TRIES) {
+                    return;
+                }
+            } else if (i == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                this.writer.setFormat(this.track, this.codec.getOutputFormat());
+            } else if (i >= 0) {
+                if ((this.info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && this.info.size > 0) {
+                    this.writer.write(this.track, this.codec.getOutputBuffer(i), this.info);
+                }
+                this.codec.releaseOutputBuffer(i, false);
+                if ((this.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Stops encoding after a codec error; later work is dropped.
+    void fail() {
+        this.closed = true;
+        this.releaseCodec();
+    }
+
+    private void releaseCodec() {
+        if (null != this.codec) {
+            try {
+                this.codec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "stopping codec: " + e.toString());
+            }
+            this.codec.release();
+            this.codec = null;
+        }
+        this.releaseResources();
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        this.handler.post(() -> {
+            if (null != this.codec) {
+                final Bundle b = new Bundle();
+                b.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                this.codec.setParameters(b);
+            }
+        });
+    }
+
+    // Runs what is already posted, flushes the codec into the writer and stops the thread.
+    // The writer is closed by the owner afterwards.
+    void close() {
+        this.closed = true;
+        this.handler.post(() -> {
+            if (null != this.codec) {
+                try {
+                    this.signalEndOfStream();
+                    this.drain(true);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "flushing: " + e.toString());
+                }
+            }
+            this.releaseCodec();
+            this.cpuNs = Debug.threadCpuTimeNanos();
+        });
+        this.thread.quitSafely();
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
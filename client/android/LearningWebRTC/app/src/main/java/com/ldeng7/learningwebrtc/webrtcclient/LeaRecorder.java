@@ -0,0 +1,127 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.EglBase;
+import org.webrtc.VideoSink;
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+import java.io.File;
+import java.io.IOException;
+
+// Records one side of a call to an MP4 file: a video track through getVideoSink() and/or
+// the microphone, each hardware-encoded on its own thread and muxed on a third. Under load
+// frames and samples are dropped and counted, never waited for, so recording cannot stall
+// capture, decoding or playout.
+public class LeaRecorder {
+    public static final int DEFAULT_VIDEO_BITRATE = 2_000_000;
+    public static final int DEFAULT_AUDIO_BITRATE = 64_000;
+    public static final int DEFAULT_FPS = 30;
+    // Frames waiting for the video encoder, 10 ms buffers for the audio one, and encoded
+    // samples for the muxer.
+    public static final int DEFAULT_VIDEO_QUEUE = 3;
+    public static final int DEFAULT_AUDIO_QUEUE = 20;
+    public static final int DEFAULT_WRITE_QUEUE = 120;
+
+    private final File file;
+    private final LeaMp4Writer writer;
+    private final LeaVideoRecordEncoder video;
+    private final LeaAudioRecordEncoder audio;
+    private final long startMs = System.currentTimeMillis();
+    private volatile long stopMs;
+
+    // eglContext null records no video.
+    LeaRecorder(final File file, final EglBase.Context eglContext, boolean audio) throws IOException {
+        this.file = file;
+        this.writer = new LeaMp4Writer(file.getPath(), DEFAULT_WRITE_QUEUE);
+        this.video = null != eglContext ? new LeaVideoRecordEncoder(eglContext, this.writer,
+            DEFAULT_VIDEO_BITRATE, DEFAULT_FPS, DEFAULT_VIDEO_QUEUE) : null;
+        this.audio = audio ? new LeaAudioRecordEncoder(this.writer, DEFAULT_AUDIO_BITRATE, DEFAULT_AUDIO_QUEUE) : null;
+        this.writer.start();
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    // null without video.
+    VideoSink getVideoSink() {
+        return this.video;
+    }
+
+    // null without audio.
+    JavaAudioDeviceModule.SamplesReadyCallback getSamplesCallback() {
+        return this.audio;
+    }
+
+    // Flushes both encoders and finalizes the file; detach the sink and callback first.
+    void close() {
+        if (null != this.video) {
+            this.video.close();
+        }
+        if (null != this.audio) {
+            this.audio.close();
+        }
+        this.writer.close();
+        this.stopMs = System.currentTimeMillis();
+    }
+
+    public long getVideoFrameCount() {
+        return null != this.video ? this.video.getFrameCount() : 0;
+    }
+
+    // Frames that arrived while the video encoder was DEFAULT_VIDEO_QUEUE frames behind.
+    public long getDroppedVideoFrames() {
+        return null != this.video ? this.video.getDroppedCount() : 0;
+    }
+
+    public long getDroppedAudioBuffers() {
+        return null != this.audio ? this.audio.getDroppedCount() : 0;
+    }
+
+    // Encoded samples the muxer could not take, plus video ones skipped until a key frame.
+    public long getDroppedSamples() {
+        return this.writer.getDroppedCount();
+    }
+
+    // null without video.
+    public LeaLatencyHistogram getVideoEncodeTime() {
+        return null != this.video ? this.video.getEncodeTime() : null;
+    }
+
+    public long getBytesWritten() {
+        return this.writer.getBytesWritten();
+    }
+
+    public long getWriteKbps() {
+        return this.writer.getWriteKbps();
+    }
+
+    // CPU time of the encoder and muxer threads; the codecs' own work is not included.
+    public long getCpuTimeMs() {
+        long ns = this.writer.getCpuTimeNs();
+        if (null != this.video) {
+            ns += this.video.getCpuTimeNs();
+        }
+        if (null != this.audio) {
+            ns += this.audio.getCpuTimeNs();
+        }
+        return ns / 1_000_000;
+    }
+
+    // getCpuTimeMs() as a share of one core over the recording so far.
+    public double getCpuLoad() {
+        final long end = 0 != this.stopMs ? this.stopMs : System.currentTimeMillis();
+        final long ms = end - this.startMs;
+        return ms > 0 ? (double) this.getCpuTimeMs() / ms : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "frames=" + this.getVideoFrameCount() +
+            " dropped_frames=" + this.getDroppedVideoFrames() +
+            " dropped_audio=" + this.getDroppedAudioBuffers() +
+            " dropped_samples=" + this.getDroppedSamples() +
+            " bytes=" + this.getBytesWritten() +
+            " kbps=" + this.getWriteKbps() +
+            " cpu_ms=" + this.getCpuTimeMs();
+    }
+}
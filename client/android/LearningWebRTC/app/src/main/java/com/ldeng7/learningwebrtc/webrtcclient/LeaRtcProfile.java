@@ -0,0 +1,75 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.PeerConnection;
+
+import java.io.Serializable;
+
+// Transport settings of the PeerConnection. of() gives the named presets; fields may be
+// changed afterwards. Compare presets by the "candidates" count and the ice_connected setup
+// mark in the call's metrics summaries.
+public class LeaRtcProfile implements Serializable {
+    public enum EPreset {
+        // WebRTC's defaults. Gathering completes, so the candidate batch is flushed as soon
+        // as the last candidate is known.
+        DEFAULT,
+        // One transport for everything, no TCP candidates and a pre-gathered pool: fewer
+        // candidates to exchange and check before the first pair connects. Gathers
+        // continually, so candidates for a new network are ready when an ICE restart needs
+        // them; the candidate batch is then flushed by its timer alone.
+        FAST_CONNECT,
+        // Only TURN candidates, e.g. where the TURN server is the only allowed path or peers
+        // must not learn each other's addresses. Needs Conf.turnServer.
+        RELAY_ONLY,
+        // As FAST_CONNECT, but skips networks Android reports as metered (cellular).
+        LOW_COST,
+    }
+
+    public EPreset preset;
+    public PeerConnection.BundlePolicy bundlePolicy = PeerConnection.BundlePolicy.BALANCED;
+    public PeerConnection.RtcpMuxPolicy rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+    public PeerConnection.TcpCandidatePolicy tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.ENABLED;
+    public PeerConnection.CandidateNetworkPolicy candidateNetworkPolicy = PeerConnection.CandidateNetworkPolicy.ALL;
+    public PeerConnection.IceTransportsType iceTransportsType = PeerConnection.IceTransportsType.ALL;
+    // GATHER_CONTINUALLY keeps gathering as networks come and go, but gathering then never
+    // reaches COMPLETE.
+    public PeerConnection.ContinualGatheringPolicy continualGatheringPolicy =
+        PeerConnection.ContinualGatheringPolicy.GATHER_ONCE;
+    // Candidates gathered ahead of the first offer; 0 gathers on demand.
+    public int iceCandidatePoolSize;
+
+    public static LeaRtcProfile of(EPreset preset) {
+        final LeaRtcProfile p = new LeaRtcProfile();
+        p.preset = preset;
+        switch (preset) {
+            case FAST_CONNECT:
+            case LOW_COST:
+                p.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+                p.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+                p.iceCandidatePoolSize = 2;
+                p.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+                if (preset == EPreset.LOW_COST) {
+                    p.candidateNetworkPolicy = PeerConnection.CandidateNetworkPolicy.LOW_COST;
+                }
+                break;
+            case RELAY_ONLY:
+                p.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+                p.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+                p.iceTransportsType = PeerConnection.IceTransportsType.RELAY;
+                p.iceCandidatePoolSize = 1;
+                break;
+            default:
+                break;
+        }
+        return p;
+    }
+
+    void apply(PeerConnection.RTCConfiguration c) {
+        c.bundlePolicy = this.bundlePolicy;
+        c.rtcpMuxPolicy = this.rtcpMuxPolicy;
+        c.tcpCandidatePolicy = this.tcpCandidatePolicy;
+        c.candidateNetworkPolicy = this.candidateNetworkPolicy;
+        c.iceTransportsType = this.iceTransportsType;
+        c.continualGatheringPolicy = this.continualGatheringPolicy;
+        c.iceCandidatePoolSize = this.iceCandidatePoolSize;
+    }
+}
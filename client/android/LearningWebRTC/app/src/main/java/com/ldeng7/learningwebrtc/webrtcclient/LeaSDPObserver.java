@@ -1,6 +1,7 @@
 package com.ldeng7.learningwebrtc.webrtcclient;
 
-import android.util.Log;
+import com.ldeng7.learningwebrtc.signaling.LeaSignalingSession;
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
 
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
@@ -9,30 +10,45 @@ class LeaSDPObserver implements SdpObserver {
     private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":sdp";
 
     private final LeaWebRTCClient webRTCClient;
-    private final LeaWebSocketClient webSocketClient;
-    private final LeaWebSocketMessage.EPhase phase;
+    private final LeaSignalingSession session;
+    private final boolean remote;
 
-    LeaSDPObserver(final LeaWebRTCClient webRTCClient, final LeaWebSocketClient webSocketClient,
-            final LeaWebSocketMessage.EPhase phase) {
+    LeaSDPObserver(final LeaWebRTCClient webRTCClient, final LeaSignalingSession session, boolean remote) {
         this.webRTCClient = webRTCClient;
-        this.webSocketClient = webSocketClient;
-        this.phase = phase;
+        this.session = session;
+        this.remote = remote;
     }
 
-    @Override public void onSetSuccess() {}
-    @Override public void onSetFailure(String s) {}
+    // The offerer only ever creates offers and is sent answers, the answerer the reverse.
+    private LeaWebSocketMessage.EPhase phase() {
+        return this.session.isOfferer() != this.remote ?
+            LeaWebSocketMessage.EPhase.OFFER : LeaWebSocketMessage.EPhase.ANS;
+    }
+
+    @Override
+    public void onSetSuccess() {
+        if (this.remote) {
+            LeaTrace.event(LeaTrace.EEvent.REMOTE_SDP_SET, this.phase().ordinal());
+            this.webRTCClient.timings.mark(LeaCallTimings.EMark.REMOTE_SDP_SET);
+            this.session.onRemoteDescriptionSet();
+        }
+    }
+
+    @Override
+    public void onSetFailure(String s) {
+        LeaTrace.error(LeaTrace.EEvent.SDP_SET_FAILURE, this.remote ? 1 : 0, LOG_TAG, "setting: " + s);
+    }
 
     @Override
-    public void onCreateSuccess(SessionDescription sdp) {
+    public void onCreateSuccess(SessionDescription created) {
+        final SessionDescription sdp = new SessionDescription(created.type,
+            this.webRTCClient.tuneSdp(created.description, true));
         this.webRTCClient.getPeerConnection().setLocalDescription(this, sdp);
-        LeaWebSocketMessage.SdpData data = new LeaWebSocketMessage.SdpData();
-        data.type = sdp.type.canonicalForm();
-        data.sdp = sdp.description;
-        this.webSocketClient.send(this.phase, data);
+        this.session.onLocalDescription(sdp.type.canonicalForm(), sdp.description);
     }
 
     @Override
     public void onCreateFailure(String s) {
-        Log.e(LOG_TAG, "creation: " + s);
+        LeaTrace.error(LeaTrace.EEvent.SDP_CREATE_FAILURE, this.phase().ordinal(), LOG_TAG, "creation: " + s);
     }
 }
@@ -0,0 +1,336 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Line model of a session description, with no Android or native dependencies. parse()
+// splits the text in a single pass into session lines and media sections, keeping every
+// line and its line ending as it was, so toString() gives back the input byte for byte
+// unless something was edited. Only the m= line is broken into fields; attributes stay raw lines and are looked
+// up by prefix.
+public class LeaSdp {
+    // Edits a description before it is applied and sent (local) or applied (remote).
+    public interface Transform {
+        void apply(LeaSdp sdp, boolean local);
+    }
+
+    // Lines without their endings. Each remembers the ending it was parsed with, which a
+    // replacement keeps; added lines take the description's default ending.
+    static class Lines extends AbstractList<String> {
+        private final ArrayList<String> text = new ArrayList<>();
+        private final ArrayList<String> endings = new ArrayList<>();
+        private final String eol;
+
+        Lines(String eol) {
+            this.eol = eol;
+        }
+
+        void addParsed(String line, String ending) {
+            this.text.add(line);
+            this.endings.add(ending);
+        }
+
+        String getEnding(int i) {
+            return this.endings.get(i);
+        }
+
+        @Override
+        public String get(int i) {
+            return this.text.get(i);
+        }
+
+        @Override
+        public int size() {
+            return this.text.size();
+        }
+
+        @Override
+        public String set(int i, String line) {
+            return this.text.set(i, line);
+        }
+
+        @Override
+        public void add(int i, String line) {
+            this.text.add(i, line);
+            this.endings.add(i, this.eol);
+        }
+
+        @Override
+        public String remove(int i) {
+            this.endings.remove(i);
+            return this.text.remove(i);
+        }
+    }
+
+    public static class Media {
+        private String mLine;
+        private final String mEnding;
+        private final String kind;
+        private final String port;
+        private final String proto;
+        private final ArrayList<String> formats = new ArrayList<>();
+        private boolean formatsChanged;
+        final Lines lines;
+
+        Media(String mLine, String mEnding, String eol) {
+            this.mLine = mLine;
+            this.mEnding = mEnding;
+            this.lines = new Lines(eol);
+            final int kindEnd = indexOfOrEnd(mLine, ' ', 2);
+            final int portEnd = indexOfOrEnd(mLine, ' ', kindEnd + 1);
+            final int protoEnd = indexOfOrEnd(mLine, ' ', portEnd + 1);
+            this.kind = mLine.substring(2, kindEnd);
+            this.port = mLine.substring(Math.min(kindEnd + 1, portEnd), portEnd);
+            this.proto = mLine.substring(Math.min(portEnd + 1, protoEnd), protoEnd);
+            int at = protoEnd + 1;
+            while (at < mLine.length()) {
+                final int end = indexOfOrEnd(mLine, ' ', at);
+                if (end > at) {
+                    this.formats.add(mLine.substring(at, end));
+                }
+                at = end + 1;
+            }
+        }
+
+        public String getKind() {
+            return this.kind;
+        }
+
+        public String getPort() {
+            return this.port;
+        }
+
+        public String getProto() {
+            return this.proto;
+        }
+
+        // Payload types in m= line order.
+        public List<String> getFormats() {
+            return this.formats;
+        }
+
+        public void setFormats(Collection<String> formats) {
+            this.formats.clear();
+            this.formats.addAll(formats);
+            this.formatsChanged = true;
+        }
+
+        // Attribute and other lines following the m= line, without line endings.
+        public List<String> getLines() {
+            return this.lines;
+        }
+
+        // The first line starting with prefix, or null.
+        public String find(String prefix) {
+            final int i = this.indexOf(prefix, 0);
+            return i < 0 ? null : this.lines.get(i);
+        }
+
+        public int indexOf(String prefix, int from) {
+            for (int i = from; i < this.lines.size(); i++) {
+                if (this.lines.get(i).startsWith(prefix)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Replaces the first line starting with prefix by line, or appends line after the
+        // last line starting with after (or at the end) if there is none.
+        public void set(String prefix, String line, String after) {
+            final int i = this.indexOf(prefix, 0);
+            if (i >= 0) {
+                this.lines.set(i, line);
+                return;
+            }
+            int at = this.lines.size();
+            if (null != after) {
+                for (int j = this.lines.size() - 1; j >= 0; j--) {
+                    if (this.lines.get(j).startsWith(after)) {
+                        at = j + 1;
+                        break;
+                    }
+                }
+            }
+            this.lines.add(at, line);
+        }
+
+        public int remove(String prefix) {
+            int removed = 0;
+            for (int i = this.lines.size() - 1; i >= 0; i--) {
+                if (this.lines.get(i).startsWith(prefix)) {
+                    this.lines.remove(i);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        // The encoding name of a payload type from its a=rtpmap line, e.g. "VP8", or null.
+        public String getCodec(String pt) {
+            final String l = this.find("a=rtpmap:" + pt + " ");
+            if (null == l) {
+                return null;
+            }
+            final int start = "a=rtpmap:".length() + pt.length() + 1;
+            return l.substring(start, indexOfOrEnd(l, '/', start));
+        }
+
+        // The fmtp parameters of a payload type, e.g. "minptime=10;useinbandfec=1", or null.
+        public String getFmtp(String pt) {
+            final String l = this.find("a=fmtp:" + pt + " ");
+            return null == l ? null : l.substring("a=fmtp:".length() + pt.length() + 1);
+        }
+
+        public void setFmtp(String pt, String params) {
+            this.set("a=fmtp:" + pt + " ", "a=fmtp:" + pt + " " + params, "a=rtpmap:" + pt + " ");
+        }
+
+        // The payload type whose fmtp has apt=pt, i.e. its RTX payload, or null.
+        public String getRtx(String pt) {
+            for (String l : this.lines) {
+                if (l.startsWith("a=fmtp:") && fmtpParam(l, "apt").equals(pt)) {
+                    return l.substring("a=fmtp:".length(), l.indexOf(' '));
+                }
+            }
+            return null;
+        }
+
+        // Drops a payload type from the m= line along with its rtpmap, fmtp and rtcp-fb lines.
+        public void removeFormat(String pt) {
+            if (this.formats.remove(pt)) {
+                this.formatsChanged = true;
+            }
+            this.remove("a=rtpmap:" + pt + " ");
+            this.remove("a=fmtp:" + pt + " ");
+            this.remove("a=rtcp-fb:" + pt + " ");
+        }
+
+        String getMLine() {
+            if (this.formatsChanged) {
+                final StringBuilder sb = new StringBuilder(this.mLine.length());
+                sb.append("m=").append(this.kind).append(' ').append(this.port).append(' ').append(this.proto);
+                for (String f : this.formats) {
+                    sb.append(' ').append(f);
+                }
+                this.mLine = sb.toString();
+                this.formatsChanged = false;
+            }
+            return this.mLine;
+        }
+    }
+
+    private final String eol;
+    private final boolean trailingEol;
+    final Lines sessionLines;
+    final ArrayList<Media> media = new ArrayList<>();
+    private final int length;
+
+    private LeaSdp(String eol, boolean trailingEol, int length) {
+        this.eol = eol;
+        this.trailingEol = trailingEol;
+        this.length = length;
+        this.sessionLines = new Lines(eol);
+    }
+
+    // Every line keeps its own ending; lines added by edits take the first line's. WebRTC
+    // always writes CRLF, but hand-edited or relayed descriptions may mix in bare LF.
+    public static LeaSdp parse(String sdp) {
+        final int n = sdp.length();
+        final int firstNl = sdp.indexOf('\n');
+        final boolean crlf = firstNl > 0 && sdp.charAt(firstNl - 1) == '\r';
+        final LeaSdp d = new LeaSdp(crlf ? "\r\n" : "\n", n > 0 && sdp.charAt(n - 1) == '\n', n);
+        Media m = null;
+        int at = 0;
+        while (at < n) {
+            final int nl = indexOfOrEnd(sdp, '\n', at);
+            final int end = nl > at && sdp.charAt(nl - 1) == '\r' ? nl - 1 : nl;
+            final String line = sdp.substring(at, end);
+            final String ending = sdp.substring(end, Math.min(nl + 1, n));
+            if (line.startsWith("m=")) {
+                m = new Media(line, ending, d.eol);
+                d.media.add(m);
+            } else if (null != m) {
+                m.lines.addParsed(line, ending);
+            } else {
+                d.sessionLines.addParsed(line, ending);
+            }
+            at = nl + 1;
+        }
+        return d;
+    }
+
+    public List<String> getSessionLines() {
+        return this.sessionLines;
+    }
+
+    public List<Media> getMedia() {
+        return this.media;
+    }
+
+    // Sections whose m= kind is kind ("audio", "video", "application").
+    public List<Media> getMedia(String kind) {
+        final ArrayList<Media> r = new ArrayList<>(2);
+        for (Media m : this.media) {
+            if (m.kind.equals(kind)) {
+                r.add(m);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(this.length + 64);
+        String ending = this.append(sb, this.sessionLines, null);
+        for (Media m : this.media) {
+            ending = this.append(sb, m.getMLine(), m.mEnding, ending);
+            ending = this.append(sb, m.lines, ending);
+        }
+        if (this.trailingEol && null != ending) {
+            sb.append(ending.isEmpty() ? this.eol : ending);
+        }
+        return sb.toString();
+    }
+
+    private String append(StringBuilder sb, Lines lines, String prev) {
+        for (int i = 0; i < lines.size(); i++) {
+            prev = this.append(sb, lines.get(i), lines.getEnding(i), prev);
+        }
+        return prev;
+    }
+
+    // Ends the previous line, if any, then appends line; returns line's own ending, which
+    // is empty only for an unterminated last line.
+    private String append(StringBuilder sb, String line, String ending, String prev) {
+        if (null != prev) {
+            sb.append(prev.isEmpty() ? this.eol : prev);
+        }
+        sb.append(line);
+        return ending;
+    }
+
+    // The value of key in an a=fmtp line, or "" if absent.
+    static String fmtpParam(String fmtp, String key) {
+        int at = fmtp.indexOf(' ') + 1;
+        while (at < fmtp.length()) {
+            final int end = indexOfOrEnd(fmtp, ';', at);
+            int k = at;
+            while (k < end && fmtp.charAt(k) == ' ') {
+                k++;
+            }
+            if (fmtp.startsWith(key, k) && k + key.length() < end && fmtp.charAt(k + key.length()) == '=') {
+                return fmtp.substring(k + key.length() + 1, end);
+            }
+            at = end + 1;
+        }
+        return "";
+    }
+
+    private static int indexOfOrEnd(String s, char c, int from) {
+        final int i = s.indexOf(c, from);
+        return i < 0 ? s.length() : i;
+    }
+}
@@ -0,0 +1,184 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// SDP edits that have no API in this WebRTC version, as transforms over LeaSdp.
+public class LeaSdpMunger {
+    // Sets Opus useinbandfec/usedtx in its fmtp line and a=ptime in the audio section, for
+    // both the local description (what we ask the remote encoder for) and the remote one
+    // (what our encoder is allowed to do).
+    public static LeaSdp.Transform tuneOpus(final int ptimeMs, final boolean fec, final boolean dtx) {
+        return (sdp, local) -> {
+            for (LeaSdp.Media m : sdp.getMedia("audio")) {
+                for (String pt : m.getFormats()) {
+                    if (!"opus".equalsIgnoreCase(m.getCodec(pt))) {
+                        continue;
+                    }
+                    final String params = m.getFmtp(pt);
+                    if (null != params) {
+                        m.setFmtp(pt, setParams(params, fec, dtx));
+                    }
+                    break;
+                }
+                if (ptimeMs > 0) {
+                    m.set("a=ptime:", "a=ptime:" + ptimeMs, null);
+                }
+            }
+        };
+    }
+
+    // Reorders the payload types of every m=<kind> section so codecs named in prefs come
+    // first, in that order, each followed by its RTX payload. Other codecs keep their
+    // relative order behind them.
+    public static LeaSdp.Transform preferCodecs(final String kind, final List<String> prefs) {
+        return (sdp, local) -> {
+            for (LeaSdp.Media m : sdp.getMedia(kind)) {
+                final LinkedHashSet<String> order = new LinkedHashSet<>();
+                for (String pref : prefs) {
+                    for (String pt : m.getFormats()) {
+                        if (pref.equalsIgnoreCase(m.getCodec(pt))) {
+                            order.add(pt);
+                            final String rtx = m.getRtx(pt);
+                            if (null != rtx) {
+                                order.add(rtx);
+                            }
+                        }
+                    }
+                }
+                order.addAll(m.getFormats());
+                m.setFormats(order);
+            }
+        };
+    }
+
+    // Drops every codec of m=<kind> sections not named in keep. RTX payloads are kept for
+    // kept codecs if "rtx" is named too; likewise "red" and "ulpfec".
+    public static LeaSdp.Transform keepCodecs(final String kind, final List<String> keep) {
+        return (sdp, local) -> {
+            for (LeaSdp.Media m : sdp.getMedia(kind)) {
+                final ArrayList<String> drop = new ArrayList<>();
+                for (String pt : m.getFormats()) {
+                    final String codec = m.getCodec(pt);
+                    if (null == codec) {
+                        continue;
+                    }
+                    if ("rtx".equalsIgnoreCase(codec)) {
+                        final String apt = LeaSdp.fmtpParam("a=fmtp:" + pt + " " + m.getFmtp(pt), "apt");
+                        if (containsIgnoreCase(keep, codec) && containsIgnoreCase(keep, m.getCodec(apt))) {
+                            continue;
+                        }
+                    } else if (containsIgnoreCase(keep, codec)) {
+                        continue;
+                    }
+                    drop.add(pt);
+                }
+                // Keep the section valid if nothing would be left.
+                if (drop.size() < m.getFormats().size()) {
+                    for (String pt : drop) {
+                        m.removeFormat(pt);
+                    }
+                }
+            }
+        };
+    }
+
+    // Caps what the remote side may send us in m=<kind> sections, as b=AS in kbps. Only the
+    // local description is edited: b=AS on the remote one would cap our own sending.
+    public static LeaSdp.Transform bandwidth(final String kind, final int kbps) {
+        return (sdp, local) -> {
+            if (!local) {
+                return;
+            }
+            for (LeaSdp.Media m : sdp.getMedia(kind)) {
+                m.remove("b=TIAS:");
+                m.set("b=AS:", "b=AS:" + kbps, "c=");
+            }
+        };
+    }
+
+    // Adds x-google-{min,start,max}-bitrate (kbps, 0 to leave one out) to the fmtp of every
+    // video codec but RTX, RED and ULPFEC, bounding the sender's bandwidth estimate.
+    public static LeaSdp.Transform googleBitrates(final int minKbps, final int startKbps, final int maxKbps) {
+        return (sdp, local) -> {
+            for (LeaSdp.Media m : sdp.getMedia("video")) {
+                for (String pt : m.getFormats()) {
+                    final String codec = m.getCodec(pt);
+                    if (null == codec || "rtx".equalsIgnoreCase(codec) || "red".equalsIgnoreCase(codec) ||
+                            "ulpfec".equalsIgnoreCase(codec)) {
+                        continue;
+                    }
+                    String params = m.getFmtp(pt);
+                    params = setParam(params, "x-google-min-bitrate", minKbps);
+                    params = setParam(params, "x-google-start-bitrate", startKbps);
+                    params = setParam(params, "x-google-max-bitrate", maxKbps);
+                    if (null != params) {
+                        m.setFmtp(pt, params);
+                    }
+                }
+            }
+        };
+    }
+
+    // Drops a=candidate lines of TCP candidates, which we never end up using when UDP works.
+    public static LeaSdp.Transform dropTcpCandidates() {
+        return (sdp, local) -> {
+            for (LeaSdp.Media m : sdp.getMedia()) {
+                final List<String> lines = m.getLines();
+                for (int i = lines.size() - 1; i >= 0; i--) {
+                    final String l = lines.get(i);
+                    if (l.startsWith("a=candidate:") && isTcpCandidate(l)) {
+                        lines.remove(i);
+                    }
+                }
+            }
+        };
+    }
+
+    // a=candidate:<foundation> <component> <transport> ...
+    static boolean isTcpCandidate(String l) {
+        int at = l.indexOf(' ');
+        at = at < 0 ? -1 : l.indexOf(' ', at + 1);
+        return at > 0 && l.regionMatches(true, at + 1, "tcp ", 0, 4);
+    }
+
+    private static boolean containsIgnoreCase(List<String> names, String name) {
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String setParam(String params, String key, int value) {
+        if (value <= 0) {
+            return params;
+        }
+        final StringBuilder sb = new StringBuilder();
+        if (null != params) {
+            for (String p : params.split(";")) {
+                final String k = p.trim();
+                if (!k.isEmpty() && !k.startsWith(key + "=")) {
+                    sb.append(k).append(';');
+                }
+            }
+        }
+        return sb.append(key).append('=').append(value).toString();
+    }
+
+    private static String setParams(String params, boolean fec, boolean dtx) {
+        final StringBuilder sb = new StringBuilder();
+        for (String p : params.split(";")) {
+            final String k = p.trim();
+            if (k.isEmpty() || k.startsWith("useinbandfec=") || k.startsWith("usedtx=")) {
+                continue;
+            }
+            sb.append(k).append(';');
+        }
+        sb.append("useinbandfec=").append(fec ? 1 : 0).append(';');
+        sb.append("usedtx=").append(dtx ? 1 : 0);
+        return sb.toString();
+    }
+}
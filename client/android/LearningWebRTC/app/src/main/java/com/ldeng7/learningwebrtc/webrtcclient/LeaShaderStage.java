@@ -0,0 +1,107 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+
+import org.webrtc.GlGenericDrawer;
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.RendererCommon;
+import org.webrtc.TextureBufferImpl;
+import org.webrtc.VideoFrame;
+
+import java.util.ArrayList;
+
+// One fragment shader pass into an RGB texture the size of the input. The shader is
+// GlGenericDrawer's generic form: it reads the input with sample(tc), and uniforms it
+// declares are set from the callbacks. Outputs come from a small pool of framebuffers that
+// return when downstream releases the frame; with all of them still in use the frame is
+// dropped rather than passed on unprocessed. Non-texture frames are passed through.
+public class LeaShaderStage implements LeaFrameStage {
+    private static final int MAX_IN_FLIGHT = 4;
+
+    private final String fragmentSource;
+    private final GlGenericDrawer.ShaderCallbacks callbacks;
+    // Framebuffers handed back by released frames, from any thread.
+    private final ArrayList<GlTextureFrameBuffer> returned = new ArrayList<>();
+    // Touched on the capture thread only.
+    private GlGenericDrawer drawer;
+    private final ArrayList<GlTextureFrameBuffer> free = new ArrayList<>();
+    private int allocated;
+
+    public LeaShaderStage(final String fragmentSource, final GlGenericDrawer.ShaderCallbacks callbacks) {
+        this.fragmentSource = fragmentSource;
+        this.callbacks = callbacks;
+    }
+
+    @Override
+    public VideoFrame process(LeaFrameProcessor processor, VideoFrame frame) {
+        if (!(frame.getBuffer() instanceof VideoFrame.TextureBuffer)) {
+            return frame;
+        }
+        final VideoFrame.TextureBuffer in = (VideoFrame.TextureBuffer) frame.getBuffer();
+        final int w = in.getWidth();
+        final int h = in.getHeight();
+        final GlTextureFrameBuffer fb = this.acquire(w, h);
+        if (null == fb) {
+            return null;
+        }
+        if (null == this.drawer) {
+            this.drawer = new GlGenericDrawer(this.fragmentSource, this.callbacks);
+        }
+        final float[] m = RendererCommon.convertMatrixFromAndroidGraphicsMatrix(in.getTransformMatrix());
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, fb.getFrameBufferId());
+        if (in.getType() == VideoFrame.TextureBuffer.Type.OES) {
+            this.drawer.drawOes(in.getTextureId(), m, w, h, 0, 0, w, h);
+        } else {
+            this.drawer.drawRgb(in.getTextureId(), m, w, h, 0, 0, w, h);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        processor.onGpuDraw();
+        final TextureBufferImpl out = new TextureBufferImpl(w, h, VideoFrame.TextureBuffer.Type.RGB,
+            fb.getTextureId(), new Matrix(), processor.getHandler(), processor.getYuvConverter(),
+            () -> this.giveBack(fb));
+        return new VideoFrame(out, frame.getRotation(), frame.getTimestampNs());
+    }
+
+    private GlTextureFrameBuffer acquire(int w, int h) {
+        synchronized (this.returned) {
+            this.free.addAll(this.returned);
+            this.returned.clear();
+        }
+        GlTextureFrameBuffer fb;
+        if (!this.free.isEmpty()) {
+            fb = this.free.remove(this.free.size() - 1);
+        } else if (this.allocated < MAX_IN_FLIGHT) {
+            fb = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+            this.allocated++;
+        } else {
+            return null;
+        }
+        fb.setSize(w, h);
+        return fb;
+    }
+
+    private void giveBack(GlTextureFrameBuffer fb) {
+        synchronized (this.returned) {
+            this.returned.add(fb);
+        }
+    }
+
+    // Framebuffers still held downstream are left to the EGL context's teardown.
+    @Override
+    public void release() {
+        synchronized (this.returned) {
+            this.free.addAll(this.returned);
+            this.returned.clear();
+        }
+        for (GlTextureFrameBuffer fb : this.free) {
+            fb.release();
+        }
+        this.free.clear();
+        this.allocated = 0;
+        if (null != this.drawer) {
+            this.drawer.release();
+            this.drawer = null;
+        }
+    }
+}
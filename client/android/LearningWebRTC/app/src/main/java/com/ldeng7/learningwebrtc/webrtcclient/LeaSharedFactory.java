@@ -0,0 +1,140 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.content.Context;
+
+import org.webrtc.DefaultVideoDecoderFactory;
+import org.webrtc.EglBase;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.audio.AudioDeviceModule;
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Refcounted process-wide factories, one per variant. The audio-only variant has no EGL
+// context and no video codec factories, so it offers no video codecs at all. Only the
+// recordable variants hand microphone samples to Java.
+class LeaSharedFactory {
+    private static final int VARIANT_AUDIO_ONLY = 1;
+    private static final int VARIANT_RECORDABLE = 2;
+
+    private static boolean initialized;
+    private static final LeaSharedFactory[] instances = new LeaSharedFactory[4];
+    private static final int[] refCounts = new int[4];
+    // The variant prewarm() asked for and the one it holds a reference to, or -1.
+    private static volatile int prewarmWanted = -1;
+    private static int prewarmed = -1;
+    // The audio device module takes its samples callback once, when it is built, and
+    // copies every 10 ms buffer for it whether or not anyone listens, so only recordable
+    // variants install it. Their samples fan out from here to whoever taps them, e.g. a
+    // LeaRecorder.
+    private static final CopyOnWriteArrayList<JavaAudioDeviceModule.SamplesReadyCallback> samplesTaps =
+        new CopyOnWriteArrayList<>();
+
+    // null for the audio-only variant.
+    final EglBase eglBase;
+    final PeerConnectionFactory pcFactory;
+    // null for the audio-only variant.
+    final LeaVideoEncoderFactory encoderFactory;
+
+    private LeaSharedFactory(final Context context, boolean audioOnly, boolean recordable) {
+        final JavaAudioDeviceModule.Builder ab = JavaAudioDeviceModule.builder(context)
+            .setUseHardwareAcousticEchoCanceler(true)
+            .setUseHardwareNoiseSuppressor(true);
+        if (recordable) {
+            ab.setSamplesReadyCallback(LeaSharedFactory::onSamplesReady);
+        }
+        final AudioDeviceModule adm = ab.createAudioDeviceModule();
+        final PeerConnectionFactory.Builder b = PeerConnectionFactory.builder()
+            .setAudioDeviceModule(adm);
+        if (audioOnly) {
+            this.eglBase = null;
+            this.encoderFactory = null;
+        } else {
+            this.eglBase = EglBase.create();
+            final EglBase.Context eglBaseContext = this.eglBase.getEglBaseContext();
+            this.encoderFactory = new LeaVideoEncoderFactory(eglBaseContext);
+            b.setVideoEncoderFactory(this.encoderFactory)
+                .setVideoDecoderFactory(new DefaultVideoDecoderFactory(eglBaseContext));
+        }
+        this.pcFactory = b.createPeerConnectionFactory();
+        adm.release();
+    }
+
+    // On the audio record thread, every 10 ms.
+    private static void onSamplesReady(JavaAudioDeviceModule.AudioSamples samples) {
+        for (JavaAudioDeviceModule.SamplesReadyCallback c : samplesTaps) {
+            c.onWebRtcAudioRecordSamplesReady(samples);
+        }
+    }
+
+    static void addSamplesTap(JavaAudioDeviceModule.SamplesReadyCallback c) {
+        samplesTaps.add(c);
+    }
+
+    static void removeSamplesTap(JavaAudioDeviceModule.SamplesReadyCallback c) {
+        samplesTaps.remove(c);
+    }
+
+    private static int variant(boolean audioOnly, boolean recordable) {
+        return (audioOnly ? VARIANT_AUDIO_ONLY : 0) | (recordable ? VARIANT_RECORDABLE : 0);
+    }
+
+    static synchronized LeaSharedFactory acquire(final Context context, boolean audioOnly, boolean recordable) {
+        if (!initialized) {
+            PeerConnectionFactory.InitializationOptions pcfio =
+                PeerConnectionFactory.InitializationOptions.builder(context.getApplicationContext())
+                    .setEnableInternalTracer(LeaTrace.isInternalTracerEnabled())
+                    .createInitializationOptions();
+            PeerConnectionFactory.initialize(pcfio);
+            LeaTrace.applyNativeLogging();
+            initialized = true;
+        }
+        final int v = variant(audioOnly, recordable);
+        if (null == instances[v]) {
+            instances[v] = new LeaSharedFactory(context.getApplicationContext(), audioOnly, recordable);
+        }
+        refCounts[v]++;
+        return instances[v];
+    }
+
+    static synchronized void release(boolean audioOnly, boolean recordable) {
+        final int v = variant(audioOnly, recordable);
+        if (refCounts[v] == 0 || --refCounts[v] > 0) {
+            return;
+        }
+        instances[v].pcFactory.dispose();
+        if (null != instances[v].eglBase) {
+            instances[v].eglBase.release();
+        }
+        instances[v] = null;
+    }
+
+    // Records the variant to keep alive; applyPrewarm() then takes it, off the caller's
+    // thread, as building a factory is slow. The latest request wins.
+    static void requestPrewarm(boolean audioOnly) {
+        prewarmWanted = variant(audioOnly, false);
+    }
+
+    // Swaps the held reference under the same lock as acquire() and release(), so no
+    // client sees a refcount the prewarm is halfway through changing.
+    static synchronized void applyPrewarm(final Context context) {
+        final int v = prewarmWanted;
+        if (v < 0 || v == prewarmed) {
+            return;
+        }
+        acquire(context, 0 != (v & VARIANT_AUDIO_ONLY), false);
+        if (prewarmed >= 0) {
+            release(0 != (prewarmed & VARIANT_AUDIO_ONLY), false);
+        }
+        prewarmed = v;
+    }
+
+    // Also cancels a request applyPrewarm() has not got to yet.
+    static synchronized void releasePrewarm() {
+        prewarmWanted = -1;
+        if (prewarmed >= 0) {
+            release(0 != (prewarmed & VARIANT_AUDIO_ONLY), false);
+            prewarmed = -1;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// One long-lived websocket per signaling server, shared by every call to it. Sessions
+// are keyed by their uid pair, survive reconnects, and are re-attached on the server by
+// re-sending DIAL.
+public class LeaSignalingTransport {
+    interface Session {
+        String getSid();
+        void onTransportOpen(boolean reconnected);
+        void onTransportMessage(LeaWebSocketMessage.Response<?> resp);
+        void onTransportLost();
+    }
+
+    private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":transport";
+    private static final long HEARTBEAT_INTERVAL_MS = 5000;
+    private static final int HEARTBEAT_MAX_MISSED = 3;
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30000;
+    private static final long IDLE_CLOSE_MS = 60000;
+    private static final int MAX_OUTBOX = 256;
+
+    private static final Map<URI, LeaSignalingTransport> transports = new HashMap<>();
+
+    private class Connection extends WebSocketClient {
+        Connection() {
+            super(LeaSignalingTransport.this.uri, new Draft_17());
+        }
+
+        @Override
+        public void onOpen(ServerHandshake shd) {
+            LeaSignalingTransport.this.onConnectionOpen(this);
+        }
+
+        @Override
+        public void onMessage(String msg) {
+            LeaSignalingTransport.this.onConnectionMessage(this, msg);
+        }
+
+        @Override
+        public void onWebsocketPong(WebSocket conn, Framedata f) {
+            LeaSignalingTransport.this.onConnectionPong(this);
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            LeaTrace.event(LeaTrace.EEvent.WS_CLOSED, code);
+            LeaSignalingTransport.this.onConnectionLost(this);
+        }
+
+        // Also called for exceptions thrown by our own callbacks, with the socket still
+        // open. Closing it ends in onClose, which handles the loss; a failed connect or read
+        // reaches onClose anyway.
+        @Override
+        public void onError(Exception e) {
+            LeaTrace.error(LeaTrace.EEvent.ERROR, 0, LOG_TAG, "on error: " + e.toString());
+            this.close();
+        }
+    }
+
+    private final URI uri;
+    private final long heartbeatIntervalMs;
+    private final long reconnectMinMs;
+    private final long reconnectMaxMs;
+    private final long idleCloseMs;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final ArrayDeque<String> outbox = new ArrayDeque<>();
+    private Connection conn;
+    private boolean open;
+    private boolean everOpened;
+    private boolean disposed;
+    private long backoffMs;
+    private ScheduledFuture<?> reconnectTask;
+    private ScheduledFuture<?> heartbeatTask;
+    private ScheduledFuture<?> idleCloseTask;
+    private long pingSentNs;
+    private int missedPongs;
+
+    private volatile long lastRttMs = -1;
+    private volatile long smoothedRttMs = -1;
+    private volatile int reconnectCount;
+
+    LeaSignalingTransport(final URI uri, long heartbeatIntervalMs, long reconnectMinMs, long reconnectMaxMs,
+            long idleCloseMs) {
+        this.uri = uri;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.reconnectMinMs = reconnectMinMs;
+        this.reconnectMaxMs = reconnectMaxMs;
+        this.idleCloseMs = idleCloseMs;
+        this.backoffMs = reconnectMinMs;
+    }
+
+    static synchronized LeaSignalingTransport get(final URI uri) {
+        LeaSignalingTransport t = transports.get(uri);
+        if (null == t) {
+            t = new LeaSignalingTransport(uri, HEARTBEAT_INTERVAL_MS, RECONNECT_MIN_MS, RECONNECT_MAX_MS,
+                IDLE_CLOSE_MS);
+            transports.put(uri, t);
+        }
+        return t;
+    }
+
+    public long getLastRttMs() {
+        return this.lastRttMs;
+    }
+
+    public long getSmoothedRttMs() {
+        return this.smoothedRttMs;
+    }
+
+    public int getReconnectCount() {
+        return this.reconnectCount;
+    }
+
+    public synchronized boolean isConnected() {
+        return this.open;
+    }
+
+    // Returns false if this transport was shut down for idleness; fetch a fresh one.
+    boolean attach(final Session session) {
+        boolean notify;
+        synchronized (this) {
+            if (this.disposed) {
+                return false;
+            }
+            this.sessions.put(session.getSid(), session);
+            if (null != this.idleCloseTask) {
+                this.idleCloseTask.cancel(false);
+                this.idleCloseTask = null;
+            }
+            if (null == this.conn && null == this.reconnectTask) {
+                this.connect();
+            }
+            notify = this.open;
+        }
+        if (notify) {
+            session.onTransportOpen(false);
+        }
+        return true;
+    }
+
+    // What the session queued, e.g. its STOP, is still sent once the socket is back.
+    synchronized void detach(final Session session) {
+        if (this.sessions.get(session.getSid()) != session) {
+            return;
+        }
+        this.sessions.remove(session.getSid());
+        if (this.sessions.isEmpty() && null == this.idleCloseTask) {
+            this.idleCloseTask = this.timer.schedule(this::closeIfIdle, this.idleCloseMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Sessions, or messages they left behind, keep the socket coming back.
+    private boolean isNeeded() {
+        return !this.sessions.isEmpty() || !this.outbox.isEmpty();
+    }
+
+    synchronized void send(final Session session, LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data) {
+        final String json = LeaWebSocketMessage.encode(phase, session.getSid(), data);
+        if (this.open) {
+            try {
+                this.conn.send(json);
+                return;
+            } catch (WebsocketNotConnectedException e) {
+                this.open = false;
+            }
+        }
+        // Held until the socket is back; anything older than the cap is dropped.
+        if (this.outbox.size() >= MAX_OUTBOX) {
+            this.outbox.pollFirst();
+        }
+        this.outbox.addLast(json);
+    }
+
+    private void connect() {
+        this.reconnectTask = null;
+        this.conn = new Connection();
+        this.conn.connect();
+    }
+
+    private synchronized void reconnect() {
+        if (this.disposed || null != this.conn || !this.isNeeded()) {
+            this.reconnectTask = null;
+            return;
+        }
+        this.connect();
+    }
+
+    private void closeIfIdle() {
+        final Connection c;
+        final ArrayList<String> pending = new ArrayList<>();
+        synchronized (LeaSignalingTransport.class) {
+            synchronized (this) {
+                this.idleCloseTask = null;
+                if (!this.sessions.isEmpty()) {
+                    return;
+                }
+                this.disposed = true;
+                if (transports.get(this.uri) == this) {
+                    transports.remove(this.uri);
+                }
+                c = this.conn;
+                if (this.open) {
+                    pending.addAll(this.outbox);
+                }
+                this.conn = null;
+                this.open = false;
+                this.outbox.clear();
+            }
+        }
+        if (null != c) {
+            // Anything still queued goes out ahead of the close frame.
+            try {
+                for (String json : pending) {
+                    c.send(json);
+                }
+            } catch (WebsocketNotConnectedException e) {
+                // Lost meanwhile; nothing left to close it for.
+            }
+            c.close();
+        }
+        this.timer.shutdown();
+    }
+
+    private void onConnectionOpen(final Connection c) {
+        final ArrayList<Session> l;
+        final boolean reconnected;
+        synchronized (this) {
+            if (c != this.conn) {
+                return;
+            }
+            this.open = true;
+            LeaTrace.event(LeaTrace.EEvent.WS_OPEN, this.reconnectCount);
+            this.backoffMs = this.reconnectMinMs;
+            reconnected = this.everOpened;
+            this.everOpened = true;
+            if (reconnected) {
+                this.reconnectCount++;
+            }
+            this.missedPongs = 0;
+            this.heartbeatTask = this.timer.scheduleAtFixedRate(this::heartbeat,
+                this.heartbeatIntervalMs, this.heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+            l = new ArrayList<>(this.sessions.values());
+        }
+        for (Session s : l) {
+            s.onTransportOpen(reconnected);
+        }
+        synchronized (this) {
+            while (this.open && !this.outbox.isEmpty()) {
+                this.conn.send(this.outbox.pollFirst());
+            }
+        }
+    }
+
+    private void onConnectionMessage(final Connection c, final String msg) {
+        LeaWebSocketMessage.Response<?> resp;
+        try {
+            resp = LeaWebSocketMessage.decode(msg);
+        } catch (Exception e) {
+            LeaTrace.error(LeaTrace.EEvent.WS_PARSE_ERROR, 0, LOG_TAG, "message parsing: " + e.toString());
+            return;
+        }
+
+        Session s;
+        synchronized (this) {
+            if (c != this.conn) {
+                return;
+            }
+            s = this.sessions.get(resp.sid);
+            // Servers without session support do not echo the sid.
+            if (null == s && null == resp.sid && this.sessions.size() == 1) {
+                s = this.sessions.values().iterator().next();
+            }
+        }
+        if (null == s) {
+            LeaTrace.error(LeaTrace.EEvent.WS_NO_SESSION, resp.phase.ordinal(), LOG_TAG,
+                "no session for sid " + resp.sid);
+            return;
+        }
+        s.onTransportMessage(resp);
+    }
+
+    private synchronized void onConnectionPong(final Connection c) {
+        if (c != this.conn) {
+            return;
+        }
+        this.missedPongs = 0;
+        final long rtt = (System.nanoTime() - this.pingSentNs) / 1000000;
+        this.lastRttMs = rtt;
+        this.smoothedRttMs = this.smoothedRttMs < 0 ? rtt : (this.smoothedRttMs * 7 + rtt) / 8;
+    }
+
+    private void onConnectionLost(final Connection c) {
+        final ArrayList<Session> l;
+        synchronized (this) {
+            if (c != this.conn) {
+                return;
+            }
+            this.conn = null;
+            this.open = false;
+            if (null != this.heartbeatTask) {
+                this.heartbeatTask.cancel(false);
+                this.heartbeatTask = null;
+            }
+            if (this.disposed || !this.isNeeded()) {
+                return;
+            }
+            final long delay = this.backoffMs / 2 + (long) (this.random.nextDouble() * this.backoffMs / 2);
+            this.backoffMs = Math.min(this.backoffMs * 2, this.reconnectMaxMs);
+            this.reconnectTask = this.timer.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+            LeaTrace.event(LeaTrace.EEvent.WS_RECONNECT_SCHEDULED, delay);
+            l = new ArrayList<>(this.sessions.values());
+        }
+        for (Session s : l) {
+            s.onTransportLost();
+        }
+    }
+
+    // Closing takes the socket's lock, which its read thread holds while calling back in
+    // here, so the socket is only touched once this lock is released.
+    private void heartbeat() {
+        final Connection c;
+        final int missed;
+        synchronized (this) {
+            if (!this.open) {
+                return;
+            }
+            c = this.conn;
+            missed = this.missedPongs;
+            if (missed < HEARTBEAT_MAX_MISSED) {
+                this.pingSentNs = System.nanoTime();
+                this.missedPongs++;
+            }
+        }
+        if (missed >= HEARTBEAT_MAX_MISSED) {
+            LeaTrace.event(LeaTrace.EEvent.WS_HEARTBEAT_TIMEOUT, missed);
+            c.getConnection().closeConnection(CloseFrame.ABNORMAL_CLOSE, "heartbeat timeout");
+            return;
+        }
+        final FramedataImpl1 f = new FramedataImpl1(Framedata.Opcode.PING);
+        f.setFin(true);
+        c.getConnection().sendFrame(f);
+    }
+}
@@ -0,0 +1,175 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Simulcast layers of the video sender: the initial encodings, runtime limits and on/off
+// per layer, and per-layer outbound stats.
+public class LeaSimulcast implements LeaStatsPoller.Listener {
+    public static class Layer implements Serializable {
+        public String rid;
+        public double scaleResolutionDownBy = 1;
+        public int maxBitrateBps;
+        public int maxFramerate;
+        // 0 keeps the encoder default.
+        public int numTemporalLayers;
+        public boolean active = true;
+
+        public Layer(String rid, double scaleResolutionDownBy, int maxBitrateBps, int maxFramerate) {
+            this.rid = rid;
+            this.scaleResolutionDownBy = scaleResolutionDownBy;
+            this.maxBitrateBps = maxBitrateBps;
+            this.maxFramerate = maxFramerate;
+        }
+    }
+
+    public static class LayerStats {
+        public final String rid;
+        public int width;
+        public int height;
+        public double fps;
+        public long bitrateBps;
+        public double encodeMsPerFrame;
+        public String qualityLimitationReason;
+        private long prevBytes = -1;
+        private long prevFrames;
+        private double prevEncodeTime;
+        private double prevTimeUs;
+
+        LayerStats(String rid) {
+            this.rid = rid;
+        }
+
+        LayerStats(LayerStats o) {
+            this.rid = o.rid;
+            this.width = o.width;
+            this.height = o.height;
+            this.fps = o.fps;
+            this.bitrateBps = o.bitrateBps;
+            this.encodeMsPerFrame = o.encodeMsPerFrame;
+            this.qualityLimitationReason = o.qualityLimitationReason;
+        }
+    }
+
+    // Quarter, half and full resolution, listed from the lowest layer up.
+    public static ArrayList<Layer> defaultLayers() {
+        final ArrayList<Layer> l = new ArrayList<>();
+        l.add(new Layer("q", 4, 150000, 15));
+        l.add(new Layer("h", 2, 500000, 30));
+        l.add(new Layer("f", 1, 1500000, 30));
+        return l;
+    }
+
+    private final List<Layer> layers;
+    private final Map<String, LayerStats> stats = new HashMap<>();
+    private RtpSender sender;
+
+    LeaSimulcast(final List<Layer> layers) {
+        this.layers = layers;
+        for (Layer l : layers) {
+            this.stats.put(l.rid, new LayerStats(l.rid));
+        }
+    }
+
+    List<RtpParameters.Encoding> toEncodings() {
+        final ArrayList<RtpParameters.Encoding> l = new ArrayList<>();
+        for (Layer layer : this.layers) {
+            final RtpParameters.Encoding e = new RtpParameters.Encoding(layer.rid, layer.active,
+                layer.scaleResolutionDownBy);
+            e.maxBitrateBps = layer.maxBitrateBps > 0 ? layer.maxBitrateBps : null;
+            e.maxFramerate = layer.maxFramerate > 0 ? layer.maxFramerate : null;
+            e.numTemporalLayers = layer.numTemporalLayers > 0 ? layer.numTemporalLayers : null;
+            l.add(e);
+        }
+        return l;
+    }
+
+    synchronized void attach(RtpSender sender) {
+        this.sender = sender;
+    }
+
+    synchronized void detach() {
+        this.sender = null;
+    }
+
+    private interface EncodingEdit {
+        void apply(RtpParameters.Encoding e);
+    }
+
+    private synchronized boolean edit(String rid, EncodingEdit edit) {
+        if (null == this.sender) {
+            return false;
+        }
+        final RtpParameters p = this.sender.getParameters();
+        for (RtpParameters.Encoding e : p.encodings) {
+            if (rid.equals(e.rid)) {
+                edit.apply(e);
+                return this.sender.setParameters(p);
+            }
+        }
+        return false;
+    }
+
+    // Stops or resumes encoding one layer; the others and the negotiated session are
+    // untouched.
+    public boolean setLayerActive(String rid, final boolean active) {
+        return this.edit(rid, (e) -> e.active = active);
+    }
+
+    // A value <= 0 removes that limit.
+    public boolean setLayerLimits(String rid, final int maxBitrateBps, final int maxFramerate) {
+        return this.edit(rid, (e) -> {
+            e.maxBitrateBps = maxBitrateBps > 0 ? maxBitrateBps : null;
+            e.maxFramerate = maxFramerate > 0 ? maxFramerate : null;
+        });
+    }
+
+    // A snapshot of the last stats interval, in layer order.
+    public synchronized List<LayerStats> getLayerStats() {
+        final ArrayList<LayerStats> l = new ArrayList<>();
+        for (Layer layer : this.layers) {
+            l.add(new LayerStats(this.stats.get(layer.rid)));
+        }
+        return l;
+    }
+
+    @Override
+    public synchronized void onStatsReport(RTCStatsReport report) {
+        for (RTCStats s : report.getStatsMap().values()) {
+            if (!"outbound-rtp".equals(s.getType()) ||
+                    !MediaStreamTrack.VIDEO_TRACK_KIND.equals(s.getMembers().get("kind"))) {
+                continue;
+            }
+            final LayerStats ls = this.stats.get(s.getMembers().get("rid"));
+            if (null == ls) {
+                continue;
+            }
+            final double timeUs = s.getTimestampUs();
+            final long bytes = (long) LeaStatsPoller.number(s, "bytesSent", 0);
+            final long frames = (long) LeaStatsPoller.number(s, "framesEncoded", 0);
+            final double encodeTime = LeaStatsPoller.number(s, "totalEncodeTime", 0);
+            ls.width = (int) LeaStatsPoller.number(s, "frameWidth", 0);
+            ls.height = (int) LeaStatsPoller.number(s, "frameHeight", 0);
+            ls.fps = LeaStatsPoller.number(s, "framesPerSecond", 0);
+            ls.qualityLimitationReason = (String) s.getMembers().get("qualityLimitationReason");
+            if (ls.prevBytes >= 0 && timeUs > ls.prevTimeUs) {
+                ls.bitrateBps = (long) ((bytes - ls.prevBytes) * 8000000.0 / (timeUs - ls.prevTimeUs));
+                ls.encodeMsPerFrame = frames > ls.prevFrames ?
+                    (encodeTime - ls.prevEncodeTime) * 1000 / (frames - ls.prevFrames) : 0;
+            }
+            ls.prevBytes = bytes;
+            ls.prevFrames = frames;
+            ls.prevEncodeTime = encodeTime;
+            ls.prevTimeUs = timeUs;
+        }
+    }
+}
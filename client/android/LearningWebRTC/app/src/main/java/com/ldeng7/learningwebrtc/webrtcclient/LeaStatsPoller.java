@@ -0,0 +1,75 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsCollectorCallback;
+import org.webrtc.RTCStatsReport;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Runs one getStats per interval for every consumer of the call's stats. Listeners are
+// called in order on the poller's own thread.
+class LeaStatsPoller implements RTCStatsCollectorCallback {
+    interface Listener {
+        void onStatsReport(RTCStatsReport report);
+    }
+
+    private final PeerConnection peerConn;
+    private final long intervalMs;
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private boolean closed;
+
+    LeaStatsPoller(final PeerConnection peerConn, long intervalMs) {
+        this.peerConn = peerConn;
+        this.intervalMs = intervalMs;
+    }
+
+    static double number(RTCStats s, String member, double def) {
+        final Object v = s.getMembers().get(member);
+        return v instanceof Number ? ((Number) v).doubleValue() : def;
+    }
+
+    synchronized void addListener(Listener l) {
+        this.listeners.add(l);
+    }
+
+    void start() {
+        this.timer.scheduleWithFixedDelay(this::poll, this.intervalMs, this.intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // Once this returns no listener runs again, so they may release what they touch.
+    synchronized void close() {
+        this.closed = true;
+        this.timer.shutdownNow();
+    }
+
+    private synchronized void poll() {
+        if (!this.closed) {
+            this.peerConn.getStats(this);
+        }
+    }
+
+    // Delivered on the signaling thread; the work is moved back to the timer.
+    @Override
+    public void onStatsDelivered(final RTCStatsReport report) {
+        try {
+            this.timer.execute(() -> this.dispatch(report));
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private synchronized void dispatch(RTCStatsReport report) {
+        if (this.closed) {
+            return;
+        }
+        for (int i = 0; i < this.listeners.size(); i++) {
+            this.listeners.get(i).onStatsReport(report);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.util.Log;
+
+import org.webrtc.Logging;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Process-wide tracing of signaling and media lifecycle events. Events go into a fixed
+// binary ring of {time, event, arg} records that can be dumped at any point, so a failed
+// call can be examined without verbose logging having been on all along. The mode decides
+// what is recorded and how much reaches logcat and the native log:
+//   OFF      nothing
+//   ERRORS   errors only, native LS_ERROR
+//   SAMPLED  every event recorded, one in SAMPLE_EVERY logged, native LS_WARNING
+//   FULL     every event recorded and logged, native LS_VERBOSE and the internal tracer
+public final class LeaTrace {
+    public enum EMode {
+        OFF,
+        ERRORS,
+        SAMPLED,
+        FULL,
+    }
+
+    public enum EEvent {
+        CALL_START,
+        CALL_STOP,
+        CAPTURE_STARTED,
+        CAPTURE_LEVEL,
+        WS_OPEN,
+        WS_CLOSED,
+        WS_RECONNECT_SCHEDULED,
+        WS_HEARTBEAT_TIMEOUT,
+        WS_PARSE_ERROR,
+        WS_NO_SESSION,
+        PHASE_TX,
+        PHASE_RX,
+        PHASE_REJECTED,
+        SESSION_RESUMED,
+        TRANSPORT_LOST,
+        SDP_CREATE_FAILURE,
+        SDP_SET_FAILURE,
+        REMOTE_SDP_SET,
+        ICE_CONNECTION_STATE,
+        ICE_GATHERING_STATE,
+        ICE_RESTART,
+        ICE_RECOVERED,
+        ENCODER_CREATED,
+        ERROR,
+    }
+
+    private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":trace";
+    private static final int DUMP_MAGIC = 0x4c545231;
+    private static final int CAPACITY = 4096;
+    private static final int SAMPLE_EVERY = 16;
+
+    private static volatile EMode mode = EMode.SAMPLED;
+    // Native logging can only be configured once the library is loaded.
+    private static volatile boolean nativeReady;
+    private static final long baseNs = System.nanoTime();
+    private static final long[] timesNs = new long[CAPACITY];
+    private static final long[] records = new long[CAPACITY];
+    private static int head;
+    private static long total;
+
+    private LeaTrace() {}
+
+    public static EMode getMode() {
+        return mode;
+    }
+
+    // May be changed at any time, except that the native internal tracer only follows the
+    // mode in effect when the factory is first initialized.
+    public static void setMode(EMode m) {
+        mode = m;
+        if (nativeReady) {
+            applyNativeLogging();
+        }
+    }
+
+    static boolean isInternalTracerEnabled() {
+        return mode == EMode.FULL;
+    }
+
+    static void applyNativeLogging() {
+        nativeReady = true;
+        switch (mode) {
+            case OFF:
+                Logging.enableLogToDebugOutput(Logging.Severity.LS_NONE);
+                break;
+            case ERRORS:
+                Logging.enableLogToDebugOutput(Logging.Severity.LS_ERROR);
+                break;
+            case SAMPLED:
+                Logging.enableLogToDebugOutput(Logging.Severity.LS_WARNING);
+                break;
+            case FULL:
+                Logging.enableLogToDebugOutput(Logging.Severity.LS_VERBOSE);
+                break;
+        }
+    }
+
+    public static void event(EEvent e, long arg) {
+        final EMode m = mode;
+        if (m.ordinal() < EMode.SAMPLED.ordinal()) {
+            return;
+        }
+        final long n = record(e, arg);
+        if (m == EMode.FULL || n % SAMPLE_EVERY == 0) {
+            Log.i(LOG_TAG, e.name().toLowerCase() + " " + arg);
+        }
+    }
+
+    public static void error(EEvent e, long arg, String tag, String msg) {
+        if (mode == EMode.OFF) {
+            return;
+        }
+        record(e, arg);
+        Log.e(tag, msg);
+    }
+
+    private static synchronized long record(EEvent e, long arg) {
+        timesNs[head] = System.nanoTime() - baseNs;
+        // Event in the top byte, the low 56 bits of arg below it.
+        records[head] = ((long) e.ordinal() << 56) | (arg & 0x00ffffffffffffffL);
+        head = (head + 1) % CAPACITY;
+        return total++;
+    }
+
+    // Writes int magic, int count, then count records of {long ns, int event, long arg},
+    // oldest first, big-endian.
+    public static void dump(OutputStream out) throws IOException {
+        final long[] t = new long[CAPACITY];
+        final long[] r = new long[CAPACITY];
+        final int n;
+        final int start;
+        synchronized (LeaTrace.class) {
+            n = (int) Math.min(total, CAPACITY);
+            start = (head - n + CAPACITY) % CAPACITY;
+            System.arraycopy(timesNs, 0, t, 0, CAPACITY);
+            System.arraycopy(records, 0, r, 0, CAPACITY);
+        }
+        final DataOutputStream d = new DataOutputStream(out);
+        d.writeInt(DUMP_MAGIC);
+        d.writeInt(n);
+        for (int i = 0; i < n; i++) {
+            final int at = (start + i) % CAPACITY;
+            d.writeLong(t[at]);
+            d.writeInt((int) (r[at] >>> 56));
+            d.writeLong(r[at] << 8 >> 8);
+        }
+        d.flush();
+    }
+
+    // The ring as text, one "ms event arg" line per record.
+    public static String dumpText() {
+        final StringBuilder sb = new StringBuilder();
+        final EEvent[] events = EEvent.values();
+        synchronized (LeaTrace.class) {
+            final int n = (int) Math.min(total, CAPACITY);
+            for (int i = 0; i < n; i++) {
+                final int at = (head - n + i + CAPACITY) % CAPACITY;
+                final int e = (int) (records[at] >>> 56);
+                sb.append(timesNs[at] / 1000000).append(' ')
+                    .append(e < events.length ? events[e].name().toLowerCase() : "?").append(' ')
+                    .append(records[at] << 8 >> 8).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+// Picks the capture level from periodic stats samples. It has no WebRTC or Android
+// dependency, so recorded sample traces can be replayed through onSample().
+//
+// A level is dropped after DOWN_SAMPLES consecutive samples showing the uplink cannot
+// carry it or the encoder cannot keep up. It is raised only after UP_SAMPLES consecutive
+// samples with headroom for the next level, and never within UP_HOLD_MS of a drop, so a
+// link hovering at one boundary does not flap.
+public class LeaVideoAdaptation {
+    public enum ELimitation {
+        NONE,
+        CPU,
+        BANDWIDTH,
+        OTHER;
+
+        // Parses the qualityLimitationReason stats member.
+        public static ELimitation parse(String s) {
+            if (null == s) {
+                return NONE;
+            }
+            switch (s) {
+                case "none":
+                    return NONE;
+                case "cpu":
+                    return CPU;
+                case "bandwidth":
+                    return BANDWIDTH;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    public static class Level {
+        public final int width;
+        public final int height;
+        public final int fps;
+        public final int maxBitrateBps;
+
+        public Level(int width, int height, int fps, int maxBitrateBps) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.maxBitrateBps = maxBitrateBps;
+        }
+
+        @Override
+        public String toString() {
+            return this.width + "x" + this.height + "@" + this.fps;
+        }
+    }
+
+    // Unknown fields are left at -1.
+    public static class Sample {
+        public long timeMs;
+        public long availableOutgoingBitrateBps = -1;
+        public ELimitation limitation = ELimitation.NONE;
+        public double encodeMsPerFrame = -1;
+    }
+
+    public static final Level[] DEFAULT_LADDER = {
+        new Level(320, 240, 15, 250000),
+        new Level(480, 360, 25, 600000),
+        new Level(640, 480, 30, 1000000),
+        new Level(960, 540, 30, 1700000),
+        new Level(1280, 720, 30, 2500000),
+    };
+    public static final int DEFAULT_START_LEVEL = 1;
+
+    static final int DOWN_SAMPLES = 2;
+    static final int UP_SAMPLES = 5;
+    static final long UP_HOLD_MS = 10000;
+    // A level fits while the estimate covers this share of its max bitrate.
+    private static final double FIT_RATIO = 0.7;
+    private static final double UP_HEADROOM = 1.3;
+    // Share of the frame interval the encoder may use.
+    private static final double ENCODE_BUSY = 0.8;
+    private static final double ENCODE_IDLE = 0.5;
+
+    private final Level[] ladder;
+    private int level;
+    private int downStreak;
+    private int upStreak;
+    private long lastDownMs = Long.MIN_VALUE / 2;
+
+    public LeaVideoAdaptation(Level[] ladder, int startLevel) {
+        this.ladder = ladder;
+        this.level = Math.max(0, Math.min(startLevel, ladder.length - 1));
+    }
+
+    public int getLevelIndex() {
+        return this.level;
+    }
+
+    public Level getLevel() {
+        return this.ladder[this.level];
+    }
+
+    // Returns the level to use from now on, which is the current one unless it changed.
+    public int onSample(Sample s) {
+        final Level cur = this.ladder[this.level];
+        final double frameMs = 1000.0 / cur.fps;
+        final boolean tooSlow = s.availableOutgoingBitrateBps >= 0 &&
+            s.availableOutgoingBitrateBps < cur.maxBitrateBps * FIT_RATIO;
+        final boolean encoderBusy = s.encodeMsPerFrame > frameMs * ENCODE_BUSY;
+        final boolean down = this.level > 0 &&
+            (tooSlow || encoderBusy || s.limitation == ELimitation.CPU ||
+                (s.limitation == ELimitation.BANDWIDTH && s.availableOutgoingBitrateBps < 0));
+
+        boolean up = false;
+        if (!down && this.level < this.ladder.length - 1) {
+            final Level next = this.ladder[this.level + 1];
+            up = s.limitation == ELimitation.NONE &&
+                s.availableOutgoingBitrateBps >= next.maxBitrateBps * UP_HEADROOM &&
+                (s.encodeMsPerFrame < 0 || s.encodeMsPerFrame < 1000.0 / next.fps * ENCODE_IDLE);
+        }
+
+        this.downStreak = down ? this.downStreak + 1 : 0;
+        this.upStreak = up ? this.upStreak + 1 : 0;
+        if (this.downStreak >= DOWN_SAMPLES) {
+            this.level--;
+            this.downStreak = 0;
+            this.lastDownMs = s.timeMs;
+        } else if (this.upStreak >= UP_SAMPLES && s.timeMs - this.lastDownMs >= UP_HOLD_MS) {
+            this.level++;
+            this.upStreak = 0;
+        }
+        return this.level;
+    }
+}
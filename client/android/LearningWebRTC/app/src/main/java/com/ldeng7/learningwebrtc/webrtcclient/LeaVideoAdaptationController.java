@@ -0,0 +1,85 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+import org.webrtc.VideoCapturer;
+
+// Feeds getStats samples into LeaVideoAdaptation and applies its decisions to the capturer
+// and the video sender's encoding limits.
+class LeaVideoAdaptationController implements LeaStatsPoller.Listener {
+    private final PeerConnection peerConn;
+    private final VideoCapturer videoCapturer;
+    private final LeaVideoAdaptation adaptation;
+    private long prevFramesEncoded = -1;
+    private double prevTotalEncodeTime;
+
+    LeaVideoAdaptationController(final PeerConnection peerConn, final VideoCapturer videoCapturer,
+            final LeaVideoAdaptation adaptation) {
+        this.peerConn = peerConn;
+        this.videoCapturer = videoCapturer;
+        this.adaptation = adaptation;
+    }
+
+    @Override
+    public void onStatsReport(RTCStatsReport report) {
+        final LeaVideoAdaptation.Sample sample = new LeaVideoAdaptation.Sample();
+        sample.timeMs = (long) (report.getTimestampUs() / 1000);
+        for (RTCStats s : report.getStatsMap().values()) {
+            switch (s.getType()) {
+                case "outbound-rtp": {
+                    if (!MediaStreamTrack.VIDEO_TRACK_KIND.equals(s.getMembers().get("kind"))) {
+                        break;
+                    }
+                    sample.limitation = LeaVideoAdaptation.ELimitation.parse(
+                        (String) s.getMembers().get("qualityLimitationReason"));
+                    final long frames = (long) LeaStatsPoller.number(s, "framesEncoded", -1);
+                    final double encodeTime = LeaStatsPoller.number(s, "totalEncodeTime", 0);
+                    if (this.prevFramesEncoded >= 0 && frames > this.prevFramesEncoded) {
+                        sample.encodeMsPerFrame = (encodeTime - this.prevTotalEncodeTime) * 1000 /
+                            (frames - this.prevFramesEncoded);
+                    }
+                    this.prevFramesEncoded = frames;
+                    this.prevTotalEncodeTime = encodeTime;
+                    break;
+                }
+                case "candidate-pair": {
+                    if (!Boolean.TRUE.equals(s.getMembers().get("nominated"))) {
+                        break;
+                    }
+                    final double bps = LeaStatsPoller.number(s, "availableOutgoingBitrate", -1);
+                    if (bps >= 0) {
+                        sample.availableOutgoingBitrateBps = (long) bps;
+                    }
+                    break;
+                }
+            }
+        }
+
+        final int before = this.adaptation.getLevelIndex();
+        if (this.adaptation.onSample(sample) != before) {
+            this.apply(this.adaptation.getLevel());
+        }
+    }
+
+    private void apply(LeaVideoAdaptation.Level level) {
+        LeaTrace.event(LeaTrace.EEvent.CAPTURE_LEVEL,
+            ((long) level.width << 32) | ((long) level.height << 16) | level.fps);
+        this.videoCapturer.changeCaptureFormat(level.width, level.height, level.fps);
+        for (RtpSender sender : this.peerConn.getSenders()) {
+            final MediaStreamTrack t = sender.track();
+            if (null == t || !MediaStreamTrack.VIDEO_TRACK_KIND.equals(t.kind())) {
+                continue;
+            }
+            final RtpParameters p = sender.getParameters();
+            for (RtpParameters.Encoding e : p.encodings) {
+                e.maxBitrateBps = level.maxBitrateBps;
+                e.maxFramerate = level.fps;
+            }
+            sender.setParameters(p);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Lists hardware-encodable codecs first, so the default SDP order already favours them,
+// and creates a hardware encoder whenever the device has one for the codec, with the
+// software encoder kept as its runtime fallback. Codecs without a hardware encoder on
+// this device are served in software.
+class LeaVideoEncoderFactory implements VideoEncoderFactory {
+    private final VideoEncoderFactory hardware;
+    private final VideoEncoderFactory software = new SoftwareVideoEncoderFactory();
+    private volatile String lastImplementation;
+
+    LeaVideoEncoderFactory(final EglBase.Context eglContext) {
+        this.hardware = new HardwareVideoEncoderFactory(eglContext, true, true);
+    }
+
+    // "<codec>/hardware" or "<codec>/software" for the most recently created encoder.
+    String getLastImplementation() {
+        return this.lastImplementation;
+    }
+
+    private static boolean contains(VideoCodecInfo[] codecs, VideoCodecInfo info) {
+        for (VideoCodecInfo c : codecs) {
+            if (c.name.equalsIgnoreCase(info.name) && c.params.equals(info.params)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        final VideoEncoder sw = this.software.createEncoder(info);
+        final VideoEncoder hw = contains(this.hardware.getSupportedCodecs(), info) ?
+            this.hardware.createEncoder(info) : null;
+        final boolean useHw = null != hw;
+        this.lastImplementation = info.name + (useHw ? "/hardware" : "/software");
+        LeaTrace.event(LeaTrace.EEvent.ENCODER_CREATED, useHw ? 1 : 0);
+        if (useHw && null != sw) {
+            return new VideoEncoderFallback(sw, hw);
+        }
+        return useHw ? hw : sw;
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        final Map<String, VideoCodecInfo> codecs = new LinkedHashMap<>();
+        for (VideoCodecInfo c : this.hardware.getSupportedCodecs()) {
+            codecs.put(c.name + c.params, c);
+        }
+        for (VideoCodecInfo c : this.software.getSupportedCodecs()) {
+            if (!codecs.containsKey(c.name + c.params)) {
+                codecs.put(c.name + c.params, c);
+            }
+        }
+        return new ArrayList<>(codecs.values()).toArray(new VideoCodecInfo[0]);
+    }
+}
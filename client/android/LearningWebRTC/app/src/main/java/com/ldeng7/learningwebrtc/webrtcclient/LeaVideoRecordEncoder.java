@@ -0,0 +1,131 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.VideoSink;
+
+import java.io.IOException;
+
+// H.264 through the codec's input surface: frames are drawn with an EGL context shared with
+// the capturer and decoders, so texture frames go to the encoder without a copy to memory.
+// The size is fixed by the first frame; later frames are scaled to it.
+class LeaVideoRecordEncoder extends LeaRecordEncoder implements VideoSink {
+    private static final String MIME = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final int KEY_FRAME_INTERVAL_S = 2;
+
+    private final EglBase.Context sharedContext;
+    private final int bitrate;
+    private final int fps;
+    // Written on the encoder thread only.
+    private volatile long frames;
+    // Touched on the encoder thread only.
+    private EglBase eglBase;
+    private Surface inputSurface;
+    private VideoFrameDrawer frameDrawer;
+    private GlRectDrawer drawer;
+    private int width;
+    private int height;
+
+    LeaVideoRecordEncoder(final EglBase.Context sharedContext, LeaMp4Writer writer, int bitrate, int fps,
+            int maxPending) {
+        super("lea-rec-video", writer, true, maxPending);
+        this.sharedContext = sharedContext;
+        this.bitrate = bitrate;
+        this.fps = fps;
+    }
+
+    public long getFrameCount() {
+        return this.frames;
+    }
+
+    // On the track's delivery thread; only retains the frame and hands it over.
+    @Override
+    public void onFrame(final VideoFrame frame) {
+        if (this.isClosed()) {
+            return;
+        }
+        frame.retain();
+        if (!this.offer(() -> {
+            try {
+                this.encode(frame);
+            } finally {
+                frame.release();
+            }
+        })) {
+            frame.release();
+        }
+    }
+
+    private void encode(VideoFrame frame) {
+        if (null == this.codec && !this.configure(frame.getRotatedWidth(), frame.getRotatedHeight())) {
+            this.fail();
+            return;
+        }
+        GLES20.glClearColor(0, 0, 0, 1);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        this.frameDrawer.drawFrame(frame, this.drawer, null, 0, 0, this.width, this.height);
+        this.eglBase.swapBuffers(frame.getTimestampNs());
+        this.frames++;
+        this.drain(false);
+    }
+
+    // Many encoders only take sizes in whole macroblocks.
+    private boolean configure(int w, int h) {
+        this.width = Math.max(w & ~15, 16);
+        this.height = Math.max(h & ~15, 16);
+        final MediaFormat f = MediaFormat.createVideoFormat(MIME, this.width, this.height);
+        f.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        f.setInteger(MediaFormat.KEY_BIT_RATE, this.bitrate);
+        f.setInteger(MediaFormat.KEY_FRAME_RATE, this.fps);
+        f.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_S);
+        try {
+            this.codec = MediaCodec.createEncoderByType(MIME);
+            this.codec.configure(f, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            this.inputSurface = this.codec.createInputSurface();
+            this.codec.start();
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "video codec: " + e.toString());
+            return false;
+        }
+        this.eglBase = EglBase.create(this.sharedContext, EglBase.CONFIG_RECORDABLE);
+        this.eglBase.createSurface(this.inputSurface);
+        this.eglBase.makeCurrent();
+        this.frameDrawer = new VideoFrameDrawer();
+        this.drawer = new GlRectDrawer();
+        return true;
+    }
+
+    @Override
+    void signalEndOfStream() {
+        this.codec.signalEndOfInputStream();
+    }
+
+    @Override
+    void releaseResources() {
+        if (null != this.frameDrawer) {
+            this.frameDrawer.release();
+            this.frameDrawer = null;
+        }
+        if (null != this.drawer) {
+            this.drawer.release();
+            this.drawer = null;
+        }
+        if (null != this.eglBase) {
+            this.eglBase.release();
+            this.eglBase = null;
+        }
+        if (null != this.inputSurface) {
+            this.inputSurface.release();
+            this.inputSurface = null;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.ldeng7.learningwebrtc.webrtcclient;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.widget.Toast;
 
 import org.webrtc.AudioSource;
@@ -8,28 +11,31 @@ import org.webrtc.AudioTrack;
 import org.webrtc.Camera1Enumerator;
 import org.webrtc.Camera2Enumerator;
 import org.webrtc.CameraEnumerator;
-import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.EglBase;
-import org.webrtc.Logging;
 import org.webrtc.MediaConstraints;
-import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceServer;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpSender;
+import org.webrtc.RtpTransceiver;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoSource;
 import org.webrtc.VideoTrack;
-import org.webrtc.audio.AudioDeviceModule;
-import org.webrtc.audio.JavaAudioDeviceModule;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 
 public abstract class LeaWebRTCClient {
     public static class Conf implements Serializable {
@@ -41,73 +47,186 @@ public abstract class LeaWebRTCClient {
         public String turnUser;
         public String turnCredential;
         public boolean noVideo;
+        public int candBatchWindowMs = 40;
+        public int candBatchMaxSize = 8;
+        // Negotiated data channels to open on every call; null means a single reliable,
+        // ordered channel "dc1" with id 1.
+        public ArrayList<LeaDataChannel.Spec> dataChannels;
+        // Incoming messages waiting for the dispatcher thread, per kind of channel: reliable
+        // and partially reliable ones queue separately. More are dropped.
+        public int dispatchQueueSize = 1024;
+        // Steps capture resolution and framerate along LeaVideoAdaptation.DEFAULT_LADDER.
+        public boolean adaptVideo = true;
+        // getStats period for metrics and video adaptation.
+        public int statsIntervalMs = 1000;
+        // Applies the Opus settings below to both descriptions; off leaves them as WebRTC
+        // negotiates them. ptime 0 leaves the default.
+        public boolean tuneOpus;
+        public int opusPtimeMs = 20;
+        public boolean opusFec = true;
+        public boolean opusDtx = true;
+        // Sends these simulcast layers instead of a single encoding, capturing at the top of
+        // the adaptation ladder; the layers then replace capture adaptation.
+        public ArrayList<LeaSimulcast.Layer> simulcastLayers;
+        // Video codec names in order of preference, e.g. "H264", "VP8"; null keeps the
+        // encoder factory's order, which already lists hardware codecs first.
+        public ArrayList<String> videoCodecs;
+        // Bundle, rtcp-mux, candidate and gathering policies; null means
+        // LeaRtcProfile.EPreset.DEFAULT.
+        public LeaRtcProfile rtcProfile;
+        // ICE restarts tried, with backoff, once a connected call loses its path; 0 disables
+        // them.
+        public int iceRestartAttempts = 5;
+        // How long a DISCONNECTED may last before the first restart.
+        public int iceDisconnectGraceMs = 2000;
 
         URI wsUri;
         List<IceServer> iceServers;
     }
 
     abstract public void onConnected();
+    // Data channel callbacks run on the message dispatcher thread, not the main thread.
     abstract public void onDataChannelMsg(String s);
+    // The buffer comes from the channel's pool; pass it to ch.recycle() when done.
+    public void onDataChannelBinaryMsg(LeaDataChannel ch, ByteBuffer data) {
+        ch.recycle(data);
+    }
     abstract public void onStop();
 
     static final String LOG_TAG = "webrtc-client";
 
     Conf conf;
     final Context appContext;
+    private final boolean audioOnly;
+    private final boolean recordable;
+    final LeaCallTimings timings = new LeaCallTimings();
+    final LeaCallMetrics metrics = new LeaCallMetrics(this.timings,
+        LeaCallMetrics.DEFAULT_CAPACITY, LeaCallMetrics.DEFAULT_EXPORT_EVERY);
+    private final CountDownLatch localMediaLoaded = new CountDownLatch(1);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private LeaSharedFactory sharedFactory;
     private final EglBase eglBase;
     private SurfaceViewRenderer localVideo;
     private SurfaceViewRenderer remoteVideo;
-    private MediaStream localStream;
-    private MediaStream remoteStream;
+    private static final String LOCAL_STREAM_ID = "ls";
+
+    private AudioTrack localAudioTrack;
+    private VideoTrack localVideoTrack;
+    private RtpSender audioSender;
+    private RtpSender videoSender;
+    private RtpTransceiver videoTransceiver;
+    private LeaSimulcast simulcast;
+    private boolean remoteMediaSeen;
+    private VideoTrack remoteVideoTrack;
+    private LeaRecorder localRecorder;
+    private LeaRecorder remoteRecorder;
     private VideoSource videoSource;
     private AudioSource audioSource;
     private SurfaceTextureHelper surfaceTextureHelper;
     private VideoCapturer videoCapturer;
     private LeaWebSocketClient wsClient;
     private final PeerConnectionFactory pcFactory;
-    private PeerConnection peerConn;
-    private LeaDataChannel dataChan;
+    private volatile PeerConnection peerConn;
+    private LeaStatsPoller statsPoller;
+    private final LeaDataChannelRouter dataChannelRouter = new LeaDataChannelRouter(this);
+    private final CopyOnWriteArrayList<LeaSdp.Transform> sdpTransforms = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<LeaFrameStage> frameStages = new CopyOnWriteArrayList<>();
+    private LeaFrameProcessor frameProcessor;
 
     public LeaWebRTCClient(final Context context) {
+        this(context, false);
+    }
+
+    // An audio-only client creates no EGL context or video codec factories and only runs
+    // calls with Conf.noVideo.
+    public LeaWebRTCClient(final Context context, boolean audioOnly) {
+        this(context, audioOnly, false);
+    }
+
+    // Only a recordable client can record the microphone. It uses its own factory, whose
+    // audio device module copies every captured buffer out to Java, so prewarm() does not
+    // cover it.
+    public LeaWebRTCClient(final Context context, boolean audioOnly, boolean recordable) {
         this.appContext = context;
-        this.eglBase = EglBase.create();
-        final EglBase.Context eglBaseContext = this.eglBase.getEglBaseContext();
-
-        PeerConnectionFactory.InitializationOptions pcfio = PeerConnectionFactory.InitializationOptions.builder(context)
-            .setEnableInternalTracer(true)
-            .createInitializationOptions();
-        PeerConnectionFactory.initialize(pcfio);
-        Logging.enableLogToDebugOutput(Logging.Severity.LS_VERBOSE);
-
-        final AudioDeviceModule adm = JavaAudioDeviceModule.builder(this.appContext)
-            .setUseHardwareAcousticEchoCanceler(true)
-            .setUseHardwareNoiseSuppressor(true)
-            .createAudioDeviceModule();
-        this.pcFactory = PeerConnectionFactory.builder()
-            .setAudioDeviceModule(adm)
-            .setVideoEncoderFactory(new DefaultVideoEncoderFactory(eglBaseContext, true, true))
-            .setVideoDecoderFactory(new DefaultVideoDecoderFactory(eglBaseContext))
-            .createPeerConnectionFactory();
-        adm.release();
+        this.audioOnly = audioOnly;
+        this.recordable = recordable;
+        this.sharedFactory = LeaSharedFactory.acquire(context, audioOnly, recordable);
+        this.eglBase = this.sharedFactory.eglBase;
+        this.pcFactory = this.sharedFactory.pcFactory;
+        this.timings.mark(LeaCallTimings.EMark.FACTORY_READY);
+    }
+
+    // Builds the process-wide factory and EGL context ahead of the first call, and keeps
+    // them alive until releasePrewarm(), so later clients only take a reference. audioOnly
+    // must match the client that will be created; calling again with the other value
+    // switches the prewarmed variant.
+    public static void prewarm(final Context context) {
+        prewarm(context, false);
+    }
+
+    public static void prewarm(final Context context, final boolean audioOnly) {
+        final Context appContext = context.getApplicationContext();
+        LeaSharedFactory.requestPrewarm(audioOnly);
+        new Thread(() -> LeaSharedFactory.applyPrewarm(appContext)).start();
     }
 
+    public static void releasePrewarm() {
+        LeaSharedFactory.releasePrewarm();
+    }
+
+    public boolean isAudioOnly() {
+        return this.audioOnly;
+    }
+
+    // null for an audio-only client.
     public EglBase getEglBase() {
         return this.eglBase;
     }
 
+    public LeaCallTimings getTimings() {
+        return this.timings;
+    }
+
+    public LeaCallMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public LeaSignalingTransport getSignalingTransport() {
+        return null != this.wsClient ? this.wsClient.getTransport() : null;
+    }
+
+    // null before start() and after stop().
+    public LeaConnectionSupervisor getConnectionSupervisor() {
+        final LeaWebSocketClient ws = this.wsClient;
+        return null != ws ? ws.getSupervisor() : null;
+    }
+
+    public LeaDataChannelRouter getDataChannelRouter() {
+        return this.dataChannelRouter;
+    }
+
+    // The first configured channel.
     public LeaDataChannel getDataChannel() {
-        return this.dataChan;
+        final List<LeaDataChannel> l = this.dataChannelRouter.getAll();
+        return l.isEmpty() ? null : l.get(0);
     }
 
     PeerConnection getPeerConnection() {
         return this.peerConn;
     }
 
-    private void showErr(String msg) {
-        Toast.makeText(this.appContext, msg, Toast.LENGTH_LONG).show();
+    RtpTransceiver getVideoTransceiver() {
+        return this.videoTransceiver;
+    }
+
+    void showErr(String msg) {
+        this.mainHandler.post(() -> Toast.makeText(this.appContext, msg, Toast.LENGTH_LONG).show());
     }
 
     private boolean setConf(Conf conf) {
+        if (this.audioOnly) {
+            conf.noVideo = true;
+        }
         if (conf.localUid.length() == 0 || conf.remoteUid.length() == 0) {
             this.showErr("invalid uid");
             return false;
@@ -136,6 +255,15 @@ public abstract class LeaWebRTCClient {
             conf.iceServers.add(e);
         }
 
+        if (null == conf.rtcProfile) {
+            conf.rtcProfile = LeaRtcProfile.of(LeaRtcProfile.EPreset.DEFAULT);
+        }
+        if (conf.rtcProfile.iceTransportsType == PeerConnection.IceTransportsType.RELAY &&
+                conf.turnServer.length() == 0) {
+            this.showErr("relay-only needs a turn server");
+            return false;
+        }
+
         this.conf = conf;
         return true;
     }
@@ -162,73 +290,394 @@ public abstract class LeaWebRTCClient {
     }
 
     private void loadLocalMedia() {
-        this.localStream = this.pcFactory.createLocalMediaStream("ls");
-
         if (!this.conf.noVideo) {
             this.videoSource = this.pcFactory.createVideoSource(this.videoCapturer.isScreencast());
             final VideoTrack vt = this.pcFactory.createVideoTrack("v0", this.videoSource);
-            this.localStream.addTrack(vt);
+            this.localVideoTrack = vt;
 
             this.surfaceTextureHelper = SurfaceTextureHelper.create("video",
                 this.eglBase.getEglBaseContext());
+            this.frameProcessor = new LeaFrameProcessor(this.surfaceTextureHelper.getHandler(), this.frameStages);
+            this.videoSource.setVideoProcessor(this.frameProcessor);
             this.videoCapturer.initialize(this.surfaceTextureHelper, this.appContext,
                 this.videoSource.getCapturerObserver());
-            this.videoCapturer.startCapture(480, 360, 25);
+            final LeaVideoAdaptation.Level l = LeaVideoAdaptation.DEFAULT_LADDER[
+                null != this.conf.simulcastLayers ? LeaVideoAdaptation.DEFAULT_LADDER.length - 1 :
+                    LeaVideoAdaptation.DEFAULT_START_LEVEL];
+            this.videoCapturer.startCapture(l.width, l.height, l.fps);
+            this.timings.mark(LeaCallTimings.EMark.CAPTURER_STARTED);
+            LeaTrace.event(LeaTrace.EEvent.CAPTURE_STARTED, ((long) l.width << 32) | ((long) l.height << 16) | l.fps);
 
             vt.addSink(this.localVideo);
         }
 
         this.audioSource = this.pcFactory.createAudioSource(new MediaConstraints());
-        final AudioTrack at = this.pcFactory.createAudioTrack("a0", this.audioSource);
-        this.localStream.addTrack(at);
+        this.localAudioTrack = this.pcFactory.createAudioTrack("a0", this.audioSource);
     }
 
-    void createPeerConnection() {
+    boolean createPeerConnection() {
+        try {
+            this.localMediaLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (null == this.localAudioTrack) {
+            return false;
+        }
+
+        final PeerConnection.RTCConfiguration rtcConf = new PeerConnection.RTCConfiguration(this.conf.iceServers);
+        rtcConf.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
+        this.conf.rtcProfile.apply(rtcConf);
+        this.metrics.setRtcPreset(this.conf.rtcProfile.preset);
         final PeerConnection.Observer pco = new LeaPeerConnectionObserver(this, this.wsClient);
-        this.peerConn = this.pcFactory.createPeerConnection(this.conf.iceServers, pco);
-        this.peerConn.addStream(this.localStream);
-        this.dataChan = new LeaDataChannel(this, 1, "dc1");
+        this.peerConn = this.pcFactory.createPeerConnection(rtcConf, pco);
+        // The stream id lets Plan B and legacy onaddstream peers group the tracks.
+        final List<String> streamIds = Collections.singletonList(LOCAL_STREAM_ID);
+        this.audioSender = this.peerConn.addTrack(this.localAudioTrack, streamIds);
+        if (null != this.localVideoTrack) {
+            final RtpTransceiver.RtpTransceiverInit init;
+            if (null != this.conf.simulcastLayers) {
+                this.simulcast = new LeaSimulcast(this.conf.simulcastLayers);
+                init = new RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_RECV,
+                    streamIds, this.simulcast.toEncodings());
+            } else {
+                init = new RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_RECV,
+                    streamIds);
+            }
+            this.videoTransceiver = this.peerConn.addTransceiver(this.localVideoTrack, init);
+            this.videoSender = this.videoTransceiver.getSender();
+            if (null != this.simulcast) {
+                this.simulcast.attach(this.videoSender);
+            }
+        }
+        if (null == this.conf.dataChannels) {
+            this.dataChannelRouter.add(new LeaDataChannel(this, this.dataChannelRouter,
+                new LeaDataChannel.Spec(1, "dc1")));
+        } else {
+            for (LeaDataChannel.Spec spec : this.conf.dataChannels) {
+                this.dataChannelRouter.add(new LeaDataChannel(this, this.dataChannelRouter, spec));
+            }
+        }
+        return true;
+    }
+
+    // Without video no video m-line is offered. An offered one is still answered, but an
+    // audio-only client has no video codecs to accept it with.
+    MediaConstraints sdpConstraints() {
+        final MediaConstraints c = new MediaConstraints();
+        c.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "true"));
+        c.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo",
+            this.conf.noVideo ? "false" : "true"));
+        return c;
+    }
+
+    // Runs t on every description after the Opus and codec order edits the Conf asks for:
+    // local ones between creation and setLocalDescription/send, remote ones before they are
+    // applied. LeaSdpMunger has ready-made transforms.
+    public void addSdpTransform(LeaSdp.Transform t) {
+        this.sdpTransforms.add(t);
+    }
+
+    public void removeSdpTransform(LeaSdp.Transform t) {
+        this.sdpTransforms.remove(t);
+    }
+
+    // Applied to the local description, whose order is what we ask to receive, and to the
+    // remote one, whose first codec is what we send. Parsed and serialized once however many
+    // transforms run.
+    String tuneSdp(String sdp, boolean local) {
+        final LeaSdp d = LeaSdp.parse(sdp);
+        if (this.conf.tuneOpus) {
+            LeaSdpMunger.tuneOpus(this.conf.opusPtimeMs, this.conf.opusFec, this.conf.opusDtx).apply(d, local);
+        }
+        if (null != this.conf.videoCodecs) {
+            LeaSdpMunger.preferCodecs("video", this.conf.videoCodecs).apply(d, local);
+        }
+        for (LeaSdp.Transform t : this.sdpTransforms) {
+            t.apply(d, local);
+        }
+        return d.toString();
     }
 
-    void addRemoteStream(MediaStream mediaStream) {
-        this.remoteStream = mediaStream;
-        if (!this.conf.noVideo && mediaStream.videoTracks.size() >= 1) {
-            mediaStream.videoTracks.get(0).addSink(this.remoteVideo);
+    // The encoder that was last created for this process, e.g. "H264/hardware", or null.
+    // The stats' encoderImplementation (LeaCallMetrics) names the one actually running.
+    public String getEncoderFactoryChoice() {
+        final LeaSharedFactory f = this.sharedFactory;
+        return null != f && null != f.encoderFactory ? f.encoderFactory.getLastImplementation() : null;
+    }
+
+    void onIceConnected() {
+        this.timings.mark(LeaCallTimings.EMark.ICE_CONNECTED);
+        if (LeaTrace.getMode() == LeaTrace.EMode.FULL) {
+            Log.i(LOG_TAG, "timings: " + this.timings);
+        }
+        synchronized (this) {
+            if (null != this.statsPoller || null == this.peerConn) {
+                return;
+            }
+            this.statsPoller = new LeaStatsPoller(this.peerConn, this.conf.statsIntervalMs);
+            this.statsPoller.addListener(this.metrics);
+            if (null != this.simulcast) {
+                this.statsPoller.addListener(this.simulcast);
+            } else if (!this.conf.noVideo && this.conf.adaptVideo) {
+                this.statsPoller.addListener(new LeaVideoAdaptationController(this.peerConn,
+                    this.videoCapturer, new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER,
+                        LeaVideoAdaptation.DEFAULT_START_LEVEL)));
+            }
+            this.statsPoller.start();
+        }
+    }
+
+    void onRemoteTrack(RtpTransceiver transceiver) {
+        final MediaStreamTrack t = transceiver.getReceiver().track();
+        if (!this.conf.noVideo && t instanceof VideoTrack) {
+            final VideoTrack vt = (VideoTrack) t;
+            vt.addSink(this.remoteVideo);
+            final LeaRecorder r;
+            synchronized (this) {
+                this.remoteVideoTrack = vt;
+                r = this.remoteRecorder;
+            }
+            if (null != r) {
+                vt.addSink(r.getVideoSink());
+            }
+        }
+        synchronized (this) {
+            if (this.remoteMediaSeen) {
+                return;
+            }
+            this.remoteMediaSeen = true;
         }
         this.onConnected();
     }
 
-    public boolean start(Conf conf, SurfaceViewRenderer localVideo, SurfaceViewRenderer remoteVideo) {
-        if (!this.setConf(conf)) {
+    // Appends a stage to the chain between the camera and the video source; stages run in
+    // the order added, may be added and removed while capturing, and are released on
+    // removal and at stop(). LeaFrameStages has ready-made ones.
+    public void addFrameStage(LeaFrameStage stage) {
+        this.frameStages.add(stage);
+    }
+
+    public void removeFrameStage(LeaFrameStage stage) {
+        final LeaFrameProcessor p = this.frameProcessor;
+        if (this.frameStages.remove(stage) && null != p) {
+            p.release(stage);
+        }
+    }
+
+    // null before start(), after stop() and without video.
+    public LeaFrameProcessor getFrameProcessor() {
+        return this.frameProcessor;
+    }
+
+    // Records the call until stopRecording() or stop(): the camera and, for a recordable
+    // client, the microphone to localFile, the remote video to remoteFile; either may be
+    // null. Remote audio is only mixed for playout inside the native audio device module and
+    // never reaches Java, so remoteFile holds video only. Returns false if a file cannot be
+    // created, localFile would get neither track, or a recording is already running.
+    public boolean startRecording(File localFile, File remoteFile) {
+        if (null == this.conf) {
             return false;
         }
-        if (!conf.noVideo && !this.createVideoCapturer()) {
-            this.showErr("camera not found");
+        if (null != localFile && null == this.localVideoTrack && !this.recordable) {
+            return false;
+        }
+        final EglBase.Context ctx = null != this.eglBase ? this.eglBase.getEglBaseContext() : null;
+        LeaRecorder local = null;
+        LeaRecorder remote = null;
+        try {
+            if (null != localFile) {
+                local = new LeaRecorder(localFile, null != this.localVideoTrack ? ctx : null, this.recordable);
+            }
+            if (null != remoteFile && !this.conf.noVideo) {
+                remote = new LeaRecorder(remoteFile, ctx, false);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "recording: " + e.toString());
+            if (null != local) {
+                local.close();
+            }
+            return false;
+        }
+        final boolean busy;
+        final VideoTrack remoteTrack;
+        synchronized (this) {
+            busy = null != this.localRecorder || null != this.remoteRecorder;
+            if (!busy) {
+                this.localRecorder = local;
+                this.remoteRecorder = remote;
+            }
+            remoteTrack = this.remoteVideoTrack;
+        }
+        if (busy) {
+            if (null != local) {
+                local.close();
+            }
+            if (null != remote) {
+                remote.close();
+            }
             return false;
         }
+        if (null != local) {
+            if (null != local.getVideoSink()) {
+                this.localVideoTrack.addSink(local.getVideoSink());
+            }
+            if (null != local.getSamplesCallback()) {
+                LeaSharedFactory.addSamplesTap(local.getSamplesCallback());
+            }
+        }
+        if (null != remote && null != remoteTrack) {
+            remoteTrack.addSink(remote.getVideoSink());
+        }
+        return true;
+    }
 
+    // Finalizes the files. Recorders taken from getLocalRecorder() and getRemoteRecorder()
+    // keep their final metrics.
+    public void stopRecording() {
+        final LeaRecorder local;
+        final LeaRecorder remote;
+        final VideoTrack remoteTrack;
+        synchronized (this) {
+            local = this.localRecorder;
+            remote = this.remoteRecorder;
+            remoteTrack = this.remoteVideoTrack;
+            this.localRecorder = null;
+            this.remoteRecorder = null;
+        }
+        if (null != local) {
+            if (null != local.getSamplesCallback()) {
+                LeaSharedFactory.removeSamplesTap(local.getSamplesCallback());
+            }
+            if (null != local.getVideoSink()) {
+                this.localVideoTrack.removeSink(local.getVideoSink());
+            }
+            local.close();
+            if (LeaTrace.getMode() == LeaTrace.EMode.FULL) {
+                Log.i(LOG_TAG, "local recording: " + local);
+            }
+        }
+        if (null != remote) {
+            if (null != remoteTrack) {
+                remoteTrack.removeSink(remote.getVideoSink());
+            }
+            remote.close();
+            if (LeaTrace.getMode() == LeaTrace.EMode.FULL) {
+                Log.i(LOG_TAG, "remote recording: " + remote);
+            }
+        }
+    }
+
+    // null unless recording.
+    public synchronized LeaRecorder getLocalRecorder() {
+        return this.localRecorder;
+    }
+
+    public synchronized LeaRecorder getRemoteRecorder() {
+        return this.remoteRecorder;
+    }
+
+    public PeerConnectionFactory getPeerConnectionFactory() {
+        return this.pcFactory;
+    }
+
+    // null unless Conf.simulcastLayers was set and the call has video.
+    public LeaSimulcast getSimulcast() {
+        return this.simulcast;
+    }
+
+    public VideoTrack getLocalVideoTrack() {
+        return this.localVideoTrack;
+    }
+
+    // Swaps what the video sender transmits without renegotiating, e.g. to a screen
+    // capture track, back to getLocalVideoTrack(), or to null to send nothing. The caller
+    // keeps ownership of track. Returns false if there is no video sender.
+    public boolean replaceVideoTrack(VideoTrack track) {
+        final RtpSender s = this.videoSender;
+        return null != s && s.setTrack(track, false);
+    }
+
+    // Mutes by detaching the microphone track from its sender, which stops audio packets
+    // altogether instead of sending silence.
+    public boolean setAudioMuted(boolean muted) {
+        final RtpSender s = this.audioSender;
+        return null != s && s.setTrack(muted ? null : this.localAudioTrack, false);
+    }
+
+    public boolean start(Conf conf, SurfaceViewRenderer localVideo, SurfaceViewRenderer remoteVideo) {
+        if (!this.setConf(conf)) {
+            return false;
+        }
         this.localVideo = localVideo;
         this.remoteVideo = remoteVideo;
-        this.loadLocalMedia();
+        LeaTrace.event(LeaTrace.EEvent.CALL_START, 0);
 
+        // The signaling handshake runs while the camera comes up; the PeerConnection is
+        // only built once both are done.
         this.wsClient = new LeaWebSocketClient(this);
         this.wsClient.connect();
+        try {
+            if (!conf.noVideo && !this.createVideoCapturer()) {
+                this.showErr("camera not found");
+                return false;
+            }
+            this.loadLocalMedia();
+        } finally {
+            this.localMediaLoaded.countDown();
+        }
         return true;
     }
 
     public void stop() {
+        if (null != this.wsClient) {
+            this.wsClient.getSupervisor().close();
+        }
+        // Before the tracks the recorders sink from go away.
+        this.stopRecording();
+        synchronized (this) {
+            if (null != this.statsPoller) {
+                this.statsPoller.close();
+                this.statsPoller = null;
+                this.metrics.flush();
+            }
+        }
         if (null != this.peerConn) {
-            this.peerConn.close();
+            if (null != this.simulcast) {
+                this.simulcast.detach();
+            }
+            this.peerConn.dispose();
             this.peerConn = null;
+            synchronized (this) {
+                this.remoteVideoTrack = null;
+            }
+            this.audioSender = null;
+            this.videoSender = null;
+            this.videoTransceiver = null;
+            this.dataChannelRouter.clear();
         }
         if (null != this.wsClient) {
             this.wsClient.close();
             this.wsClient = null;
         }
+        // Senders hold their own references, so the tracks are disposed here in any case.
+        if (null != this.localVideoTrack) {
+            this.localVideoTrack.dispose();
+            this.localVideoTrack = null;
+        }
+        if (null != this.localAudioTrack) {
+            this.localAudioTrack.dispose();
+            this.localAudioTrack = null;
+        }
         if (null != this.videoCapturer) {
             this.videoCapturer.dispose();
             this.videoCapturer = null;
         }
+        if (null != this.frameProcessor) {
+            this.frameProcessor.close();
+            this.frameProcessor = null;
+        }
         if (null != this.surfaceTextureHelper) {
             this.surfaceTextureHelper.dispose();
             this.surfaceTextureHelper = null;
@@ -241,14 +690,11 @@ public abstract class LeaWebRTCClient {
             this.audioSource.dispose();
             this.audioSource = null;
         }
-        if (null != this.localStream) {
-            this.localStream.dispose();
-            this.localStream = null;
-        }
-        if (null != this.remoteStream) {
-            this.remoteStream.dispose();
-            this.remoteStream = null;
+        if (null != this.sharedFactory) {
+            LeaSharedFactory.release(this.audioOnly, this.recordable);
+            this.sharedFactory = null;
         }
+        LeaTrace.event(LeaTrace.EEvent.CALL_STOP, 0);
         this.onStop();
     }
 }
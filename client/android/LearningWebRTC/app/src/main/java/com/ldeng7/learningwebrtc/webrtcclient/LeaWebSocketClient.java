@@ -1,119 +1,252 @@
 package com.ldeng7.learningwebrtc.webrtcclient;
 
-import android.os.Looper;
-import android.util.Log;
-import android.widget.Toast;
-
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.drafts.Draft_17;
-import org.java_websocket.handshake.ServerHandshake;
+import com.ldeng7.learningwebrtc.signaling.LeaPeer;
+import com.ldeng7.learningwebrtc.signaling.LeaSignalingChannel;
+import com.ldeng7.learningwebrtc.signaling.LeaSignalingSession;
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
 
 import org.webrtc.IceCandidate;
-import org.webrtc.MediaConstraints;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
-class LeaWebSocketClient extends WebSocketClient {
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Binds a LeaSignalingSession to the app: the shared websocket transport as its channel,
+// this call's PeerConnection as its peer, and tracing, metrics and the client's lifecycle
+// as its listener. The protocol itself lives in the signaling module.
+class LeaWebSocketClient implements LeaSignalingTransport.Session, LeaSignalingChannel, LeaPeer,
+        LeaSignalingSession.Listener, LeaConnectionSupervisor.Actions {
     private static final String LOG_TAG = LeaWebRTCClient.LOG_TAG + ":websocket";
 
     private final LeaWebRTCClient webRTCClient;
+    private final LeaSignalingSession session;
+    private final LeaConnectionSupervisor supervisor;
+    // Runs the LeaPeer calls in order, off the transport's read thread, which every call
+    // to the same server shares and which must not wait for this call's camera.
+    private final ExecutorService peerExecutor = Executors.newSingleThreadExecutor();
+    private LeaSignalingTransport transport;
+    private volatile LeaSignalingChannel.Listener channelListener;
 
     LeaWebSocketClient(LeaWebRTCClient webRTCClient) {
-        super(webRTCClient.conf.wsUri, new Draft_17());
         this.webRTCClient = webRTCClient;
+        this.session = new LeaSignalingSession(webRTCClient.conf.localUid, webRTCClient.conf.remoteUid,
+            this, this, this, webRTCClient.conf.candBatchWindowMs, webRTCClient.conf.candBatchMaxSize);
+        this.supervisor = new LeaConnectionSupervisor(this,
+            webRTCClient.conf.iceDisconnectGraceMs, webRTCClient.conf.iceRestartAttempts);
     }
 
-    void send(LeaWebSocketMessage.EPhase phase, Object data) {
-        Log.i(LOG_TAG, "send phase " + phase.ordinal());
-        String json = LeaWebSocketMessage.encode(phase, data);
-        super.send(json);
+    LeaSignalingSession getSession() {
+        return this.session;
     }
 
-    private void onRecvDial(final LeaWebSocketMessage.Response<Boolean> resp) {
-        if (!resp.success) {
-            Toast.makeText(this.webRTCClient.appContext, resp.message, Toast.LENGTH_LONG).show();
-            this.webRTCClient.stop();
-            return;
+    LeaConnectionSupervisor getSupervisor() {
+        return this.supervisor;
+    }
+
+    synchronized LeaSignalingTransport getTransport() {
+        return this.transport;
+    }
+
+    void connect() {
+        this.session.open();
+    }
+
+    // Ends this session only; the underlying socket stays up for later calls.
+    void close() {
+        this.session.close();
+        this.peerExecutor.shutdown();
+    }
+
+    private void onPeerThread(Runnable r) {
+        try {
+            this.peerExecutor.execute(r);
+        } catch (RejectedExecutionException e) {
+            // Closed; the call is over.
         }
+    }
 
-        this.webRTCClient.createPeerConnection();
-        if (!resp.data) {
-            return;
+    // LeaSignalingChannel, over the transport shared by every call to the same server.
+
+    @Override
+    public void open(String sid, LeaSignalingChannel.Listener listener) {
+        this.channelListener = listener;
+        while (true) {
+            final LeaSignalingTransport t = LeaSignalingTransport.get(this.webRTCClient.conf.wsUri);
+            synchronized (this) {
+                this.transport = t;
+            }
+            if (t.attach(this)) {
+                return;
+            }
         }
-        this.webRTCClient.getPeerConnection().createOffer(
-            new LeaSDPObserver(this.webRTCClient, this, LeaWebSocketMessage.EPhase.OFFER),
-            new MediaConstraints());
     }
 
-    private void onRecvOffer(LeaWebSocketMessage.Response<LeaWebSocketMessage.SdpData> resp) {
-        final PeerConnection pc = this.webRTCClient.getPeerConnection();
-        final LeaSDPObserver so = new LeaSDPObserver(this.webRTCClient, this,
-            LeaWebSocketMessage.EPhase.ANS);
-        pc.setRemoteDescription(so, new SessionDescription(
-            SessionDescription.Type.fromCanonicalForm(resp.data.type), resp.data.sdp));
-        pc.createAnswer(so, new MediaConstraints());
+    @Override
+    public void send(String sid, LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data) {
+        final LeaSignalingTransport t = this.getTransport();
+        if (null != t) {
+            t.send(this, phase, data);
+        }
     }
 
-    private void onRecvAns(LeaWebSocketMessage.Response<LeaWebSocketMessage.SdpData> resp) {
-        this.webRTCClient.getPeerConnection().setRemoteDescription(
-            new LeaSDPObserver(this.webRTCClient, this, LeaWebSocketMessage.EPhase.ANS),
-            new SessionDescription(
-                SessionDescription.Type.fromCanonicalForm(resp.data.type), resp.data.sdp));
+    @Override
+    public void close(String sid) {
+        final LeaSignalingTransport t = this.getTransport();
+        if (null != t) {
+            t.detach(this);
+        }
     }
 
-    private void onRecvCand(LeaWebSocketMessage.Response<LeaWebSocketMessage.CandidateData> resp) {
-        this.webRTCClient.getPeerConnection().addIceCandidate(
-            new IceCandidate(resp.data.sdpMid, resp.data.sdpMLineIndex, resp.data.candidate));
+    @Override
+    public String getSid() {
+        return this.session.getSid();
     }
 
     @Override
-    public void onOpen(ServerHandshake shd) {
-        if (null == Looper.myLooper()) {
-            Looper.prepare();
-        }
-        LeaWebSocketMessage.DialRequestData data = new LeaWebSocketMessage.DialRequestData();
-        data.localUid = this.webRTCClient.conf.localUid;
-        data.remoteUid = this.webRTCClient.conf.remoteUid;
-        this.send(LeaWebSocketMessage.EPhase.DIAL, data);
+    public void onTransportOpen(boolean reconnected) {
+        this.channelListener.onChannelOpen(reconnected);
     }
 
     @Override
-    public void onMessage(String msg) {
-        LeaWebSocketMessage.Response resp;
-        try {
-            resp = LeaWebSocketMessage.decode(msg);
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "message parsing: " + e.toString());
+    public void onTransportMessage(LeaWebSocketMessage.Response<?> resp) {
+        this.channelListener.onChannelMessage(resp);
+    }
+
+    @Override
+    public void onTransportLost() {
+        this.channelListener.onChannelLost();
+    }
+
+    // LeaPeer, over this call's PeerConnection.
+
+    // Waits for local media on the peer thread; the calls queued behind it find no
+    // PeerConnection if it could not be built.
+    @Override
+    public boolean create(LeaSignalingSession session) {
+        this.onPeerThread(() -> {
+            if (!this.webRTCClient.createPeerConnection()) {
+                session.hangUp();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void createOffer(boolean iceRestart) {
+        this.onPeerThread(() -> {
+            final PeerConnection pc = this.webRTCClient.getPeerConnection();
+            if (null == pc) {
+                return;
+            }
+            if (iceRestart) {
+                if (pc.signalingState() != PeerConnection.SignalingState.STABLE) {
+                    return;
+                }
+                pc.restartIce();
+            }
+            pc.createOffer(new LeaSDPObserver(this.webRTCClient, this.session, false),
+                this.webRTCClient.sdpConstraints());
+        });
+    }
+
+    @Override
+    public void createAnswer() {
+        this.onPeerThread(() -> {
+            final PeerConnection pc = this.webRTCClient.getPeerConnection();
+            if (null == pc) {
+                return;
+            }
+            pc.createAnswer(new LeaSDPObserver(this.webRTCClient, this.session, false),
+                this.webRTCClient.sdpConstraints());
+        });
+    }
+
+    @Override
+    public void setRemoteDescription(String type, String sdp) {
+        this.onPeerThread(() -> {
+            final PeerConnection pc = this.webRTCClient.getPeerConnection();
+            if (null == pc) {
+                return;
+            }
+            pc.setRemoteDescription(new LeaSDPObserver(this.webRTCClient, this.session, true),
+                new SessionDescription(SessionDescription.Type.fromCanonicalForm(type),
+                    this.webRTCClient.tuneSdp(sdp, false)));
+        });
+    }
+
+    @Override
+    public void addCandidates(LeaWebSocketMessage.CandidateData[] candidates) {
+        this.onPeerThread(() -> {
+            final PeerConnection pc = this.webRTCClient.getPeerConnection();
+            if (null == pc) {
+                return;
+            }
+            for (LeaWebSocketMessage.CandidateData d : candidates) {
+                pc.addIceCandidate(new IceCandidate(d.sdpMid, d.sdpMLineIndex, d.candidate));
+            }
+        });
+    }
+
+    // LeaSignalingSession.Listener
+
+    @Override
+    public void onChannelOpen() {
+        this.webRTCClient.timings.mark(LeaCallTimings.EMark.WS_OPEN);
+    }
+
+    @Override
+    public void onPhase(LeaWebSocketMessage.EPhase phase, boolean sent) {
+        LeaTrace.event(sent ? LeaTrace.EEvent.PHASE_TX : LeaTrace.EEvent.PHASE_RX, phase.ordinal());
+        this.webRTCClient.metrics.onPhase(phase, sent);
+    }
+
+    @Override
+    public void onDialAck() {
+        this.webRTCClient.timings.mark(LeaCallTimings.EMark.DIAL_ACK);
+    }
+
+    @Override
+    public void onRejected(LeaWebSocketMessage.EPhase phase, String message) {
+        if (phase == LeaWebSocketMessage.EPhase.DIAL) {
+            this.webRTCClient.showErr(message);
             return;
         }
-        Log.i(LOG_TAG, "recv phase " + resp.phase.ordinal());
-        switch (resp.phase) {
-            case DIAL:
-                this.onRecvDial(resp);
-                break;
-            case OFFER:
-                this.onRecvOffer(resp);
-                break;
-            case ANS:
-                this.onRecvAns(resp);
-                break;
-            case CAND:
-                this.onRecvCand(resp);
-                break;
-            case STOP:
-                this.webRTCClient.stop();
-                break;
-        }
+        LeaTrace.error(LeaTrace.EEvent.PHASE_REJECTED, phase.ordinal(), LOG_TAG,
+            "phase " + phase.ordinal() + " rejected: " + message);
     }
 
     @Override
-    public void onClose(int code, String reason, boolean remote) {
-        Log.i(LOG_TAG, "on close: " + reason);
+    public void onResumed() {
+        LeaTrace.event(LeaTrace.EEvent.SESSION_RESUMED, 0);
+    }
+
+    @Override
+    public void onChannelLost() {
+        LeaTrace.event(LeaTrace.EEvent.TRANSPORT_LOST, 0);
+    }
+
+    @Override
+    public void onStopped() {
         this.webRTCClient.stop();
     }
 
+    // LeaConnectionSupervisor.Actions
+
+    @Override
+    public boolean restartsIce() {
+        return this.session.isOfferer();
+    }
+
+    @Override
+    public void restartIce(int attempt) {
+        this.session.restartIce();
+    }
+
     @Override
-    public void onError(Exception e) {
-        Log.e(LOG_TAG, "on error: " + e.toString());
+    public void giveUp() {
+        this.webRTCClient.showErr("connection lost");
+        this.session.hangUp();
     }
 }
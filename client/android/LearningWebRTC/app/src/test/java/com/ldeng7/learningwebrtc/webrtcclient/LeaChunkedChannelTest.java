@@ -0,0 +1,202 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LeaChunkedChannelTest {
+    private static class Received {
+        final int streamId;
+        final byte[] data;
+        final boolean text;
+
+        Received(int streamId, ByteBuffer data, boolean text) {
+            this.streamId = streamId;
+            this.data = new byte[data.remaining()];
+            data.get(this.data);
+            this.text = text;
+        }
+    }
+
+    // Feeds hand-made frames straight to the receiver.
+    private static class NullChannel implements LeaFrameChannel {
+        @Override
+        public boolean offer(ByteBuffer b, SendCallback cb) {
+            return false;
+        }
+
+        @Override
+        public void setReceiver(Receiver r) {}
+    }
+
+    private LeaLoopbackChannel[] pair;
+    private final LinkedBlockingQueue<Received> received = new LinkedBlockingQueue<>();
+    private LeaChunkedChannel sender;
+    private LeaChunkedChannel receiver;
+
+    @Before
+    public void setUp() {
+        this.pair = LeaLoopbackChannel.createPair();
+        this.sender = new LeaChunkedChannel(this.pair[0], (id, data, text) -> {});
+        this.receiver = new LeaChunkedChannel(this.pair[1], (id, data, text) -> {
+            this.received.add(new Received(id, data, text));
+            this.receiver.recycle(data);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.pair[0].close();
+        this.pair[1].close();
+    }
+
+    private Received take() throws InterruptedException {
+        final Received r = this.received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no message", r);
+        return r;
+    }
+
+    private static byte[] pattern(int n, int seed) {
+        final byte[] a = new byte[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = (byte) (i * 31 + seed);
+        }
+        return a;
+    }
+
+    @Test
+    public void messagesOfEverySizeRoundTrip() throws InterruptedException {
+        final int[] sizes = {0, 1, LeaChunkedChannel.DEFAULT_CHUNK_SIZE - 13, LeaChunkedChannel.DEFAULT_CHUNK_SIZE,
+            3 * LeaChunkedChannel.DEFAULT_CHUNK_SIZE + 7, 1024 * 1024};
+        for (int i = 0; i < sizes.length; i++) {
+            this.sender.send(7, ByteBuffer.wrap(pattern(sizes[i], i)), null);
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            final Received r = this.take();
+            assertEquals(7, r.streamId);
+            assertFalse(r.text);
+            assertArrayEquals(pattern(sizes[i], i), r.data);
+        }
+        assertEquals(0, this.receiver.getDroppedMessages());
+    }
+
+    @Test
+    public void textIsFlagged() throws InterruptedException {
+        this.sender.send(1, "h\u00e9llo", null);
+        final Received r = this.take();
+        assertTrue(r.text);
+        assertEquals("h\u00e9llo", new String(r.data, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void smallMessageOvertakesLargeTransfer() throws InterruptedException {
+        this.sender.send(1, ByteBuffer.wrap(pattern(4 * 1024 * 1024, 1)), null);
+        this.sender.send(2, "ping", null);
+        assertEquals(2, this.take().streamId);
+        final Received big = this.take();
+        assertEquals(1, big.streamId);
+        assertArrayEquals(pattern(4 * 1024 * 1024, 1), big.data);
+    }
+
+    @Test
+    public void callbackRunsOnceMessageIsSent() throws InterruptedException {
+        final LinkedBlockingQueue<Boolean> done = new LinkedBlockingQueue<>();
+        this.sender.send(3, ByteBuffer.wrap(pattern(100000, 3)), done::add);
+        assertEquals(Boolean.TRUE, done.poll(10, TimeUnit.SECONDS));
+        this.take();
+    }
+
+    private static ByteBuffer frame(int streamId, int total, int offset, int n) {
+        final ByteBuffer f = ByteBuffer.allocate(13 + n).order(ByteOrder.BIG_ENDIAN);
+        f.putInt(streamId).put((byte) 0).putInt(total).putInt(offset);
+        f.put(pattern(n, offset));
+        f.flip();
+        return f;
+    }
+
+    private LeaChunkedChannel direct(int maxStreams, long maxBytes, ArrayList<Received> out) {
+        return new LeaChunkedChannel(new NullChannel(), (id, data, text) -> out.add(new Received(id, data, text)),
+            LeaChunkedChannel.DEFAULT_CHUNK_SIZE, 1, 1 << 20, maxStreams, maxBytes);
+    }
+
+    @Test
+    public void malformedChunksDropTheMessage() {
+        final ArrayList<Received> out = new ArrayList<>();
+        final LeaChunkedChannel c = this.direct(4, 1 << 20, out);
+        c.onFrame(ByteBuffer.allocate(5));
+        // Gap, wrong total, overrun, and a continuation with no first chunk.
+        c.onFrame(frame(1, 100, 0, 10));
+        c.onFrame(frame(1, 100, 20, 10));
+        c.onFrame(frame(2, 100, 0, 10));
+        c.onFrame(frame(2, 99, 10, 10));
+        c.onFrame(frame(3, 20, 0, 10));
+        c.onFrame(frame(3, 20, 10, 20));
+        c.onFrame(frame(4, 100, 10, 10));
+        // Larger than the message size limit, and a first chunk longer than its total.
+        c.onFrame(frame(5, (1 << 20) + 1, 0, 10));
+        c.onFrame(frame(6, 5, 0, 10));
+        assertEquals(6, c.getDroppedMessages());
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void restartedStreamDropsThePartialMessage() {
+        final ArrayList<Received> out = new ArrayList<>();
+        final LeaChunkedChannel c = this.direct(4, 1 << 20, out);
+        c.onFrame(frame(1, 100, 0, 10));
+        c.onFrame(frame(1, 20, 0, 10));
+        c.onFrame(frame(1, 20, 10, 10));
+        assertEquals(1, c.getDroppedMessages());
+        assertEquals(1, out.size());
+        assertEquals(20, out.get(0).data.length);
+    }
+
+    @Test
+    public void concurrentStreamsAreLimited() {
+        final ArrayList<Received> out = new ArrayList<>();
+        final LeaChunkedChannel c = this.direct(2, 1 << 20, out);
+        c.onFrame(frame(1, 20, 0, 10));
+        c.onFrame(frame(2, 20, 0, 10));
+        c.onFrame(frame(3, 20, 0, 10));
+        assertEquals(1, c.getDroppedMessages());
+        // Completing one frees its slot.
+        c.onFrame(frame(1, 20, 10, 10));
+        c.onFrame(frame(3, 20, 0, 10));
+        c.onFrame(frame(3, 20, 10, 10));
+        assertEquals(1, c.getDroppedMessages());
+        assertEquals(2, out.size());
+    }
+
+    @Test
+    public void reassemblyBytesAreBudgeted() {
+        final ArrayList<Received> out = new ArrayList<>();
+        final LeaChunkedChannel c = this.direct(8, 1000, out);
+        c.onFrame(frame(1, 600, 0, 10));
+        c.onFrame(frame(2, 600, 0, 10));
+        assertEquals(1, c.getDroppedMessages());
+        c.onFrame(frame(3, 400, 0, 10));
+        assertEquals(1, c.getDroppedMessages());
+        // A restart of stream 1 releases its reservation before the new one is checked.
+        c.onFrame(frame(1, 600, 0, 10));
+        assertEquals(2, c.getDroppedMessages());
+        c.onFrame(frame(2, 1, 0, 1));
+        assertEquals(3, c.getDroppedMessages());
+        c.onFrame(frame(3, 400, 10, 390));
+        c.onFrame(frame(2, 1, 0, 1));
+        assertEquals(3, c.getDroppedMessages());
+        assertEquals(2, out.size());
+    }
+}
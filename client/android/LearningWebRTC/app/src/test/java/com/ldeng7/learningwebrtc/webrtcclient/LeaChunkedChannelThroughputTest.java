@@ -0,0 +1,70 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Loopback throughput of 1 MB and 100 MB messages, printed per run. The loopback has no
+// network cost, so this measures the framing's own copies and handoffs; the pool's
+// allocation count must stay flat once warm.
+public class LeaChunkedChannelThroughputTest {
+    private static final int WARMUP = 3;
+
+    private static double run(int size, int count) throws InterruptedException {
+        final LeaLoopbackChannel[] pair = LeaLoopbackChannel.createPair();
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicLong bytes = new AtomicLong();
+        final LeaChunkedChannel[] receiver = new LeaChunkedChannel[1];
+        receiver[0] = new LeaChunkedChannel(pair[1], (id, data, text) -> {
+            bytes.addAndGet(data.remaining());
+            receiver[0].recycle(data);
+            done.countDown();
+        });
+        final LeaChunkedChannel sender = new LeaChunkedChannel(pair[0], (id, data, text) -> {});
+        final ByteBuffer payload = ByteBuffer.allocateDirect(size);
+        try {
+            final long t0 = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                sender.send(1, payload.duplicate(), null);
+            }
+            assertTrue("timed out", done.await(120, TimeUnit.SECONDS));
+            final long ns = System.nanoTime() - t0;
+            assertEquals((long) size * count, bytes.get());
+            assertEquals(0, receiver[0].getDroppedMessages());
+            return (double) size * count / (1024 * 1024) / (ns / 1e9);
+        } finally {
+            pair[0].close();
+            pair[1].close();
+        }
+    }
+
+    private static void bench(String name, int size, int count) throws InterruptedException {
+        for (int i = 0; i < WARMUP; i++) {
+            run(size, count);
+        }
+        final long allocations = LeaBufferPool.shared.getAllocationCount();
+        final double mbps = run(size, count);
+        // Only the reassembly buffers, which are above the pooled sizes, are fresh, plus the
+        // odd chunk buffer acquired while another is still on its way back to the pool.
+        // Churn would cost one per chunk, 16 per megabyte.
+        final long fresh = LeaBufferPool.shared.getAllocationCount() - allocations;
+        System.out.printf("%s: %.0f MB/s, %d allocations%n", name, mbps, fresh);
+        assertTrue(fresh + " allocations", fresh <= count + LeaBufferPool.MAX_PER_CLASS);
+    }
+
+    @Test
+    public void oneMegabyte() throws InterruptedException {
+        bench("1MB x 64", 1024 * 1024, 64);
+    }
+
+    @Test
+    public void hundredMegabytes() throws InterruptedException {
+        bench("100MB x 1", 100 * 1024 * 1024, 1);
+    }
+}
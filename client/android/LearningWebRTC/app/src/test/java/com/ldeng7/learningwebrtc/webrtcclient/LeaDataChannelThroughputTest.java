@@ -0,0 +1,129 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.junit.Test;
+import org.webrtc.DataChannel;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+// Loopback throughput of LeaDataChannel.send(ByteBuffer) and send(String) from 64 B to
+// 64 KB, printed per size: messages/s, heap bytes allocated per message, and the buffer
+// pool's hit rate and fresh buffers. The pool must not churn once warm.
+public class LeaDataChannelThroughputTest {
+    private static final int[] SIZES = {64, 256, 1024, 4096, 16384, 65536};
+    private static final int BYTES_PER_RUN = 64 * 1024 * 1024;
+    private static final int MAX_MESSAGES = 50000;
+    private static final int WARMUP = 3;
+
+    // Hands each message to the peer's observer at once, from one reused direct buffer, as
+    // the native channel copies on send and lends its memory only for onMessage.
+    private static class LoopbackDataChannel extends DataChannel {
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(256 * 1024);
+        private LoopbackDataChannel peer;
+        private Observer observer;
+
+        LoopbackDataChannel() {
+            super(0);
+        }
+
+        static LoopbackDataChannel[] createPair() {
+            final LoopbackDataChannel a = new LoopbackDataChannel();
+            final LoopbackDataChannel b = new LoopbackDataChannel();
+            a.peer = b;
+            b.peer = a;
+            return new LoopbackDataChannel[] {a, b};
+        }
+
+        @Override
+        public void registerObserver(Observer o) {
+            this.observer = o;
+        }
+
+        @Override
+        public long bufferedAmount() {
+            return 0;
+        }
+
+        @Override
+        public boolean send(Buffer buffer) {
+            this.scratch.clear();
+            this.scratch.put(buffer.data.duplicate());
+            this.scratch.flip();
+            this.peer.observer.onMessage(new Buffer(this.scratch, buffer.binary));
+            return true;
+        }
+    }
+
+    private interface Sender {
+        boolean send(int i);
+    }
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final LeaDataChannel sender;
+    private final LeaDataChannel receiver;
+
+    public LeaDataChannelThroughputTest() {
+        final LeaDataChannelRouter router = new LeaDataChannelRouter(null);
+        final LoopbackDataChannel[] pair = LoopbackDataChannel.createPair();
+        this.sender = new LeaDataChannel(router, new LeaDataChannel.Spec(1, "bench"), pair[0]);
+        this.receiver = new LeaDataChannel(router, new LeaDataChannel.Spec(1, "bench"), pair[1]);
+        // Binary messages stop here; text ones are counted on arrival and go to the router,
+        // which has no dispatcher in this test.
+        this.receiver.setReceiver(b -> {});
+    }
+
+    private void run(int count, Sender s) {
+        final long received = this.receiver.getCounters().getMessagesReceived();
+        for (int i = 0; i < count; i++) {
+            if (!s.send(i)) {
+                throw new AssertionError("send refused");
+            }
+        }
+        assertEquals(count, this.receiver.getCounters().getMessagesReceived() - received);
+    }
+
+    private void bench(String name, int size, Sender s) {
+        final int count = Math.min(MAX_MESSAGES, BYTES_PER_RUN / size);
+        for (int i = 0; i < WARMUP; i++) {
+            this.run(count, s);
+        }
+        final LeaBufferPool pool = LeaBufferPool.shared;
+        final long tid = Thread.currentThread().getId();
+        final long acquires = pool.getAcquireCount();
+        final long allocations = pool.getAllocationCount();
+        final long bytes = threads.getThreadAllocatedBytes(tid);
+        final long t0 = System.nanoTime();
+        this.run(count, s);
+        final long ns = System.nanoTime() - t0;
+        final double heapPerMsg = (double) (threads.getThreadAllocatedBytes(tid) - bytes) / count;
+        final long acquired = pool.getAcquireCount() - acquires;
+        final long fresh = pool.getAllocationCount() - allocations;
+        System.out.printf("%s %6d B: %8.0f msg/s, %6.1f MB/s, %5.0f heap B/msg, pool hits %s, %d fresh%n",
+            name, size, count / (ns / 1e9), (double) size * count / (1024 * 1024) / (ns / 1e9), heapPerMsg,
+            0 == acquired ? "-" : String.format("%.1f%%", 100.0 * (acquired - fresh) / acquired), fresh);
+        assertEquals(0, fresh);
+    }
+
+    @Test
+    public void binary() {
+        for (int size : SIZES) {
+            final ByteBuffer payload = ByteBuffer.allocateDirect(size);
+            this.bench("binary", size, i -> this.sender.send(payload));
+        }
+    }
+
+    @Test
+    public void text() {
+        for (int size : SIZES) {
+            final char[] c = new char[size];
+            Arrays.fill(c, 'x');
+            final String payload = new String(c);
+            this.bench("text  ", size, i -> this.sender.send(payload));
+        }
+    }
+}
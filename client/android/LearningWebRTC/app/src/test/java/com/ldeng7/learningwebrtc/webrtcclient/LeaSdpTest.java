@@ -0,0 +1,137 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LeaSdpTest {
+    private static final String[] LINES = {
+        "v=0",
+        "o=- 4611731400430051336 2 IN IP4 127.0.0.1",
+        "s=-",
+        "t=0 0",
+        "a=group:BUNDLE 0 1",
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111 103",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:0",
+        "a=rtpmap:111 opus/48000/2",
+        "a=rtcp-fb:111 transport-cc",
+        "a=fmtp:111 minptime=10;useinbandfec=1",
+        "a=rtpmap:103 ISAC/16000",
+        "a=candidate:1 1 udp 2122260223 10.0.0.1 50000 typ host",
+        "a=candidate:2 1 tcp 1518280447 10.0.0.1 9 typ host tcptype active",
+        "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98",
+        "c=IN IP4 0.0.0.0",
+        "a=mid:1",
+        "a=rtpmap:96 VP8/90000",
+        "a=rtcp-fb:96 nack",
+        "a=rtpmap:97 rtx/90000",
+        "a=fmtp:97 apt=96",
+        "a=rtpmap:98 H264/90000",
+        "a=fmtp:98 level-asymmetry-allowed=1;packetization-mode=1",
+    };
+
+    private static String join(String eol) {
+        return String.join(eol, LINES) + eol;
+    }
+
+    @Test
+    public void uniformEndingsRoundTrip() {
+        for (String sdp : new String[] {join("\r\n"), join("\n"), join("\r\n").trim(), "", "v=0"}) {
+            assertEquals(sdp, LeaSdp.parse(sdp).toString());
+        }
+    }
+
+    @Test
+    public void mixedEndingsRoundTrip() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES.length; i++) {
+            sb.append(LINES[i]).append(i % 3 == 1 ? "\n" : "\r\n");
+        }
+        final String sdp = sb.toString();
+        assertEquals(sdp, LeaSdp.parse(sdp).toString());
+        final String unterminated = sdp.substring(0, sdp.length() - 2);
+        assertEquals(unterminated, LeaSdp.parse(unterminated).toString());
+    }
+
+    @Test
+    public void editsKeepNeighbouringEndings() {
+        // The m=video line ends in LF, the rest in CRLF.
+        final String sdp = join("\r\n").replace("98\r\n", "98\n");
+        final LeaSdp d = LeaSdp.parse(sdp);
+        final LeaSdp.Media video = d.getMedia("video").get(0);
+        video.removeFormat("98");
+        video.getLines().add(0, "b=AS:500");
+        final String out = d.toString();
+        assertTrue(out.contains("m=video 9 UDP/TLS/RTP/SAVPF 96 97\nb=AS:500\r\nc=IN"));
+        assertFalse(out.contains("H264"));
+        assertTrue(out.endsWith("a=fmtp:97 apt=96\r\n"));
+    }
+
+    @Test
+    public void appendAfterUnterminatedLastLine() {
+        final LeaSdp d = LeaSdp.parse("v=0\nm=audio 9 RTP/AVP 0\na=mid:0");
+        d.getMedia("audio").get(0).getLines().add("a=sendrecv");
+        assertEquals("v=0\nm=audio 9 RTP/AVP 0\na=mid:0\na=sendrecv", d.toString());
+    }
+
+    @Test
+    public void mediaFields() {
+        final LeaSdp d = LeaSdp.parse(join("\r\n"));
+        assertEquals(5, d.getSessionLines().size());
+        assertEquals(2, d.getMedia().size());
+        final LeaSdp.Media video = d.getMedia("video").get(0);
+        assertEquals("9", video.getPort());
+        assertEquals("UDP/TLS/RTP/SAVPF", video.getProto());
+        assertEquals(Arrays.asList("96", "97", "98"), video.getFormats());
+        assertEquals("VP8", video.getCodec("96"));
+        assertEquals("97", video.getRtx("96"));
+        assertNull(video.getRtx("98"));
+        assertEquals("1", LeaSdp.fmtpParam("a=fmtp:98 " + video.getFmtp("98"), "packetization-mode"));
+        assertEquals("", LeaSdp.fmtpParam("a=fmtp:98 " + video.getFmtp("98"), "profile-level-id"));
+    }
+
+    private static String apply(LeaSdp.Transform t, boolean local) {
+        final LeaSdp d = LeaSdp.parse(join("\r\n"));
+        t.apply(d, local);
+        return d.toString();
+    }
+
+    @Test
+    public void preferAndKeepCodecs() {
+        final String preferred = apply(LeaSdpMunger.preferCodecs("video", Arrays.asList("H264")), true);
+        assertTrue(preferred.contains("m=video 9 UDP/TLS/RTP/SAVPF 98 96 97\r\n"));
+        final String kept = apply(LeaSdpMunger.keepCodecs("video", Arrays.asList("VP8", "rtx")), true);
+        assertTrue(kept.contains("m=video 9 UDP/TLS/RTP/SAVPF 96 97\r\n"));
+        assertFalse(kept.contains("a=rtpmap:98"));
+        assertTrue(kept.contains("a=fmtp:97 apt=96\r\n"));
+        final String bare = apply(LeaSdpMunger.keepCodecs("video", Arrays.asList("VP8")), true);
+        assertTrue(bare.contains("m=video 9 UDP/TLS/RTP/SAVPF 96\r\n"));
+    }
+
+    @Test
+    public void opusTuning() {
+        final String out = apply(LeaSdpMunger.tuneOpus(20, true, true), true);
+        assertTrue(out.contains("a=fmtp:111 minptime=10;useinbandfec=1;usedtx=1\r\n"));
+        assertEquals(LeaSdp.parse(out).toString(), out);
+    }
+
+    @Test
+    public void bandwidthOnlyEditsTheLocalDescription() {
+        final LeaSdp.Transform t = LeaSdpMunger.bandwidth("video", 500);
+        assertTrue(apply(t, true).contains("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98\r\nc=IN IP4 0.0.0.0\r\nb=AS:500\r\n"));
+        assertEquals(join("\r\n"), apply(t, false));
+    }
+
+    @Test
+    public void tcpCandidatesAreDropped() {
+        final String out = apply(LeaSdpMunger.dropTcpCandidates(), false);
+        assertTrue(out.contains("typ host\r\nm=video"));
+        assertFalse(out.contains(" tcp "));
+    }
+}
@@ -0,0 +1,418 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// The shared transport against a websocket server on localhost, with short timings.
+public class LeaSignalingTransportTest {
+    private static final long HEARTBEAT_MS = 100;
+    private static final long RECONNECT_MIN_MS = 40;
+    private static final long RECONNECT_MAX_MS = 320;
+    private static final long IDLE_CLOSE_MS = 300;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static class Server extends WebSocketServer {
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        // Connections open on the server each time a new one arrives.
+        final CopyOnWriteArrayList<Integer> openAtAccept = new CopyOnWriteArrayList<>();
+        volatile boolean answerPings = true;
+        volatile WebSocket last;
+
+        Server(int port) {
+            super(new InetSocketAddress("127.0.0.1", port));
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            this.openAtAccept.add(this.connectionCount());
+            this.last = conn;
+            this.opened.incrementAndGet();
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            this.closed.incrementAndGet();
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            this.received.add(message);
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception e) {}
+
+        @Override
+        public void onWebsocketPing(WebSocket conn, Framedata f) {
+            if (this.answerPings) {
+                super.onWebsocketPing(conn, f);
+            }
+        }
+
+        int connectionCount() {
+            synchronized (this.connections()) {
+                return this.connections().size();
+            }
+        }
+
+        String take() throws InterruptedException {
+            final String m = this.received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("nothing received", m);
+            return m;
+        }
+    }
+
+    // A TCP relay in front of the server, cut and restored to stand in for the network or a
+    // server restart. The server itself never restarts, since it cannot rebind its port
+    // while closed sockets linger.
+    private static class Link {
+        final int port;
+        final int target;
+        final CopyOnWriteArrayList<Long> acceptNs = new CopyOnWriteArrayList<>();
+        private final CopyOnWriteArrayList<Socket> sockets = new CopyOnWriteArrayList<>();
+        private volatile ServerSocket listener;
+        // Accepts and drops connections at once, so every connect fails.
+        volatile boolean refuse;
+
+        Link(int port, int target) {
+            this.port = port;
+            this.target = target;
+        }
+
+        void up() throws IOException {
+            final ServerSocket l = new ServerSocket();
+            l.setReuseAddress(true);
+            l.bind(new InetSocketAddress("127.0.0.1", this.port));
+            this.listener = l;
+            daemon(() -> this.accept(l));
+        }
+
+        void down() throws IOException {
+            if (null != this.listener) {
+                this.listener.close();
+                this.listener = null;
+            }
+            for (Socket c : this.sockets) {
+                c.close();
+            }
+            this.sockets.clear();
+        }
+
+        private void accept(ServerSocket l) {
+            while (true) {
+                try {
+                    final Socket c = l.accept();
+                    this.acceptNs.add(System.nanoTime());
+                    if (this.refuse) {
+                        c.close();
+                        continue;
+                    }
+                    final Socket u = new Socket("127.0.0.1", this.target);
+                    this.sockets.add(c);
+                    this.sockets.add(u);
+                    daemon(() -> pump(c, u));
+                    daemon(() -> pump(u, c));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private static void pump(Socket from, Socket to) {
+            final byte[] buf = new byte[8192];
+            try {
+                final InputStream in = from.getInputStream();
+                final OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    out.write(buf, 0, n);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+            try {
+                from.close();
+                to.close();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private static void daemon(Runnable r) {
+            final Thread t = new Thread(r);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private static class Session implements LeaSignalingTransport.Session {
+        final String sid;
+        final LinkedBlockingQueue<Boolean> opens = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<LeaWebSocketMessage.Response<?>> messages = new LinkedBlockingQueue<>();
+        final AtomicInteger lost = new AtomicInteger();
+        volatile boolean throwOnMessage;
+
+        Session(String sid) {
+            this.sid = sid;
+        }
+
+        @Override
+        public String getSid() {
+            return this.sid;
+        }
+
+        @Override
+        public void onTransportOpen(boolean reconnected) {
+            this.opens.add(reconnected);
+        }
+
+        @Override
+        public void onTransportMessage(LeaWebSocketMessage.Response<?> resp) {
+            this.messages.add(resp);
+            if (this.throwOnMessage) {
+                throw new IllegalStateException("listener bug");
+            }
+        }
+
+        @Override
+        public void onTransportLost() {
+            this.lost.incrementAndGet();
+        }
+
+        boolean awaitOpen() throws InterruptedException {
+            final Boolean reconnected = this.opens.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("not opened", reconnected);
+            return reconnected;
+        }
+    }
+
+    private Server server;
+    private Link link;
+    private LeaSignalingTransport transport;
+
+    @BeforeClass
+    public static void quietTrace() {
+        LeaTrace.setMode(LeaTrace.EMode.OFF);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        this.server = new Server(freePort());
+        this.server.start();
+        this.link = new Link(freePort(), this.server.getAddress().getPort());
+        this.transport = new LeaSignalingTransport(URI.create("ws://127.0.0.1:" + this.link.port + "/ws"),
+            HEARTBEAT_MS, RECONNECT_MIN_MS, RECONNECT_MAX_MS, IDLE_CLOSE_MS);
+    }
+
+    // stop() can deadlock with the server's selector thread if a socket closes during it,
+    // so every socket is gone first.
+    @After
+    public void tearDown() throws Exception {
+        this.link.down();
+        await("server sockets closed", () -> this.server.connectionCount() == 0);
+        this.server.stop();
+    }
+
+    private static void await(String what, BooleanSupplier cond) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out waiting for " + what);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static String dial(String uid) {
+        final LeaWebSocketMessage.DialRequestData d = new LeaWebSocketMessage.DialRequestData();
+        d.localUid = uid;
+        d.remoteUid = "peer";
+        return LeaWebSocketMessage.encode(LeaWebSocketMessage.EPhase.DIAL, uid + "/peer", d);
+    }
+
+    private void send(Session s, LeaWebSocketMessage.EPhase phase) {
+        final LeaWebSocketMessage.DialRequestData d = new LeaWebSocketMessage.DialRequestData();
+        d.localUid = s.sid.substring(0, s.sid.indexOf('/'));
+        d.remoteUid = "peer";
+        this.transport.send(s, phase, phase == LeaWebSocketMessage.EPhase.DIAL ? d : null);
+    }
+
+    @Test
+    public void messagesQueuedBeforeOpenAreReplayed() throws Exception {
+        final Server server = this.server;
+        this.link.up();
+        final Session s = new Session("a/peer");
+        assertTrue(this.transport.attach(s));
+        this.send(s, LeaWebSocketMessage.EPhase.DIAL);
+        assertFalse(s.awaitOpen());
+        assertEquals(dial("a"), server.take());
+
+        server.last.send(LeaWebSocketMessage.encodeResponse(LeaWebSocketMessage.EPhase.DIAL, "a/peer", true, "",
+            "true"));
+        final LeaWebSocketMessage.Response<?> resp = s.messages.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(resp);
+        assertEquals(Boolean.TRUE, resp.data);
+        this.transport.detach(s);
+    }
+
+    @Test
+    public void reconnectReplaysOutboxAndReportsResume() throws Exception {
+        final Server server = this.server;
+        this.link.up();
+        final Session s = new Session("a/peer");
+        this.transport.attach(s);
+        assertFalse(s.awaitOpen());
+
+        this.link.down();
+        await("lost", () -> s.lost.get() == 1);
+        assertFalse(this.transport.isConnected());
+        this.send(s, LeaWebSocketMessage.EPhase.DIAL);
+        this.send(s, LeaWebSocketMessage.EPhase.STOP);
+        Thread.sleep(2 * RECONNECT_MIN_MS);
+
+        this.link.up();
+        assertTrue(s.awaitOpen());
+        assertEquals(dial("a"), server.take());
+        assertTrue(server.take().contains("\"phase\":" + LeaWebSocketMessage.EPhase.STOP.ordinal()));
+        assertEquals(1, this.transport.getReconnectCount());
+        this.transport.detach(s);
+    }
+
+    @Test
+    public void reconnectBacksOffWithJitter() throws Exception {
+        this.link.refuse = true;
+        this.link.up();
+        final Session s = new Session("a/peer");
+        this.transport.attach(s);
+        final List<Long> accepts = this.link.acceptNs;
+        await("retries", () -> accepts.size() >= 7);
+        this.transport.detach(s);
+        assertEquals(0, s.opens.size());
+        // Each delay is within [backoff / 2, backoff], the backoff doubling up to the cap.
+        long backoff = RECONNECT_MIN_MS;
+        for (int i = 1; i < 7; i++) {
+            final long gapMs = (accepts.get(i) - accepts.get(i - 1)) / 1000000;
+            assertTrue("gap " + i + " " + gapMs + " ms", gapMs >= backoff / 2 - 5);
+            assertTrue("gap " + i + " " + gapMs + " ms", gapMs <= backoff + 100);
+            backoff = Math.min(backoff * 2, RECONNECT_MAX_MS);
+        }
+    }
+
+    @Test
+    public void missedPongsDropTheSocket() throws Exception {
+        final Server server = this.server;
+        this.link.up();
+        final Session s = new Session("a/peer");
+        this.transport.attach(s);
+        assertFalse(s.awaitOpen());
+        await("rtt", () -> this.transport.getLastRttMs() >= 0);
+
+        server.answerPings = false;
+        final long t0 = System.nanoTime();
+        await("lost", () -> s.lost.get() == 1);
+        // Three unanswered pings, then the fourth heartbeat gives up.
+        assertTrue((System.nanoTime() - t0) / 1000000 >= 2 * HEARTBEAT_MS);
+        server.answerPings = true;
+        assertTrue(s.awaitOpen());
+        await("second connection", () -> server.opened.get() == 2);
+        this.transport.detach(s);
+    }
+
+    @Test
+    public void listenerErrorClosesTheSocketBeforeReconnecting() throws Exception {
+        final Server server = this.server;
+        this.link.up();
+        final Session s = new Session("a/peer");
+        this.transport.attach(s);
+        assertFalse(s.awaitOpen());
+
+        s.throwOnMessage = true;
+        server.last.send(LeaWebSocketMessage.encodeResponse(LeaWebSocketMessage.EPhase.STOP, "a/peer", true, "",
+            null));
+        await("lost", () -> s.lost.get() == 1);
+        s.throwOnMessage = false;
+        assertTrue(s.awaitOpen());
+        await("old socket closed", () -> server.closed.get() == 1);
+        // The old socket was gone before the new one arrived.
+        for (int n : server.openAtAccept) {
+            assertEquals(1, n);
+        }
+        assertEquals(1, s.messages.size());
+        this.transport.detach(s);
+    }
+
+    @Test
+    public void stopQueuedAtDetachIsStillSent() throws Exception {
+        final Session s = new Session("a/peer");
+        this.transport.attach(s);
+        this.send(s, LeaWebSocketMessage.EPhase.STOP);
+        this.transport.detach(s);
+        // The server is reachable only after the last session is gone.
+        Thread.sleep(RECONNECT_MIN_MS);
+        final Server server = this.server;
+        this.link.up();
+        assertTrue(server.take().contains("\"phase\":" + LeaWebSocketMessage.EPhase.STOP.ordinal()));
+        await("idle close", () -> server.closed.get() == 1);
+        assertEquals(0, s.opens.size());
+    }
+
+    @Test
+    public void idleTransportClosesAfterLastDetach() throws Exception {
+        final Server server = this.server;
+        this.link.up();
+        final Session a = new Session("a/peer");
+        this.transport.attach(a);
+        assertFalse(a.awaitOpen());
+        this.transport.detach(a);
+
+        // A new call within the idle period keeps the socket.
+        Thread.sleep(IDLE_CLOSE_MS / 3);
+        final Session b = new Session("b/peer");
+        assertTrue(this.transport.attach(b));
+        assertFalse(b.awaitOpen());
+        Thread.sleep(IDLE_CLOSE_MS);
+        assertEquals(1, server.opened.get());
+        assertEquals(0, server.closed.get());
+
+        this.transport.detach(b);
+        await("idle close", () -> server.closed.get() == 1);
+        assertFalse(this.transport.isConnected());
+        assertFalse(this.transport.attach(new Session("c/peer")));
+        assertEquals(0, a.lost.get() + b.lost.get());
+    }
+}
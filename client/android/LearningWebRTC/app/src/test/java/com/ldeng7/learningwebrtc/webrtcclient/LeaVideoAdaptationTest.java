@@ -0,0 +1,200 @@
+package com.ldeng7.learningwebrtc.webrtcclient;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Replays recorded stats traces through LeaVideoAdaptation on DEFAULT_LADDER.
+public class LeaVideoAdaptationTest {
+    private static final long INTERVAL_MS = 1000;
+    private static final long START_MS = 50000;
+
+    // One sample per row, INTERVAL_MS apart: available outgoing bitrate in kbps (-1 when
+    // unknown), qualityLimitationReason and encode ms per frame (-1 when unknown).
+    private static List<LeaVideoAdaptation.Sample> trace(long startMs, String... rows) {
+        final ArrayList<LeaVideoAdaptation.Sample> r = new ArrayList<>();
+        for (String row : rows) {
+            final String[] f = row.split(" ");
+            final LeaVideoAdaptation.Sample s = new LeaVideoAdaptation.Sample();
+            s.timeMs = startMs + r.size() * INTERVAL_MS;
+            final long kbps = Long.parseLong(f[0]);
+            s.availableOutgoingBitrateBps = kbps < 0 ? -1 : kbps * 1000;
+            s.limitation = LeaVideoAdaptation.ELimitation.parse(f[1]);
+            s.encodeMsPerFrame = Double.parseDouble(f[2]);
+            r.add(s);
+        }
+        return r;
+    }
+
+    private static String[] repeat(int n, String row) {
+        final String[] r = new String[n];
+        Arrays.fill(r, row);
+        return r;
+    }
+
+    private static String[] concat(String[]... parts) {
+        final ArrayList<String> r = new ArrayList<>();
+        for (String[] p : parts) {
+            r.addAll(Arrays.asList(p));
+        }
+        return r.toArray(new String[0]);
+    }
+
+    // The level after each sample.
+    private static int[] replay(LeaVideoAdaptation a, List<LeaVideoAdaptation.Sample> samples) {
+        final int[] levels = new int[samples.size()];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = a.onSample(samples.get(i));
+        }
+        return levels;
+    }
+
+    // Indices of the samples after which the level changed.
+    private static List<Integer> changes(int start, int[] levels) {
+        final ArrayList<Integer> r = new ArrayList<>();
+        int prev = start;
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] != prev) {
+                assertEquals("one step at a time", 1, Math.abs(levels[i] - prev));
+                r.add(i);
+            }
+            prev = levels[i];
+        }
+        return r;
+    }
+
+    @Test
+    public void bitrateCollapseDropsEveryDownSamples() {
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 3);
+        final int[] levels = replay(a, trace(START_MS, concat(
+            new String[] {"2500 none 8"},
+            repeat(12, "400 bandwidth 8"))));
+        // 400 kbps fits none of levels 1 to 3, so each takes DOWN_SAMPLES samples to leave.
+        final List<Integer> changes = changes(3, levels);
+        assertEquals(3, changes.size());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals((i + 1) * LeaVideoAdaptation.DOWN_SAMPLES, (int) changes.get(i));
+        }
+        assertEquals(0, a.getLevelIndex());
+    }
+
+    @Test
+    public void singleBadSampleIsIgnored() {
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 2);
+        final int[] levels = replay(a, trace(START_MS, concat(
+            repeat(LeaVideoAdaptation.DOWN_SAMPLES - 1, "300 bandwidth 5"),
+            repeat(10, "1200 none 5"))));
+        assertTrue(changes(2, levels).isEmpty());
+    }
+
+    @Test
+    public void cpuLimitationDrops() {
+        // Plenty of bandwidth, but WebRTC reports the encoder as the limit.
+        LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 4);
+        int[] levels = replay(a, trace(START_MS, concat(
+            repeat(LeaVideoAdaptation.DOWN_SAMPLES, "6000 cpu 12"),
+            repeat(20, "6000 none 20"))));
+        // 20 ms a frame is busy enough to keep 720p from coming back, not enough to drop 540p.
+        assertEquals(Arrays.asList(LeaVideoAdaptation.DOWN_SAMPLES - 1), changes(4, levels));
+        assertEquals(3, a.getLevelIndex());
+
+        // The same from the measured encode time alone: 30 ms of a 33 ms frame interval.
+        a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 4);
+        levels = replay(a, trace(START_MS, repeat(LeaVideoAdaptation.DOWN_SAMPLES, "6000 none 30")));
+        assertEquals(3, levels[levels.length - 1]);
+    }
+
+    @Test
+    public void raiseAfterUpSamples() {
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 1);
+        final int[] levels = replay(a, trace(START_MS, concat(
+            repeat(LeaVideoAdaptation.UP_SAMPLES - 1, "1400 none 3"),
+            // Fits the current level, but without headroom for the next one.
+            new String[] {"1000 none 3"},
+            repeat(LeaVideoAdaptation.UP_SAMPLES, "1400 none 3"))));
+        assertEquals(Arrays.asList(2 * LeaVideoAdaptation.UP_SAMPLES - 1), changes(1, levels));
+        assertEquals(2, a.getLevelIndex());
+    }
+
+    @Test
+    public void recoveryWaitsOutTheHold() {
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 2);
+        final List<LeaVideoAdaptation.Sample> samples = trace(START_MS, concat(
+            repeat(LeaVideoAdaptation.DOWN_SAMPLES, "300 bandwidth 5"),
+            repeat(40, "10000 none 2")));
+        final int[] levels = replay(a, samples);
+        final List<Integer> changes = changes(2, levels);
+        assertEquals(4, changes.size());
+        final long dropMs = samples.get(changes.get(0)).timeMs;
+        assertEquals(1, levels[changes.get(0)]);
+        // The up streak is long complete before the hold ends; the raise waits for it.
+        assertEquals(dropMs + LeaVideoAdaptation.UP_HOLD_MS, samples.get(changes.get(1)).timeMs);
+        assertEquals(2, levels[changes.get(1)]);
+        // Later raises each need a fresh streak.
+        assertEquals(changes.get(1) + LeaVideoAdaptation.UP_SAMPLES, (int) changes.get(2));
+        assertEquals(changes.get(2) + LeaVideoAdaptation.UP_SAMPLES, (int) changes.get(3));
+        assertEquals(4, a.getLevelIndex());
+    }
+
+    @Test
+    public void noRaiseWithinHoldOfADrop() {
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 2);
+        final List<LeaVideoAdaptation.Sample> samples = trace(START_MS, concat(
+            repeat(LeaVideoAdaptation.DOWN_SAMPLES, "300 bandwidth 5"),
+            repeat((int) (LeaVideoAdaptation.UP_HOLD_MS / INTERVAL_MS) - 1, "10000 none 2")));
+        final int[] levels = replay(a, samples);
+        assertEquals(1, changes(2, levels).size());
+        assertEquals(1, a.getLevelIndex());
+    }
+
+    @Test
+    public void linkHoveringAtDropBoundaryDoesNotFlap() {
+        // Level 2 needs 700 kbps; the estimate alternates just below and just above it.
+        final String[] hover = new String[60];
+        for (int i = 0; i < hover.length; i++) {
+            hover[i] = (i % 2 == 0 ? "690" : "710") + " none 5";
+        }
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 2);
+        assertTrue(changes(2, replay(a, trace(START_MS, hover))).isEmpty());
+
+        // Sitting just below it drops once, and the level below has no headroom to come back.
+        final LeaVideoAdaptation b = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 2);
+        final int[] levels = replay(b, trace(START_MS, concat(
+            repeat(30, "690 none 5"),
+            hover)));
+        assertEquals(Arrays.asList(LeaVideoAdaptation.DOWN_SAMPLES - 1), changes(2, levels));
+    }
+
+    @Test
+    public void linkHoveringAtRaiseBoundaryDoesNotFlap() {
+        // Level 1 raises at 1300 kbps; the estimate alternates just below and just above it.
+        final String[] hover = new String[60];
+        for (int i = 0; i < hover.length; i++) {
+            hover[i] = (i % 2 == 0 ? "1250" : "1350") + " none 5";
+        }
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 1);
+        assertTrue(changes(1, replay(a, trace(START_MS, hover))).isEmpty());
+
+        // Settling just above it raises once; the level above still fits, so it stays.
+        final LeaVideoAdaptation b = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 1);
+        final int[] levels = replay(b, trace(START_MS, concat(
+            repeat(30, "1350 none 5"),
+            hover)));
+        assertEquals(Arrays.asList(LeaVideoAdaptation.UP_SAMPLES - 1), changes(1, levels));
+    }
+
+    @Test
+    public void unknownEstimateOnlyDropsOnBandwidthLimitation() {
+        final LeaVideoAdaptation a = new LeaVideoAdaptation(LeaVideoAdaptation.DEFAULT_LADDER, 2);
+        int[] levels = replay(a, trace(START_MS, repeat(20, "-1 none -1")));
+        assertTrue(changes(2, levels).isEmpty());
+        levels = replay(a, trace(START_MS + 20 * INTERVAL_MS,
+            repeat(LeaVideoAdaptation.DOWN_SAMPLES, "-1 bandwidth -1")));
+        assertEquals(1, levels[levels.length - 1]);
+    }
+}
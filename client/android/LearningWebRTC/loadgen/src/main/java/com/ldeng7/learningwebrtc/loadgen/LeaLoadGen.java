@@ -0,0 +1,504 @@
+package com.ldeng7.learningwebrtc.loadgen;
+
+import com.ldeng7.learningwebrtc.signaling.LeaFakePeer;
+import com.ldeng7.learningwebrtc.signaling.LeaSignalingChannel;
+import com.ldeng7.learningwebrtc.signaling.LeaSignalingSession;
+import com.ldeng7.learningwebrtc.signaling.LeaWebSocketMessage;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives server/ws with whole calls between pairs of virtual users and reports the relay
+// latency of every phase. Each call is a LeaSignalingSession per user with a LeaFakePeer as
+// its media, exactly as the app runs it, over a WebSocket the user holds for the whole run;
+// all sockets are served by a small thread pool through java.net.http's non-blocking client.
+//
+// One call: both sessions DIAL; the offerer's peer offers, the answerer's answers, and both
+// trickle --cands candidates batched as the app batches them. Once both peers report
+// connected the offerer hangs up, and the answerer returns the STOP as the app does. Every
+// call uses fresh uids, so calls never wait on the server cleaning up the previous one.
+//
+//   java -jar loadgen.jar --url ws://127.0.0.1:8080/ --pairs 1000 --calls 10
+public class LeaLoadGen {
+    private static class Options {
+        URI url = URI.create("ws://127.0.0.1:8080/");
+        int pairs = 100;
+        int calls = 10;
+        int cands = 4;
+        int candBatch = 8;
+        int candWindowMs = 40;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int rampMs = 1000;
+        int timeoutS = 120;
+    }
+
+    // Exact percentiles: every sample is kept and sorted once at the end.
+    private static class Samples {
+        private long[] us = new long[1024];
+        private int n;
+
+        synchronized void add(long ns) {
+            if (this.n == this.us.length) {
+                this.us = Arrays.copyOf(this.us, this.n * 2);
+            }
+            this.us[this.n++] = ns / 1000;
+        }
+
+        synchronized long[] sorted() {
+            final long[] s = Arrays.copyOf(this.us, this.n);
+            Arrays.sort(s);
+            return s;
+        }
+    }
+
+    private final Options opts;
+    private final String runId = Long.toString(System.currentTimeMillis() % 100000, 36);
+    // Indexed by phase ordinal: DIAL from a user's own DIAL to its ack, the rest from the
+    // partner's send to this user's receipt.
+    private final Samples[] samples = new Samples[LeaWebSocketMessage.PHASE_COUNT];
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicInteger callsDone = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final CountDownLatch pairsDone;
+    private final ExecutorService executor;
+    // Stand-ins for PeerConnection signaling threads, each shared by many pairs.
+    private final ExecutorService[] peerExecutors;
+    private final HttpClient http;
+
+    private LeaLoadGen(Options opts) {
+        this.opts = opts;
+        for (int i = 0; i < this.samples.length; i++) {
+            this.samples[i] = new Samples();
+        }
+        this.pairsDone = new CountDownLatch(opts.pairs);
+        this.executor = Executors.newFixedThreadPool(Math.max(opts.threads, 1));
+        this.peerExecutors = new ExecutorService[Math.max(opts.threads, 1)];
+        for (int i = 0; i < this.peerExecutors.length; i++) {
+            this.peerExecutors[i] = Executors.newSingleThreadExecutor();
+        }
+        this.http = HttpClient.newBuilder().executor(this.executor).build();
+    }
+
+    // One user's socket, used in turn as the LeaSignalingChannel of each of its calls. It
+    // also times the relay: a message received is matched with the partner's oldest
+    // unmatched send of the same phase, which the server relays in order.
+    private class Channel implements LeaSignalingChannel, WebSocket.Listener {
+        final Pair pair;
+        Channel partner;
+        WebSocket ws;
+        private final Map<String, Listener> listeners = new HashMap<>();
+        private final ArrayDeque<?>[] sentNs = new ArrayDeque<?>[LeaWebSocketMessage.PHASE_COUNT];
+        private long dialNs;
+        private final StringBuilder partial = new StringBuilder();
+        private CompletableFuture<?> sending = CompletableFuture.completedFuture(null);
+
+        Channel(Pair pair) {
+            this.pair = pair;
+            for (int i = 0; i < this.sentNs.length; i++) {
+                this.sentNs[i] = new ArrayDeque<Long>();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private ArrayDeque<Long> sent(LeaWebSocketMessage.EPhase phase) {
+            return (ArrayDeque<Long>) this.sentNs[phase.ordinal()];
+        }
+
+        // The socket is up before any call starts, so a session opens straight away.
+        @Override
+        public void open(String sid, Listener listener) {
+            synchronized (this) {
+                this.listeners.put(sid, listener);
+            }
+            listener.onChannelOpen(false);
+        }
+
+        // java.net.http allows one outstanding send per socket, so sends are chained.
+        @Override
+        public synchronized void send(String sid, LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data) {
+            final String s = LeaWebSocketMessage.encode(phase, sid, data);
+            LeaLoadGen.this.messages.incrementAndGet();
+            if (phase == LeaWebSocketMessage.EPhase.DIAL) {
+                this.dialNs = System.nanoTime();
+            } else {
+                this.sent(phase).addLast(System.nanoTime());
+            }
+            this.sending = this.sending.thenCompose(v -> this.ws.sendText(s, true));
+        }
+
+        @Override
+        public synchronized void close(String sid) {
+            this.listeners.remove(sid);
+        }
+
+        // Sends of an ended call that the server never relays, e.g. the returned STOP, must
+        // not be matched with the next call's messages.
+        synchronized void clearSent() {
+            for (ArrayDeque<?> q : this.sentNs) {
+                q.clear();
+            }
+        }
+
+        private synchronized long takeSent(LeaWebSocketMessage.EPhase phase) {
+            final Long ns = this.sent(phase).pollFirst();
+            return null != ns ? ns : 0;
+        }
+
+        synchronized void shutdown() {
+            if (null != this.ws) {
+                this.sending = this.sending.thenCompose(v -> this.ws.sendClose(WebSocket.NORMAL_CLOSURE, ""));
+            }
+        }
+
+        private void onMessage(LeaWebSocketMessage.Response<?> resp) {
+            final long now = System.nanoTime();
+            if (resp.success) {
+                final long since;
+                if (resp.phase == LeaWebSocketMessage.EPhase.DIAL) {
+                    synchronized (this) {
+                        since = this.dialNs;
+                    }
+                } else {
+                    since = this.partner.takeSent(resp.phase);
+                }
+                if (since > 0) {
+                    LeaLoadGen.this.samples[resp.phase.ordinal()].add(now - since);
+                }
+            }
+            final Listener l;
+            synchronized (this) {
+                l = this.listeners.get(resp.sid);
+            }
+            // A session already closed, e.g. the offerer getting its STOP back.
+            if (null != l) {
+                l.onChannelMessage(resp);
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+            this.partial.append(data);
+            if (last) {
+                final String s = this.partial.toString();
+                this.partial.setLength(0);
+                LeaWebSocketMessage.Response<?> resp = null;
+                try {
+                    resp = LeaWebSocketMessage.decode(s);
+                } catch (Exception e) {
+                    LeaLoadGen.this.errors.incrementAndGet();
+                }
+                if (null != resp) {
+                    this.onMessage(resp);
+                }
+            }
+            ws.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+            this.pair.onLost();
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket ws, Throwable error) {
+            this.pair.onLost();
+        }
+    }
+
+    // One user's end of one call. Reports from a call the pair has moved past are ignored,
+    // apart from closing its session.
+    private class Side implements LeaSignalingSession.Listener {
+        final Pair pair;
+        final int call;
+        final LeaSignalingSession session;
+
+        Side(final Pair pair, int call, Channel channel, String uid, String ruid) {
+            this.pair = pair;
+            this.call = call;
+            final LeaFakePeer peer = new LeaFakePeer(pair.peerExecutor, LeaLoadGen.this.opts.cands);
+            this.session = new LeaSignalingSession(uid, ruid, channel, peer, this,
+                    LeaLoadGen.this.opts.candWindowMs, LeaLoadGen.this.opts.candBatch) {
+                @Override
+                public void onConnected() {
+                    super.onConnected();
+                    pair.onConnected(Side.this);
+                }
+            };
+        }
+
+        @Override
+        public void onChannelOpen() {}
+
+        @Override
+        public void onPhase(LeaWebSocketMessage.EPhase phase, boolean sent) {}
+
+        @Override
+        public void onDialAck() {}
+
+        @Override
+        public void onRejected(LeaWebSocketMessage.EPhase phase, String message) {
+            this.pair.onRejected(this);
+        }
+
+        @Override
+        public void onResumed() {}
+
+        @Override
+        public void onChannelLost() {}
+
+        @Override
+        public void onStopped() {
+            this.pair.onStopped(this);
+        }
+    }
+
+    // The pair's own state is kept under its lock; sessions are only called with it
+    // released, since they report back into the pair from the socket and peer threads.
+    private class Pair {
+        final int index;
+        final ExecutorService peerExecutor;
+        final Channel a = new Channel(this);
+        final Channel b = new Channel(this);
+        int call;
+        Side sa;
+        Side sb;
+        int connected;
+        int stopped;
+        boolean hangingUp;
+        boolean finished;
+
+        Pair(int index) {
+            this.index = index;
+            this.peerExecutor = LeaLoadGen.this.peerExecutors[index % LeaLoadGen.this.peerExecutors.length];
+            this.a.partner = this.b;
+            this.b.partner = this.a;
+        }
+
+        void start() {
+            final CompletableFuture<WebSocket> fa = LeaLoadGen.this.http.newWebSocketBuilder()
+                .buildAsync(LeaLoadGen.this.opts.url, this.a);
+            final CompletableFuture<WebSocket> fb = LeaLoadGen.this.http.newWebSocketBuilder()
+                .buildAsync(LeaLoadGen.this.opts.url, this.b);
+            fa.thenCombine(fb, (wa, wb) -> {
+                synchronized (this.a) {
+                    this.a.ws = wa;
+                }
+                synchronized (this.b) {
+                    this.b.ws = wb;
+                }
+                this.dial();
+                return null;
+            }).exceptionally(e -> {
+                LeaLoadGen.this.errors.incrementAndGet();
+                this.finish();
+                return null;
+            });
+        }
+
+        private void dial() {
+            final Side x;
+            final Side y;
+            synchronized (this) {
+                if (this.finished) {
+                    return;
+                }
+                final String prefix = "lg" + LeaLoadGen.this.runId + "-" + this.index + "-" + this.call + "-";
+                this.sa = new Side(this, this.call, this.a, prefix + "a", prefix + "b");
+                this.sb = new Side(this, this.call, this.b, prefix + "b", prefix + "a");
+                this.connected = 0;
+                this.stopped = 0;
+                this.hangingUp = false;
+                x = this.sa;
+                y = this.sb;
+            }
+            this.a.clearSent();
+            this.b.clearSent();
+            x.session.open();
+            y.session.open();
+        }
+
+        void onConnected(Side s) {
+            final Side offerer;
+            synchronized (this) {
+                if (this.finished || s.call != this.call || ++this.connected < 2) {
+                    return;
+                }
+                this.hangingUp = true;
+                offerer = this.sa.session.isOfferer() ? this.sa : this.sb;
+            }
+            offerer.session.hangUp();
+        }
+
+        // The side that stopped sends its STOP on close: the offerer's ends the call, the
+        // answerer's releases its own side on the server.
+        void onStopped(Side s) {
+            s.session.close();
+            synchronized (this) {
+                if (this.finished || s.call != this.call || ++this.stopped < 2) {
+                    return;
+                }
+            }
+            LeaLoadGen.this.callsDone.incrementAndGet();
+            this.nextCall(s.call);
+        }
+
+        // The call is abandoned and the next one starts with fresh uids. Relays that race
+        // the offerer's STOP are refused by the server and do not count.
+        void onRejected(Side s) {
+            final Side x;
+            final Side y;
+            synchronized (this) {
+                if (this.finished || s.call != this.call || this.hangingUp) {
+                    return;
+                }
+                x = this.sa;
+                y = this.sb;
+            }
+            LeaLoadGen.this.errors.incrementAndGet();
+            x.session.close();
+            y.session.close();
+            this.nextCall(s.call);
+        }
+
+        void onLost() {
+            synchronized (this) {
+                if (this.finished) {
+                    return;
+                }
+            }
+            LeaLoadGen.this.errors.incrementAndGet();
+            this.finish();
+        }
+
+        private void nextCall(int ended) {
+            final boolean last;
+            synchronized (this) {
+                if (this.finished || ended != this.call) {
+                    return;
+                }
+                last = ++this.call >= LeaLoadGen.this.opts.calls;
+            }
+            if (last) {
+                this.finish();
+            } else {
+                this.dial();
+            }
+        }
+
+        void finish() {
+            synchronized (this) {
+                if (this.finished) {
+                    return;
+                }
+                this.finished = true;
+            }
+            this.a.shutdown();
+            this.b.shutdown();
+            LeaLoadGen.this.pairsDone.countDown();
+        }
+    }
+
+    private void run() throws InterruptedException {
+        final long startNs = System.nanoTime();
+        final long stepNs = this.opts.pairs > 1 ?
+            TimeUnit.MILLISECONDS.toNanos(this.opts.rampMs) / this.opts.pairs : 0;
+        for (int i = 0; i < this.opts.pairs; i++) {
+            final long dueNs = startNs + i * stepNs;
+            final long waitNs = dueNs - System.nanoTime();
+            if (waitNs > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNs);
+            }
+            new Pair(i).start();
+        }
+        final boolean done = this.pairsDone.await(this.opts.timeoutS, TimeUnit.SECONDS);
+        final double secs = (System.nanoTime() - startNs) / 1e9;
+        this.report(secs, done);
+        this.executor.shutdownNow();
+        for (ExecutorService e : this.peerExecutors) {
+            e.shutdownNow();
+        }
+    }
+
+    private void report(double secs, boolean done) {
+        System.out.printf("%-6s %9s %9s %9s %9s %9s%n", "phase", "count", "p50_us", "p99_us", "p999_us", "max_us");
+        for (LeaWebSocketMessage.EPhase p : LeaWebSocketMessage.EPhase.values()) {
+            if (p == LeaWebSocketMessage.EPhase.INIT) {
+                continue;
+            }
+            final long[] v = this.samples[p.ordinal()].sorted();
+            if (0 == v.length) {
+                System.out.printf("%-6s %9d%n", p.name().toLowerCase(), 0);
+                continue;
+            }
+            System.out.printf("%-6s %9d %9d %9d %9d %9d%n", p.name().toLowerCase(), v.length,
+                quantile(v, 0.5), quantile(v, 0.99), quantile(v, 0.999), v[v.length - 1]);
+        }
+        final int total = this.opts.pairs * this.opts.calls;
+        System.out.printf("calls %d/%d in %.1f s (%.0f/s), sent %d messages (%.0f/s), errors %d%s%n",
+            this.callsDone.get(), total, secs, this.callsDone.get() / secs, this.messages.get(),
+            this.messages.get() / secs, this.errors.get(), done ? "" : ", timed out");
+    }
+
+    private static long quantile(long[] sorted, double q) {
+        final int i = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.min(Math.max(i, 0), sorted.length - 1)];
+    }
+
+    private static Options parse(String[] args) {
+        final Options o = new Options();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String v = args[i + 1];
+            switch (args[i]) {
+                case "--url":
+                    o.url = URI.create(v);
+                    break;
+                case "--pairs":
+                    o.pairs = Integer.parseInt(v);
+                    break;
+                case "--calls":
+                    o.calls = Integer.parseInt(v);
+                    break;
+                case "--cands":
+                    o.cands = Integer.parseInt(v);
+                    break;
+                case "--cand-batch":
+                    o.candBatch = Integer.parseInt(v);
+                    break;
+                case "--cand-window-ms":
+                    o.candWindowMs = Integer.parseInt(v);
+                    break;
+                case "--threads":
+                    o.threads = Integer.parseInt(v);
+                    break;
+                case "--ramp-ms":
+                    o.rampMs = Integer.parseInt(v);
+                    break;
+                case "--timeout-s":
+                    o.timeoutS = Integer.parseInt(v);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        return o;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LeaLoadGen(parse(args)).run();
+    }
+}
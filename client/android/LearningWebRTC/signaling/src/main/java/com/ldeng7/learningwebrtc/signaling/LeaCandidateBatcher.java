@@ -0,0 +1,77 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+class LeaCandidateBatcher {
+    // Daemon, so a JVM driving sessions can exit with a flush still pending.
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "lea-cand-batch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LeaSignalingSession session;
+    private final int windowMs;
+    private final int maxSize;
+    private final ArrayList<LeaWebSocketMessage.CandidateData> pending = new ArrayList<>();
+    private ScheduledFuture<?> flushTask;
+    private int remoteVersion = LeaWebSocketMessage.WIRE_VERSION_LEGACY;
+    private boolean closed;
+
+    LeaCandidateBatcher(final LeaSignalingSession session, int windowMs, int maxSize) {
+        this.session = session;
+        this.windowMs = windowMs;
+        this.maxSize = Math.max(maxSize, 1);
+    }
+
+    synchronized void setRemoteVersion(int version) {
+        this.remoteVersion = version;
+    }
+
+    synchronized void add(LeaWebSocketMessage.CandidateData data) {
+        if (this.closed) {
+            return;
+        }
+        this.pending.add(data);
+        if (this.pending.size() >= this.maxSize || this.windowMs <= 0) {
+            this.flush();
+        } else if (null == this.flushTask) {
+            this.flushTask = timer.schedule(this::flush, this.windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void flush() {
+        if (null != this.flushTask) {
+            this.flushTask.cancel(false);
+            this.flushTask = null;
+        }
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        // Peers that have not announced batch support get one frame per candidate.
+        if (this.remoteVersion < LeaWebSocketMessage.WIRE_VERSION || this.pending.size() == 1) {
+            for (LeaWebSocketMessage.CandidateData d : this.pending) {
+                this.session.send(LeaWebSocketMessage.EPhase.CAND, d);
+            }
+        } else {
+            LeaWebSocketMessage.CandidateBatchData data = new LeaWebSocketMessage.CandidateBatchData();
+            data.candidates = this.pending.toArray(new LeaWebSocketMessage.CandidateData[0]);
+            this.session.send(LeaWebSocketMessage.EPhase.CAND, data);
+        }
+        this.pending.clear();
+    }
+
+    synchronized void close() {
+        this.closed = true;
+        if (null != this.flushTask) {
+            this.flushTask.cancel(false);
+            this.flushTask = null;
+        }
+        this.pending.clear();
+    }
+}
@@ -0,0 +1,97 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import java.util.concurrent.Executor;
+
+// A LeaPeer without media. Descriptions are small canned SDPs, each one applied locally
+// is followed by a fixed number of host candidates, and it reports connected once both
+// descriptions are set and a remote candidate has arrived. Results are delivered on the
+// given executor, as a PeerConnection delivers them on its signaling thread.
+public class LeaFakePeer implements LeaPeer {
+    private final Executor executor;
+    private final int candidates;
+    private LeaSignalingSession session;
+    // Touched on the executor only.
+    private boolean localSet;
+    private boolean remoteSet;
+    private int remoteCandidates;
+    private int generation;
+    private volatile int offers;
+    private volatile boolean connected;
+
+    public LeaFakePeer(final Executor executor, int candidates) {
+        this.executor = executor;
+        this.candidates = candidates;
+    }
+
+    public int getOfferCount() {
+        return this.offers;
+    }
+
+    public boolean isConnected() {
+        return this.connected;
+    }
+
+    @Override
+    public boolean create(LeaSignalingSession session) {
+        this.session = session;
+        return true;
+    }
+
+    @Override
+    public void createOffer(final boolean iceRestart) {
+        this.offers++;
+        this.executor.execute(() -> {
+            if (iceRestart) {
+                this.generation++;
+                this.connected = false;
+                this.remoteSet = false;
+                this.remoteCandidates = 0;
+            }
+            this.applyLocal("offer");
+        });
+    }
+
+    @Override
+    public void createAnswer() {
+        this.executor.execute(() -> this.applyLocal("answer"));
+    }
+
+    @Override
+    public void setRemoteDescription(String type, String sdp) {
+        this.executor.execute(() -> {
+            this.remoteSet = true;
+            this.session.onRemoteDescriptionSet();
+            this.checkConnected();
+        });
+    }
+
+    @Override
+    public void addCandidates(final LeaWebSocketMessage.CandidateData[] candidates) {
+        this.executor.execute(() -> {
+            this.remoteCandidates += candidates.length;
+            this.checkConnected();
+        });
+    }
+
+    private void applyLocal(String type) {
+        this.localSet = true;
+        this.session.onLocalDescription(type, "v=0\r\no=- 0 " + this.generation + " IN IP4 127.0.0.1\r\ns=-\r\n" +
+            "t=0 0\r\nm=application 9 UDP/DTLS/SCTP webrtc-datachannel\r\na=ice-ufrag:g" + this.generation + "\r\n");
+        for (int i = 0; i < this.candidates; i++) {
+            final LeaWebSocketMessage.CandidateData c = new LeaWebSocketMessage.CandidateData();
+            c.candidate = "candidate:" + i + " 1 udp 2122260223 127.0.0.1 " + (50000 + i) + " typ host";
+            c.sdpMid = "0";
+            c.sdpMLineIndex = 0;
+            this.session.onLocalCandidate(c);
+        }
+        this.session.onGatheringComplete();
+        this.checkConnected();
+    }
+
+    private void checkConnected() {
+        if (!this.connected && this.localSet && this.remoteSet && this.remoteCandidates > 0) {
+            this.connected = true;
+            this.session.onConnected();
+        }
+    }
+}
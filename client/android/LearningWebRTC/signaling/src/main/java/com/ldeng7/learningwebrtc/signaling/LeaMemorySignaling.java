@@ -0,0 +1,270 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// In-memory stand-in for server/ws: pairs DIALs, assigns roles, relays OFFER/ANS/CAND,
+// forwards STOP and re-attaches resumed sessions. Every message goes through the real
+// codec and is handled on one hub thread after the configured one-way delay, so whole
+// calls can be run and timed on a plain JVM together with LeaFakePeer.
+public class LeaMemorySignaling {
+    private static final int USER_STATE_IDLE = 0;
+    private static final int USER_STATE_DIALING = 1;
+    private static final int USER_STATE_BUSY = 2;
+
+    private static class User {
+        final String id;
+        int state = USER_STATE_IDLE;
+        String partnerId;
+        Channel ch;
+        String sid;
+        int version;
+        // The partner hung up while ch was down; the STOP is sent on resume.
+        boolean stopped;
+
+        User(String id) {
+            this.id = id;
+        }
+    }
+
+    // One client connection, which may carry several sessions. lose() and restore()
+    // simulate the connection dropping and coming back, and expire() the server giving up
+    // on its sessions in between, as RESUME_GRACE running out does.
+    public class Channel implements LeaSignalingChannel {
+        private final Map<String, Listener> listeners = new HashMap<>();
+        private boolean up = true;
+
+        @Override
+        public void open(final String sid, final Listener listener) {
+            LeaMemorySignaling.this.post(() -> {
+                this.listeners.put(sid, listener);
+                if (this.up) {
+                    listener.onChannelOpen(false);
+                }
+            });
+        }
+
+        @Override
+        public void send(String sid, LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data) {
+            final String msg = LeaWebSocketMessage.encode(phase, sid, data);
+            LeaMemorySignaling.this.post(() -> {
+                if (this.up) {
+                    LeaMemorySignaling.this.onRequest(this, msg);
+                }
+            });
+        }
+
+        @Override
+        public void close(final String sid) {
+            LeaMemorySignaling.this.post(() -> this.listeners.remove(sid));
+        }
+
+        public void lose() {
+            LeaMemorySignaling.this.post(() -> {
+                this.up = false;
+                for (Listener l : this.listeners.values().toArray(new Listener[0])) {
+                    l.onChannelLost();
+                }
+            });
+        }
+
+        public void expire() {
+            LeaMemorySignaling.this.post(() -> {
+                for (User u : LeaMemorySignaling.this.users.values().toArray(new User[0])) {
+                    if (u.ch == this) {
+                        LeaMemorySignaling.this.closeUser(u);
+                    }
+                }
+            });
+        }
+
+        public void restore() {
+            LeaMemorySignaling.this.post(() -> {
+                this.up = true;
+                for (Listener l : this.listeners.values().toArray(new Listener[0])) {
+                    l.onChannelOpen(true);
+                }
+            });
+        }
+
+        private void deliver(String sid, String msg) {
+            final Listener l = this.listeners.get(sid);
+            if (!this.up || null == l) {
+                return;
+            }
+            try {
+                l.onChannelMessage(LeaWebSocketMessage.decode(msg));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService hub = Executors.newSingleThreadScheduledExecutor();
+    private final long delayMs;
+    // Touched on the hub thread only.
+    private final Map<String, User> users = new HashMap<>();
+
+    public LeaMemorySignaling(long delayMs) {
+        this.delayMs = delayMs;
+    }
+
+    public Channel newChannel() {
+        return new Channel();
+    }
+
+    public void shutdown() {
+        this.hub.shutdownNow();
+    }
+
+    private void post(Runnable r) {
+        if (this.delayMs > 0) {
+            this.hub.schedule(r, this.delayMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.hub.execute(r);
+        }
+    }
+
+    private void reply(Channel ch, String sid, LeaWebSocketMessage.EPhase phase, boolean success,
+            String message, String data) {
+        this.reply(ch, sid, phase, success, message, data, 0);
+    }
+
+    private void reply(Channel ch, String sid, LeaWebSocketMessage.EPhase phase, boolean success,
+            String message, String data, int version) {
+        final String msg = LeaWebSocketMessage.encodeResponse(phase, sid, success, message, data, version);
+        this.post(() -> ch.deliver(sid, msg));
+    }
+
+    private User findOrCreateUser(String id) {
+        User u = this.users.get(id);
+        if (null == u) {
+            u = new User(id);
+            this.users.put(id, u);
+        }
+        return u;
+    }
+
+    private User findBySid(Channel ch, String sid) {
+        for (User u : this.users.values()) {
+            if (u.ch == ch && sid.equals(u.sid)) {
+                return u;
+            }
+        }
+        return null;
+    }
+
+    private void onRequest(Channel ch, String msg) {
+        final LeaWebSocketMessage.Request req;
+        try {
+            req = LeaWebSocketMessage.decodeRequest(msg);
+        } catch (IOException e) {
+            return;
+        }
+        final String sid = null != req.sid ? req.sid : "";
+        switch (req.phase) {
+            case DIAL:
+                try {
+                    this.onDial(ch, sid, LeaWebSocketMessage.decodeDialRequest(req.data));
+                } catch (IOException e) {
+                    return;
+                }
+                break;
+            case OFFER:
+            case ANS:
+            case CAND: {
+                final User u = this.findBySid(ch, sid);
+                final User p = null != u ? this.users.get(u.partnerId) : null;
+                if (null == p || null == p.ch) {
+                    this.reply(ch, sid, req.phase, false, "incorrect phase", null);
+                    return;
+                }
+                this.reply(p.ch, p.sid, req.phase, true, "", req.data);
+                break;
+            }
+            case STOP: {
+                final User u = this.findBySid(ch, sid);
+                if (null != u) {
+                    this.closeUser(u);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private void closeUser(User u) {
+        this.users.remove(u.id);
+        final User p = this.users.get(u.partnerId);
+        if (null == p || null == p.ch) {
+            return;
+        }
+        if (p.ch.up) {
+            this.reply(p.ch, p.sid, LeaWebSocketMessage.EPhase.STOP, true, "", null);
+        } else {
+            p.stopped = true;
+        }
+    }
+
+    private void onDial(Channel ch, String sid, LeaWebSocketMessage.DialRequestData d) {
+        final User u = this.findOrCreateUser(d.localUid);
+        if (null != u.ch && u.state != USER_STATE_IDLE && d.remoteUid.equals(u.partnerId)) {
+            u.ch = ch;
+            u.sid = sid;
+            final User p = this.users.get(u.partnerId);
+            if (u.stopped || null == p || !u.id.equals(p.partnerId)) {
+                this.users.remove(u.id);
+                this.reply(ch, sid, LeaWebSocketMessage.EPhase.STOP, true, "", null);
+                return;
+            }
+            this.reply(ch, sid, LeaWebSocketMessage.EPhase.DIAL, true, LeaWebSocketMessage.MESSAGE_RESUMED, null);
+            return;
+        }
+        if (d.resume) {
+            if (u.state == USER_STATE_IDLE) {
+                this.users.remove(u.id);
+            }
+            this.reply(ch, sid, LeaWebSocketMessage.EPhase.STOP, true, "", null);
+            return;
+        }
+        switch (u.state) {
+            case USER_STATE_IDLE: {
+                final User p = this.findOrCreateUser(d.remoteUid);
+                if (p.state != USER_STATE_IDLE) {
+                    this.reply(ch, sid, LeaWebSocketMessage.EPhase.DIAL, false, "invalid remote uid", null);
+                    return;
+                }
+                u.state = USER_STATE_DIALING;
+                p.state = USER_STATE_DIALING;
+                u.partnerId = d.remoteUid;
+                p.partnerId = d.localUid;
+                u.ch = ch;
+                u.sid = sid;
+                u.version = d.version;
+                break;
+            }
+            case USER_STATE_DIALING: {
+                final User p = this.users.get(d.remoteUid);
+                if (!d.remoteUid.equals(u.partnerId) || null == p || null == p.ch) {
+                    this.reply(ch, sid, LeaWebSocketMessage.EPhase.DIAL, false, "invalid remote uid", null);
+                    return;
+                }
+                u.state = USER_STATE_BUSY;
+                p.state = USER_STATE_BUSY;
+                u.ch = ch;
+                u.sid = sid;
+                u.version = d.version;
+                this.reply(ch, sid, LeaWebSocketMessage.EPhase.DIAL, true, "", "false", p.version);
+                this.reply(p.ch, p.sid, LeaWebSocketMessage.EPhase.DIAL, true, "", "true", u.version);
+                break;
+            }
+            default:
+                this.reply(ch, sid, LeaWebSocketMessage.EPhase.DIAL, false, "invalid local uid", null);
+        }
+    }
+}
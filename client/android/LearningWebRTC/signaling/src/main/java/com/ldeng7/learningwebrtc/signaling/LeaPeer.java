@@ -0,0 +1,15 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+// The media side of a call as seen by signaling: a PeerConnection, or LeaFakePeer. The
+// calls may complete asynchronously; results are reported back to the session through
+// its on* methods, e.g. onLocalDescription() once a created offer has been applied.
+public interface LeaPeer {
+    // Returns false if the connection cannot be built, which ends the call.
+    boolean create(LeaSignalingSession session);
+    // iceRestart asks for fresh ICE credentials; it may be ignored if an offer is already
+    // outstanding.
+    void createOffer(boolean iceRestart);
+    void createAnswer();
+    void setRemoteDescription(String type, String sdp);
+    void addCandidates(LeaWebSocketMessage.CandidateData[] candidates);
+}
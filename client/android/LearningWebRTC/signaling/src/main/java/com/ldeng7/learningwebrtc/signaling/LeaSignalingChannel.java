@@ -0,0 +1,17 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+// The path to the signaling server for one session, e.g. a websocket or an in-memory
+// LeaMemorySignaling hub.
+public interface LeaSignalingChannel {
+    interface Listener {
+        // Also called after the channel recovered from a loss, with reconnected set.
+        void onChannelOpen(boolean reconnected);
+        void onChannelMessage(LeaWebSocketMessage.Response<?> resp);
+        void onChannelLost();
+    }
+
+    void open(String sid, Listener listener);
+    // Messages sent while the channel is down are held or dropped, never thrown.
+    void send(String sid, LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data);
+    void close(String sid);
+}
@@ -0,0 +1,237 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+// One call's signaling, from DIAL to STOP, over a LeaSignalingChannel and driving a
+// LeaPeer. It holds no platform state, so it runs the same against the app's websocket
+// and PeerConnection as against LeaMemorySignaling and LeaFakePeer.
+public class LeaSignalingSession implements LeaSignalingStateMachine.Actions, LeaSignalingChannel.Listener {
+    // Progress reports for tracing and metrics, plus onStopped(), after which the owner
+    // should tear the call down and close() the session.
+    public interface Listener {
+        void onChannelOpen();
+        void onPhase(LeaWebSocketMessage.EPhase phase, boolean sent);
+        void onDialAck();
+        // A rejected DIAL also stops the call.
+        void onRejected(LeaWebSocketMessage.EPhase phase, String message);
+        void onResumed();
+        void onChannelLost();
+        void onStopped();
+    }
+
+    private interface Handler {
+        void handle(LeaWebSocketMessage.Response<?> resp);
+    }
+
+    private final String localUid;
+    private final String remoteUid;
+    private final String sid;
+    private final LeaSignalingChannel channel;
+    private final LeaPeer peer;
+    private final Listener listener;
+    private final LeaCandidateBatcher candidateBatcher;
+    private final LeaSignalingStateMachine signaling;
+    // Indexed by phase ordinal; phases without a handler are ignored.
+    private final Handler[] handlers = new Handler[LeaWebSocketMessage.PHASE_COUNT];
+    private volatile boolean offerer;
+    // Set once the server has paired this session; a re-DIAL then asks to resume it.
+    private volatile boolean dialed;
+    private boolean opened;
+    private boolean closed;
+
+    public LeaSignalingSession(final String localUid, final String remoteUid, final LeaSignalingChannel channel,
+            final LeaPeer peer, final Listener listener, int candBatchWindowMs, int candBatchMaxSize) {
+        this.localUid = localUid;
+        this.remoteUid = remoteUid;
+        this.sid = localUid + "/" + remoteUid;
+        this.channel = channel;
+        this.peer = peer;
+        this.listener = listener;
+        this.candidateBatcher = new LeaCandidateBatcher(this, candBatchWindowMs, candBatchMaxSize);
+        this.signaling = new LeaSignalingStateMachine(this,
+            LeaSignalingStateMachine.DEFAULT_MAX_EARLY_CANDIDATES);
+        this.on(LeaWebSocketMessage.EPhase.DIAL, this::onRecvDial);
+        this.on(LeaWebSocketMessage.EPhase.OFFER, this::onRecvSdp);
+        this.on(LeaWebSocketMessage.EPhase.ANS, this::onRecvSdp);
+        this.on(LeaWebSocketMessage.EPhase.CAND, this::onRecvCand);
+        this.on(LeaWebSocketMessage.EPhase.STOP, resp -> this.signaling.onStop());
+    }
+
+    private void on(LeaWebSocketMessage.EPhase phase, Handler handler) {
+        this.handlers[phase.ordinal()] = handler;
+    }
+
+    public String getSid() {
+        return this.sid;
+    }
+
+    public LeaSignalingStateMachine getStateMachine() {
+        return this.signaling;
+    }
+
+    public boolean isOfferer() {
+        return this.offerer;
+    }
+
+    public void open() {
+        synchronized (this) {
+            if (this.opened || this.closed) {
+                return;
+            }
+            this.opened = true;
+        }
+        this.channel.open(this.sid, this);
+    }
+
+    // Ends this session only; the channel may carry others.
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (!this.opened) {
+                return;
+            }
+        }
+        this.candidateBatcher.close();
+        this.channel.send(this.sid, LeaWebSocketMessage.EPhase.STOP, null);
+        this.channel.close(this.sid);
+    }
+
+    // Ends the call from this side, e.g. when the media path is given up.
+    public void hangUp() {
+        this.signaling.onStop();
+    }
+
+    void send(LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data) {
+        this.listener.onPhase(phase, true);
+        this.channel.send(this.sid, phase, data);
+    }
+
+    // Reported by the peer: a created description has been applied locally.
+    public void onLocalDescription(String type, String sdp) {
+        final LeaWebSocketMessage.SdpData data = new LeaWebSocketMessage.SdpData();
+        data.type = type;
+        data.sdp = sdp;
+        data.version = LeaWebSocketMessage.WIRE_VERSION;
+        this.send("offer".equals(type) ? LeaWebSocketMessage.EPhase.OFFER : LeaWebSocketMessage.EPhase.ANS, data);
+    }
+
+    public void onLocalCandidate(LeaWebSocketMessage.CandidateData candidate) {
+        this.candidateBatcher.add(candidate);
+    }
+
+    public void onGatheringComplete() {
+        this.candidateBatcher.flush();
+    }
+
+    public void onRemoteDescriptionSet() {
+        this.signaling.onRemoteDescriptionSet();
+    }
+
+    public void onConnected() {
+        this.signaling.onConnected();
+    }
+
+    // Only the side that made the first offer restarts, so both ends never offer at once;
+    // the other side answers the restart offer like any other.
+    public void restartIce() {
+        if (this.offerer) {
+            this.peer.createOffer(true);
+        }
+    }
+
+    @Override
+    public void createPeerConnection(boolean offerer) {
+        this.offerer = offerer;
+        if (!this.peer.create(this)) {
+            this.signaling.onStop();
+            return;
+        }
+        if (offerer) {
+            this.peer.createOffer(false);
+        }
+    }
+
+    @Override
+    public void setRemoteDescription(LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.SdpData data) {
+        this.peer.setRemoteDescription(data.type, data.sdp);
+        if (phase == LeaWebSocketMessage.EPhase.OFFER) {
+            this.peer.createAnswer();
+        }
+    }
+
+    @Override
+    public void addCandidates(LeaWebSocketMessage.CandidateData[] candidates) {
+        this.peer.addCandidates(candidates);
+    }
+
+    @Override
+    public void stop() {
+        this.candidateBatcher.close();
+        this.listener.onStopped();
+    }
+
+    // Also called after a reconnect: re-sending DIAL re-attaches an in-flight session on
+    // the server, and the state machine ignores the ack unless it is still dialing.
+    @Override
+    public void onChannelOpen(boolean reconnected) {
+        this.listener.onChannelOpen();
+        final LeaWebSocketMessage.DialRequestData data = new LeaWebSocketMessage.DialRequestData();
+        data.localUid = this.localUid;
+        data.remoteUid = this.remoteUid;
+        data.version = LeaWebSocketMessage.WIRE_VERSION;
+        data.resume = reconnected && this.dialed;
+        this.signaling.onDialSent();
+        this.send(LeaWebSocketMessage.EPhase.DIAL, data);
+    }
+
+    @Override
+    public void onChannelMessage(LeaWebSocketMessage.Response<?> resp) {
+        this.listener.onPhase(resp.phase, false);
+        if (!resp.success && resp.phase != LeaWebSocketMessage.EPhase.DIAL) {
+            this.listener.onRejected(resp.phase, resp.message);
+            return;
+        }
+        final Handler h = this.handlers[resp.phase.ordinal()];
+        if (null != h) {
+            h.handle(resp);
+        }
+    }
+
+    // The media path may still be healthy, so the call is kept while the channel
+    // reconnects; the server stops it if the session is not resumed in time.
+    @Override
+    public void onChannelLost() {
+        this.listener.onChannelLost();
+    }
+
+    private void onRecvDial(final LeaWebSocketMessage.Response<?> resp) {
+        this.listener.onDialAck();
+        if (!resp.success) {
+            this.listener.onRejected(resp.phase, resp.message);
+            this.signaling.onStop();
+            return;
+        }
+        if (LeaWebSocketMessage.MESSAGE_RESUMED.equals(resp.message)) {
+            this.listener.onResumed();
+            return;
+        }
+        // Known before the offerer gathers, so its first burst is batched too. Servers
+        // and partners that predate it leave it 0, and the version then comes with the SDP.
+        if (resp.version > 0) {
+            this.candidateBatcher.setRemoteVersion(resp.version);
+        }
+        this.dialed = true;
+        this.signaling.onDialAck((Boolean) resp.data);
+    }
+
+    private void onRecvSdp(LeaWebSocketMessage.Response<?> resp) {
+        final LeaWebSocketMessage.SdpData data = (LeaWebSocketMessage.SdpData) resp.data;
+        this.candidateBatcher.setRemoteVersion(data.version);
+        this.signaling.onRemoteSdp(resp.phase, data);
+    }
+
+    private void onRecvCand(LeaWebSocketMessage.Response<?> resp) {
+        this.signaling.onRemoteCandidates((LeaWebSocketMessage.CandidateData[]) resp.data);
+    }
+}
@@ -0,0 +1,177 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+// Call phases from DIAL to STOP. Remote SDP and candidates that arrive early are held
+// until they can be applied.
+public class LeaSignalingStateMachine {
+    public enum EState {
+        IDLE,
+        DIALING,
+        DIALED,
+        REMOTE_PENDING,
+        REMOTE_SET,
+        CONNECTED,
+        STOPPED,
+    }
+
+    // Invoked without the state lock held, since the WebRTC calls behind them may block
+    // on the signaling thread, which reports back into this class.
+    public interface Actions {
+        void createPeerConnection(boolean offerer);
+        void setRemoteDescription(LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.SdpData data);
+        void addCandidates(LeaWebSocketMessage.CandidateData[] candidates);
+        void stop();
+    }
+
+    public static final int DEFAULT_MAX_EARLY_CANDIDATES = 64;
+
+    private final Actions actions;
+    private final int maxEarlyCandidates;
+    private final ArrayDeque<LeaWebSocketMessage.CandidateData> earlyCandidates = new ArrayDeque<>();
+    private final long[] stateEnteredNs = new long[EState.values().length];
+    private EState state = EState.IDLE;
+    private LeaWebSocketMessage.EPhase pendingRemotePhase;
+    private LeaWebSocketMessage.SdpData pendingRemoteSdp;
+    private int droppedCandidates;
+
+    public LeaSignalingStateMachine(final Actions actions, int maxEarlyCandidates) {
+        this.actions = actions;
+        this.maxEarlyCandidates = maxEarlyCandidates;
+        this.stateEnteredNs[EState.IDLE.ordinal()] = System.nanoTime();
+    }
+
+    private void enter(EState state) {
+        this.state = state;
+        this.stateEnteredNs[state.ordinal()] = System.nanoTime();
+    }
+
+    public synchronized EState getState() {
+        return this.state;
+    }
+
+    public synchronized long getStateEnteredNs(EState state) {
+        return this.stateEnteredNs[state.ordinal()];
+    }
+
+    public synchronized long getTimeToConnectedNs() {
+        if (0 == this.stateEnteredNs[EState.CONNECTED.ordinal()]) {
+            return -1;
+        }
+        return this.stateEnteredNs[EState.CONNECTED.ordinal()] - this.stateEnteredNs[EState.DIALING.ordinal()];
+    }
+
+    public synchronized int getDroppedCandidates() {
+        return this.droppedCandidates;
+    }
+
+    public void onDialSent() {
+        synchronized (this) {
+            if (this.state != EState.IDLE) {
+                return;
+            }
+            this.enter(EState.DIALING);
+        }
+    }
+
+    public void onDialAck(boolean offerer) {
+        LeaWebSocketMessage.EPhase phase;
+        LeaWebSocketMessage.SdpData sdp;
+        synchronized (this) {
+            if (this.state != EState.DIALING) {
+                return;
+            }
+            this.enter(EState.DIALED);
+            phase = this.pendingRemotePhase;
+            sdp = this.pendingRemoteSdp;
+            this.pendingRemotePhase = null;
+            this.pendingRemoteSdp = null;
+            if (null != sdp) {
+                this.enter(EState.REMOTE_PENDING);
+            }
+        }
+        this.actions.createPeerConnection(offerer && null == sdp);
+        if (null != sdp) {
+            this.actions.setRemoteDescription(phase, sdp);
+        }
+    }
+
+    public void onRemoteSdp(LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.SdpData sdp) {
+        synchronized (this) {
+            switch (this.state) {
+                case IDLE:
+                case DIALING:
+                    // Arrived ahead of the DIAL ack: hold it until the PeerConnection exists.
+                    this.pendingRemotePhase = phase;
+                    this.pendingRemoteSdp = sdp;
+                    return;
+                case DIALED:
+                    this.enter(EState.REMOTE_PENDING);
+                    break;
+                case REMOTE_SET:
+                case CONNECTED:
+                    // Renegotiation, e.g. an ICE restart offer or its answer.
+                    break;
+                default:
+                    return;
+            }
+        }
+        this.actions.setRemoteDescription(phase, sdp);
+    }
+
+    public void onRemoteDescriptionSet() {
+        LeaWebSocketMessage.CandidateData[] drained;
+        synchronized (this) {
+            if (this.state != EState.REMOTE_PENDING) {
+                return;
+            }
+            this.enter(EState.REMOTE_SET);
+            if (this.earlyCandidates.isEmpty()) {
+                return;
+            }
+            drained = this.earlyCandidates.toArray(new LeaWebSocketMessage.CandidateData[0]);
+            this.earlyCandidates.clear();
+        }
+        this.actions.addCandidates(drained);
+    }
+
+    public void onRemoteCandidates(LeaWebSocketMessage.CandidateData[] candidates) {
+        synchronized (this) {
+            switch (this.state) {
+                case REMOTE_SET:
+                case CONNECTED:
+                    break;
+                case STOPPED:
+                    return;
+                default:
+                    int n = Math.min(candidates.length, this.maxEarlyCandidates - this.earlyCandidates.size());
+                    this.earlyCandidates.addAll(Arrays.asList(candidates).subList(0, Math.max(n, 0)));
+                    this.droppedCandidates += candidates.length - Math.max(n, 0);
+                    return;
+            }
+        }
+        this.actions.addCandidates(candidates);
+    }
+
+    public void onConnected() {
+        synchronized (this) {
+            if (this.state != EState.REMOTE_SET) {
+                return;
+            }
+            this.enter(EState.CONNECTED);
+        }
+    }
+
+    public void onStop() {
+        synchronized (this) {
+            if (this.state == EState.STOPPED) {
+                return;
+            }
+            this.enter(EState.STOPPED);
+            this.earlyCandidates.clear();
+            this.pendingRemoteSdp = null;
+        }
+        this.actions.stop();
+    }
+}
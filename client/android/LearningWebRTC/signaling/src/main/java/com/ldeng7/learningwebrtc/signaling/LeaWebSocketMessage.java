@@ -0,0 +1,376 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+// Codec of the server/ws wire protocol, shared by the app and the JVM tools.
+public class LeaWebSocketMessage {
+    // Version 2 peers accept CAND payloads carrying an array of candidates.
+    public static final int WIRE_VERSION = 2;
+    public static final int WIRE_VERSION_LEGACY = 1;
+    // DIAL ack message for a session re-attached after a reconnect; carries no role.
+    public static final String MESSAGE_RESUMED = "resumed";
+
+    public enum EPhase {
+        INIT,
+        DIAL,
+        OFFER,
+        ANS,
+        CAND,
+        STOP,
+    }
+
+    // values() clones on every call, so wire ordinals are resolved against one copy.
+    private static final EPhase[] PHASES = EPhase.values();
+    public static final int PHASE_COUNT = PHASES.length;
+
+    // The server relays "data" as an opaque JSON string, so the payload is still nested
+    // as a string on the wire; it is streamed in and out without any reflective Gson pass.
+    public interface Data {
+        void write(JsonWriter w) throws IOException;
+    }
+
+    public static class Request {
+        public EPhase phase;
+        public String sid;
+        public String data;
+    }
+
+    public static class Response<T> {
+        public EPhase phase;
+        public String sid;
+        public boolean success;
+        public String message;
+        public T data;
+        // On a DIAL ack, the version the partner announced in its DIAL; 0 if it announced none.
+        public int version;
+    }
+
+    public static class DialRequestData implements Data {
+        public String localUid;
+        public String remoteUid;
+        // Relayed to the partner on its DIAL ack, so both sides know it before any SDP.
+        public int version;
+        // Re-attaches a session already underway after a reconnect; one the server has
+        // torn down meanwhile is answered with STOP instead of starting a new dial.
+        public boolean resume;
+
+        @Override
+        public void write(JsonWriter w) throws IOException {
+            w.beginObject();
+            w.name("uid").value(this.localUid);
+            w.name("ruid").value(this.remoteUid);
+            w.name("version").value(this.version);
+            if (this.resume) {
+                w.name("resume").value(true);
+            }
+            w.endObject();
+        }
+
+        public static DialRequestData read(JsonReader r) throws IOException {
+            final DialRequestData d = new DialRequestData();
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName().toLowerCase()) {
+                    case "uid":
+                        d.localUid = nextStringOrNull(r);
+                        break;
+                    case "ruid":
+                        d.remoteUid = nextStringOrNull(r);
+                        break;
+                    case "version":
+                        d.version = r.nextInt();
+                        break;
+                    case "resume":
+                        d.resume = r.nextBoolean();
+                        break;
+                    default:
+                        r.skipValue();
+                }
+            }
+            r.endObject();
+            return d;
+        }
+    }
+
+    public static class SdpData implements Data {
+        public String type;
+        public String sdp;
+        public int version;
+
+        @Override
+        public void write(JsonWriter w) throws IOException {
+            w.beginObject();
+            w.name("type").value(this.type);
+            w.name("sdp").value(this.sdp);
+            w.name("version").value(this.version);
+            w.endObject();
+        }
+
+        public static SdpData read(JsonReader r) throws IOException {
+            final SdpData d = new SdpData();
+            d.version = WIRE_VERSION_LEGACY;
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "type":
+                        d.type = nextStringOrNull(r);
+                        break;
+                    case "sdp":
+                        d.sdp = nextStringOrNull(r);
+                        break;
+                    case "version":
+                        d.version = r.nextInt();
+                        break;
+                    default:
+                        r.skipValue();
+                }
+            }
+            r.endObject();
+            return d;
+        }
+    }
+
+    public static class CandidateData implements Data {
+        public String candidate;
+        public String sdpMid;
+        public int sdpMLineIndex;
+
+        @Override
+        public void write(JsonWriter w) throws IOException {
+            w.beginObject();
+            w.name("candidate").value(this.candidate);
+            w.name("sdpMid").value(this.sdpMid);
+            w.name("sdpMLineIndex").value(this.sdpMLineIndex);
+            w.endObject();
+        }
+
+        public static CandidateData read(JsonReader r) throws IOException {
+            final CandidateData d = new CandidateData();
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "candidate":
+                        d.candidate = nextStringOrNull(r);
+                        break;
+                    case "sdpMid":
+                        d.sdpMid = nextStringOrNull(r);
+                        break;
+                    case "sdpMLineIndex":
+                        d.sdpMLineIndex = r.nextInt();
+                        break;
+                    default:
+                        r.skipValue();
+                }
+            }
+            r.endObject();
+            return d;
+        }
+
+        public static CandidateData[] readBatch(JsonReader r) throws IOException {
+            if (r.peek() != JsonToken.BEGIN_ARRAY) {
+                return new CandidateData[] {read(r)};
+            }
+            final ArrayList<CandidateData> l = new ArrayList<>();
+            r.beginArray();
+            while (r.hasNext()) {
+                l.add(read(r));
+            }
+            r.endArray();
+            return l.toArray(new CandidateData[0]);
+        }
+    }
+
+    public static class CandidateBatchData implements Data {
+        public CandidateData[] candidates;
+
+        @Override
+        public void write(JsonWriter w) throws IOException {
+            w.beginArray();
+            for (CandidateData d : this.candidates) {
+                d.write(w);
+            }
+            w.endArray();
+        }
+    }
+
+    private interface DataReader {
+        Object read(JsonReader r) throws IOException;
+    }
+
+    // Payload reader of each phase, indexed by ordinal; null for phases without data.
+    private static final DataReader[] dataReaders = new DataReader[PHASE_COUNT];
+    static {
+        dataReaders[EPhase.DIAL.ordinal()] = JsonReader::nextBoolean;
+        dataReaders[EPhase.OFFER.ordinal()] = SdpData::read;
+        dataReaders[EPhase.ANS.ordinal()] = SdpData::read;
+        dataReaders[EPhase.CAND.ordinal()] = CandidateData::readBatch;
+    }
+
+    private static final ThreadLocal<StringWriter> encodeBuffer = new ThreadLocal<StringWriter>() {
+        @Override protected StringWriter initialValue() {
+            return new StringWriter(1024);
+        }
+    };
+
+    private static String nextStringOrNull(JsonReader r) throws IOException {
+        if (r.peek() == JsonToken.NULL) {
+            r.nextNull();
+            return null;
+        }
+        return r.nextString();
+    }
+
+    // Rejects a missing or unknown phase as malformed input rather than indexing out of range.
+    private static EPhase phaseOf(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= PHASE_COUNT) {
+            throw new IOException("unknown phase " + ordinal);
+        }
+        return PHASES[ordinal];
+    }
+
+    public static String encode(final EPhase phase, final String sid, final Data data) {
+        final StringWriter sw = encodeBuffer.get();
+        final StringBuffer buf = sw.getBuffer();
+        try {
+            buf.setLength(0);
+            JsonWriter w = new JsonWriter(sw);
+            if (null != data) {
+                data.write(w);
+            } else {
+                w.nullValue();
+            }
+            w.flush();
+            final String json = buf.toString();
+
+            buf.setLength(0);
+            w = new JsonWriter(sw);
+            w.beginObject();
+            w.name("phase").value(phase.ordinal());
+            if (null != sid) {
+                w.name("sid").value(sid);
+            }
+            w.name("data").value(json);
+            w.endObject();
+            w.flush();
+            return buf.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String encodeResponse(final EPhase phase, final String sid, boolean success,
+            final String message, final String data) {
+        return encodeResponse(phase, sid, success, message, data, 0);
+    }
+
+    public static String encodeResponse(final EPhase phase, final String sid, boolean success,
+            final String message, final String data, int version) {
+        final StringWriter sw = encodeBuffer.get();
+        final StringBuffer buf = sw.getBuffer();
+        try {
+            buf.setLength(0);
+            final JsonWriter w = new JsonWriter(sw);
+            w.beginObject();
+            w.name("phase").value(phase.ordinal());
+            if (null != sid && sid.length() != 0) {
+                w.name("sid").value(sid);
+            }
+            w.name("success").value(success);
+            w.name("message").value(null != message ? message : "");
+            w.name("data").value(null != data ? data : "null");
+            if (0 != version) {
+                w.name("version").value(version);
+            }
+            w.endObject();
+            w.flush();
+            return buf.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Request decodeRequest(String s) throws IOException {
+        final JsonReader r = new JsonReader(new StringReader(s));
+        int phase = -1;
+        Request req = new Request();
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName().toLowerCase()) {
+                case "phase":
+                    phase = r.nextInt();
+                    break;
+                case "sid":
+                    req.sid = nextStringOrNull(r);
+                    break;
+                case "data":
+                    req.data = nextStringOrNull(r);
+                    break;
+                default:
+                    r.skipValue();
+            }
+        }
+        r.endObject();
+        req.phase = phaseOf(phase);
+        return req;
+    }
+
+    public static DialRequestData decodeDialRequest(String s) throws IOException {
+        return DialRequestData.read(new JsonReader(new StringReader(s)));
+    }
+
+    private static Object decodeData(final EPhase phase, final String s) throws IOException {
+        final DataReader reader = dataReaders[phase.ordinal()];
+        if (null == reader || null == s) {
+            return null;
+        }
+        final JsonReader r = new JsonReader(new StringReader(s));
+        if (r.peek() == JsonToken.NULL) {
+            return null;
+        }
+        return reader.read(r);
+    }
+
+    public static Response<?> decode(String s) throws IOException {
+        final JsonReader r = new JsonReader(new StringReader(s));
+        int phase = -1;
+        String data = null;
+        final Response<Object> resp = new Response<>();
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextName()) {
+                case "phase":
+                    phase = r.nextInt();
+                    break;
+                case "sid":
+                    resp.sid = nextStringOrNull(r);
+                    break;
+                case "success":
+                    resp.success = r.nextBoolean();
+                    break;
+                case "message":
+                    resp.message = nextStringOrNull(r);
+                    break;
+                case "data":
+                    data = nextStringOrNull(r);
+                    break;
+                case "version":
+                    resp.version = r.nextInt();
+                    break;
+                default:
+                    r.skipValue();
+            }
+        }
+        r.endObject();
+
+        resp.phase = phaseOf(phase);
+        resp.data = decodeData(resp.phase, data);
+        return resp;
+    }
+}
@@ -0,0 +1,199 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+// Whole calls between two sessions over LeaMemorySignaling, with LeaFakePeer as media.
+public class LeaSignalingSessionTest {
+    private static final int CANDIDATES = 6;
+    private static final long TIMEOUT_MS = 5000;
+
+    private static class Side implements LeaSignalingSession.Listener {
+        final LeaMemorySignaling.Channel channel;
+        final LeaFakePeer peer;
+        final LeaSignalingSession session;
+        final AtomicInteger[] sent = new AtomicInteger[LeaWebSocketMessage.PHASE_COUNT];
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicInteger resumed = new AtomicInteger();
+        volatile boolean stopped;
+
+        Side(LeaMemorySignaling hub, ExecutorService executor, String uid, String ruid) {
+            for (int i = 0; i < this.sent.length; i++) {
+                this.sent[i] = new AtomicInteger();
+            }
+            this.channel = hub.newChannel();
+            this.peer = new LeaFakePeer(executor, CANDIDATES);
+            this.session = new LeaSignalingSession(uid, ruid, this.channel, this.peer, this, 20, 16);
+        }
+
+        int sent(LeaWebSocketMessage.EPhase phase) {
+            return this.sent[phase.ordinal()].get();
+        }
+
+        @Override
+        public void onChannelOpen() {}
+
+        @Override
+        public void onPhase(LeaWebSocketMessage.EPhase phase, boolean sent) {
+            if (sent) {
+                this.sent[phase.ordinal()].incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onDialAck() {}
+
+        @Override
+        public void onRejected(LeaWebSocketMessage.EPhase phase, String message) {
+            this.rejected.incrementAndGet();
+        }
+
+        @Override
+        public void onResumed() {
+            this.resumed.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelLost() {}
+
+        @Override
+        public void onStopped() {
+            this.stopped = true;
+        }
+    }
+
+    private LeaMemorySignaling hub;
+    private ExecutorService executor;
+    private Side a;
+    private Side b;
+
+    @Before
+    public void setUp() {
+        this.hub = new LeaMemorySignaling(1);
+        this.executor = Executors.newSingleThreadExecutor();
+        this.a = new Side(this.hub, this.executor, "alice", "bob");
+        this.b = new Side(this.hub, this.executor, "bob", "alice");
+    }
+
+    @After
+    public void tearDown() {
+        this.a.session.close();
+        this.b.session.close();
+        this.hub.shutdown();
+        this.executor.shutdownNow();
+    }
+
+    private static void await(String what, BooleanSupplier cond) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out waiting for " + what);
+            }
+            Thread.sleep(2);
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        this.a.session.open();
+        this.b.session.open();
+        await("connected", () -> this.a.peer.isConnected() && this.b.peer.isConnected());
+        await("CONNECTED", () ->
+            this.a.session.getStateMachine().getState() == LeaSignalingStateMachine.EState.CONNECTED &&
+            this.b.session.getStateMachine().getState() == LeaSignalingStateMachine.EState.CONNECTED);
+    }
+
+    @Test
+    public void callConnects() throws InterruptedException {
+        this.connect();
+        assertNotEquals(this.a.session.isOfferer(), this.b.session.isOfferer());
+        final Side offerer = this.a.session.isOfferer() ? this.a : this.b;
+        final Side answerer = offerer == this.a ? this.b : this.a;
+        assertEquals(1, offerer.sent(LeaWebSocketMessage.EPhase.OFFER));
+        assertEquals(0, offerer.sent(LeaWebSocketMessage.EPhase.ANS));
+        assertEquals(1, answerer.sent(LeaWebSocketMessage.EPhase.ANS));
+        assertEquals(0, this.a.rejected.get() + this.b.rejected.get());
+        assertEquals(0, this.a.session.getStateMachine().getDroppedCandidates());
+        assertEquals(0, this.b.session.getStateMachine().getDroppedCandidates());
+    }
+
+    @Test
+    public void bothSidesBatchCandidates() throws InterruptedException {
+        this.connect();
+        // The DIAL ack carries the partner's version, so even the offerer, which gathers
+        // before any SDP arrives, sends its burst in one frame.
+        assertEquals(1, this.a.sent(LeaWebSocketMessage.EPhase.CAND));
+        assertEquals(1, this.b.sent(LeaWebSocketMessage.EPhase.CAND));
+    }
+
+    @Test
+    public void hangUpStopsBothSides() throws InterruptedException {
+        this.connect();
+        this.a.session.hangUp();
+        this.a.session.close();
+        await("remote stop", () -> this.b.stopped);
+        assertTrue(this.a.stopped);
+        assertEquals(LeaSignalingStateMachine.EState.STOPPED, this.b.session.getStateMachine().getState());
+    }
+
+    @Test
+    public void sessionResumesAfterChannelLoss() throws InterruptedException {
+        this.connect();
+        this.a.channel.lose();
+        this.a.channel.restore();
+        await("resumed", () -> this.a.resumed.get() == 1);
+        assertFalse(this.a.stopped);
+        assertFalse(this.b.stopped);
+        assertEquals(LeaSignalingStateMachine.EState.CONNECTED, this.a.session.getStateMachine().getState());
+    }
+
+    @Test
+    public void stopWhileAwayIsDeliveredOnResume() throws InterruptedException {
+        this.connect();
+        this.b.channel.lose();
+        this.a.session.hangUp();
+        this.a.session.close();
+        // Someone else takes alice's id before bob is back.
+        final Side carol = new Side(this.hub, this.executor, "carol", "alice");
+        carol.session.open();
+        Thread.sleep(50);
+        this.b.channel.restore();
+        await("stop on resume", () -> this.b.stopped);
+        assertEquals(0, this.b.resumed.get());
+        carol.session.close();
+    }
+
+    @Test
+    public void resumeOfExpiredSessionIsStopped() throws InterruptedException {
+        this.connect();
+        this.b.channel.lose();
+        this.b.channel.expire();
+        this.b.channel.restore();
+        await("stop on resume", () -> this.b.stopped);
+        await("partner stopped", () -> this.a.stopped);
+        assertEquals(0, this.b.resumed.get());
+    }
+
+    @Test
+    public void iceRestartRenegotiates() throws InterruptedException {
+        this.connect();
+        final Side offerer = this.a.session.isOfferer() ? this.a : this.b;
+        final Side answerer = offerer == this.a ? this.b : this.a;
+        answerer.session.restartIce();
+        offerer.session.restartIce();
+        await("restart answered", () -> answerer.sent(LeaWebSocketMessage.EPhase.ANS) == 2);
+        await("reconnected", () -> offerer.peer.isConnected());
+        assertEquals(0, answerer.peer.getOfferCount());
+        assertEquals(2, offerer.peer.getOfferCount());
+    }
+}
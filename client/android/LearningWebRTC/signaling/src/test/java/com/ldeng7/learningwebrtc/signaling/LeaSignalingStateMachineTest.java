@@ -0,0 +1,174 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LeaSignalingStateMachineTest {
+    // Records the actions in order, e.g. "create:true", "remote:OFFER", "cands:2", "stop".
+    private static class Recorder implements LeaSignalingStateMachine.Actions {
+        final ArrayList<String> calls = new ArrayList<>();
+        int candidates;
+
+        @Override
+        public void createPeerConnection(boolean offerer) {
+            this.calls.add("create:" + offerer);
+        }
+
+        @Override
+        public void setRemoteDescription(LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.SdpData data) {
+            this.calls.add("remote:" + phase);
+        }
+
+        @Override
+        public void addCandidates(LeaWebSocketMessage.CandidateData[] candidates) {
+            this.calls.add("cands:" + candidates.length);
+            this.candidates += candidates.length;
+        }
+
+        @Override
+        public void stop() {
+            this.calls.add("stop");
+        }
+    }
+
+    private Recorder actions;
+    private LeaSignalingStateMachine sm;
+
+    @Before
+    public void setUp() {
+        this.actions = new Recorder();
+        this.sm = new LeaSignalingStateMachine(this.actions, 4);
+    }
+
+    private static LeaWebSocketMessage.SdpData sdp(String type) {
+        final LeaWebSocketMessage.SdpData d = new LeaWebSocketMessage.SdpData();
+        d.type = type;
+        d.sdp = "v=0\r\n";
+        return d;
+    }
+
+    private static LeaWebSocketMessage.CandidateData[] cands(int n) {
+        final LeaWebSocketMessage.CandidateData[] a = new LeaWebSocketMessage.CandidateData[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LeaWebSocketMessage.CandidateData();
+            a[i].candidate = "candidate:" + i;
+        }
+        return a;
+    }
+
+    private void assertCalls(String... calls) {
+        assertEquals(Arrays.asList(calls), this.actions.calls);
+    }
+
+    @Test
+    public void offererPath() {
+        this.sm.onDialSent();
+        assertEquals(LeaSignalingStateMachine.EState.DIALING, this.sm.getState());
+        this.sm.onDialAck(true);
+        assertEquals(LeaSignalingStateMachine.EState.DIALED, this.sm.getState());
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.ANS, sdp("answer"));
+        assertEquals(LeaSignalingStateMachine.EState.REMOTE_PENDING, this.sm.getState());
+        this.sm.onRemoteDescriptionSet();
+        assertEquals(LeaSignalingStateMachine.EState.REMOTE_SET, this.sm.getState());
+        this.sm.onRemoteCandidates(cands(2));
+        this.sm.onConnected();
+        assertEquals(LeaSignalingStateMachine.EState.CONNECTED, this.sm.getState());
+        assertTrue(this.sm.getTimeToConnectedNs() >= 0);
+        this.sm.onStop();
+        this.sm.onStop();
+        assertEquals(LeaSignalingStateMachine.EState.STOPPED, this.sm.getState());
+        assertCalls("create:true", "remote:ANS", "cands:2", "stop");
+    }
+
+    @Test
+    public void answererPath() {
+        this.sm.onDialSent();
+        this.sm.onDialAck(false);
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.OFFER, sdp("offer"));
+        this.sm.onRemoteDescriptionSet();
+        assertCalls("create:false", "remote:OFFER");
+    }
+
+    @Test
+    public void offerBeforeDialAckIsHeld() {
+        this.sm.onDialSent();
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.OFFER, sdp("offer"));
+        assertEquals(LeaSignalingStateMachine.EState.DIALING, this.sm.getState());
+        assertCalls();
+        // An offer already in hand makes this side the answerer whatever the ack says.
+        this.sm.onDialAck(true);
+        assertEquals(LeaSignalingStateMachine.EState.REMOTE_PENDING, this.sm.getState());
+        assertCalls("create:false", "remote:OFFER");
+    }
+
+    @Test
+    public void earlyCandidatesAreQueuedUntilRemoteDescriptionIsSet() {
+        this.sm.onRemoteCandidates(cands(1));
+        this.sm.onDialSent();
+        this.sm.onRemoteCandidates(cands(1));
+        this.sm.onDialAck(false);
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.OFFER, sdp("offer"));
+        this.sm.onRemoteCandidates(cands(1));
+        assertCalls("create:false", "remote:OFFER");
+        this.sm.onRemoteDescriptionSet();
+        assertCalls("create:false", "remote:OFFER", "cands:3");
+        this.sm.onRemoteCandidates(cands(2));
+        assertCalls("create:false", "remote:OFFER", "cands:3", "cands:2");
+        assertEquals(0, this.sm.getDroppedCandidates());
+    }
+
+    @Test
+    public void earlyCandidateQueueIsBounded() {
+        this.sm.onDialSent();
+        this.sm.onRemoteCandidates(cands(3));
+        this.sm.onRemoteCandidates(cands(3));
+        assertEquals(2, this.sm.getDroppedCandidates());
+        this.sm.onDialAck(true);
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.ANS, sdp("answer"));
+        this.sm.onRemoteDescriptionSet();
+        assertEquals(4, this.actions.candidates);
+    }
+
+    @Test
+    public void lateAndDuplicateEventsAreIgnored() {
+        this.sm.onDialAck(true);
+        this.sm.onConnected();
+        this.sm.onRemoteDescriptionSet();
+        assertEquals(LeaSignalingStateMachine.EState.IDLE, this.sm.getState());
+        this.sm.onDialSent();
+        this.sm.onDialAck(true);
+        // A resumed DIAL's ack after the call is underway.
+        this.sm.onDialSent();
+        this.sm.onDialAck(false);
+        assertCalls("create:true");
+    }
+
+    @Test
+    public void renegotiationIsApplied() {
+        this.sm.onDialSent();
+        this.sm.onDialAck(false);
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.OFFER, sdp("offer"));
+        this.sm.onRemoteDescriptionSet();
+        this.sm.onConnected();
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.OFFER, sdp("offer"));
+        assertEquals(LeaSignalingStateMachine.EState.CONNECTED, this.sm.getState());
+        assertCalls("create:false", "remote:OFFER", "remote:OFFER");
+    }
+
+    @Test
+    public void nothingIsAppliedAfterStop() {
+        this.sm.onDialSent();
+        this.sm.onRemoteCandidates(cands(2));
+        this.sm.onStop();
+        this.sm.onDialAck(true);
+        this.sm.onRemoteSdp(LeaWebSocketMessage.EPhase.ANS, sdp("answer"));
+        this.sm.onRemoteCandidates(cands(2));
+        assertCalls("stop");
+    }
+}
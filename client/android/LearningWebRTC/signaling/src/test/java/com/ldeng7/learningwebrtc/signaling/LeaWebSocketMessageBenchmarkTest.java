@@ -0,0 +1,273 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Bytes allocated and time per message for the streaming codec against the double-Gson
+// one it replaced, printed per run. Allocation is counted by the JVM for this thread, so
+// it is exact; the times are only indicative on a shared machine.
+public class LeaWebSocketMessageBenchmarkTest {
+    private static final int OPS = 20000;
+    private static final int WARMUP = 3;
+
+    // The codec before the streaming one, with today's envelope fields: the payload is
+    // serialized to a string of its own, serialized again inside the envelope, and decoded
+    // in a second reflective pass.
+    static class GsonCodec {
+        private static class Request {
+            public int phase;
+            public String sid;
+            public String data;
+        }
+
+        private static class ResponseInternal {
+            public int phase;
+            public String sid;
+            public boolean success;
+            public String message;
+            public String data;
+            public int version;
+        }
+
+        private static final Gson g = new Gson();
+        private static final Map<LeaWebSocketMessage.EPhase, Class<?>> phaseToDataClass = new HashMap<>();
+        static {
+            phaseToDataClass.put(LeaWebSocketMessage.EPhase.DIAL, Boolean.class);
+            phaseToDataClass.put(LeaWebSocketMessage.EPhase.OFFER, LeaWebSocketMessage.SdpData.class);
+            phaseToDataClass.put(LeaWebSocketMessage.EPhase.ANS, LeaWebSocketMessage.SdpData.class);
+            phaseToDataClass.put(LeaWebSocketMessage.EPhase.CAND, LeaWebSocketMessage.CandidateData.class);
+        }
+
+        static String encode(LeaWebSocketMessage.EPhase phase, String sid, Object data) {
+            final Request req = new Request();
+            req.phase = phase.ordinal();
+            req.sid = sid;
+            req.data = g.toJson(data);
+            return g.toJson(req, Request.class);
+        }
+
+        static LeaWebSocketMessage.Response<?> decode(String s) {
+            final ResponseInternal ri = g.fromJson(s, ResponseInternal.class);
+            final LeaWebSocketMessage.EPhase phase = LeaWebSocketMessage.EPhase.values()[ri.phase];
+            final LeaWebSocketMessage.Response<Object> r = new LeaWebSocketMessage.Response<>();
+            r.phase = phase;
+            r.sid = ri.sid;
+            r.success = ri.success;
+            r.message = ri.message;
+            r.version = ri.version;
+            if (phaseToDataClass.containsKey(phase)) {
+                // Candidate batches, which postdate this codec, as it would have had to read them.
+                final Class<?> c = ri.data.startsWith("[") ? LeaWebSocketMessage.CandidateData[].class :
+                    phaseToDataClass.get(phase);
+                r.data = g.fromJson(ri.data, c);
+            }
+            return r;
+        }
+    }
+
+    interface Op {
+        Object run(int i) throws IOException;
+    }
+
+    static class Result {
+        final double bytesPerOp;
+        final double nsPerOp;
+
+        Result(double bytesPerOp, double nsPerOp) {
+            this.bytesPerOp = bytesPerOp;
+            this.nsPerOp = nsPerOp;
+        }
+    }
+
+    // Results are published here so the JIT cannot drop the work.
+    static volatile Object sink;
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static Result measure(int ops, Op op) throws IOException {
+        final long tid = Thread.currentThread().getId();
+        for (int w = 0; w < WARMUP; w++) {
+            for (int i = 0; i < ops; i++) {
+                sink = op.run(i);
+            }
+        }
+        final long b0 = threads.getThreadAllocatedBytes(tid);
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            sink = op.run(i);
+        }
+        final long ns = System.nanoTime() - t0;
+        final long bytes = threads.getThreadAllocatedBytes(tid) - b0;
+        return new Result((double) bytes / ops, (double) ns / ops);
+    }
+
+    static void print(String name, Result gson, Result streaming) {
+        System.out.printf("%-12s gson %8.0f B/op %8.0f ns/op, streaming %8.0f B/op %8.0f ns/op%n", name,
+            gson.bytesPerOp, gson.nsPerOp, streaming.bytesPerOp, streaming.nsPerOp);
+    }
+
+    static LeaWebSocketMessage.CandidateData candidate(int i) {
+        final LeaWebSocketMessage.CandidateData c = new LeaWebSocketMessage.CandidateData();
+        c.candidate = "candidate:" + (842163049 + i) + " 1 udp 2122260223 192.168.1." + (2 + i % 200) + " " +
+            (50000 + i % 10000) + " typ host generation 0 ufrag Xp3z network-id 1 network-cost 10";
+        c.sdpMid = "0";
+        c.sdpMLineIndex = 0;
+        return c;
+    }
+
+    // An offer as large as the fleet's: full codec lists and four simulcast video sections.
+    static String bigSdp() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n");
+        sb.append("a=group:BUNDLE 0 1 2 3 4\r\na=extmap-allow-mixed\r\na=msid-semantic: WMS ls\r\n");
+        sb.append("m=audio 9 UDP/TLS/RTP/SAVPF 111 63 103 104 9 0 8 106 105 13 110 112 113 126\r\n");
+        appendTransport(sb, 0);
+        sb.append("a=rtpmap:111 opus/48000/2\r\na=rtcp-fb:111 transport-cc\r\n");
+        sb.append("a=fmtp:111 minptime=10;useinbandfec=1;usedtx=1\r\n");
+        for (String c : new String[] {"63 red/48000/2", "103 ISAC/16000", "104 ISAC/32000", "9 G722/8000",
+                "0 PCMU/8000", "8 PCMA/8000", "106 CN/32000", "105 CN/16000", "13 CN/8000",
+                "110 telephone-event/48000", "112 telephone-event/32000", "113 telephone-event/16000",
+                "126 telephone-event/8000"}) {
+            sb.append("a=rtpmap:").append(c).append("\r\n");
+        }
+        sb.append("a=ssrc:1001 cname:lgcname\r\na=ssrc:1001 msid:ls a0\r\n");
+        for (int m = 1; m <= 4; m++) {
+            sb.append("m=video 9 UDP/TLS/RTP/SAVPF");
+            for (int pt = 96; pt <= 127; pt++) {
+                sb.append(' ').append(pt);
+            }
+            sb.append("\r\n");
+            appendTransport(sb, m);
+            for (int pt = 96; pt <= 126; pt += 2) {
+                sb.append("a=rtpmap:").append(pt).append(pt % 6 == 0 ? " VP8" : pt % 6 == 2 ? " VP9" : " H264")
+                    .append("/90000\r\n");
+                for (String fb : new String[] {"goog-remb", "transport-cc", "ccm fir", "nack", "nack pli"}) {
+                    sb.append("a=rtcp-fb:").append(pt).append(' ').append(fb).append("\r\n");
+                }
+                sb.append("a=fmtp:").append(pt)
+                    .append(" level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n");
+                sb.append("a=rtpmap:").append(pt + 1).append(" rtx/90000\r\na=fmtp:").append(pt + 1)
+                    .append(" apt=").append(pt).append("\r\n");
+            }
+            for (String rid : new String[] {"q", "h", "f"}) {
+                sb.append("a=rid:").append(rid).append(" send\r\n");
+            }
+            sb.append("a=simulcast:send q;h;f\r\n");
+            sb.append("a=ssrc-group:SIM");
+            for (int l = 0; l < 3; l++) {
+                sb.append(' ').append(m * 1000 + l * 2);
+            }
+            sb.append("\r\n");
+            for (int l = 0; l < 6; l++) {
+                sb.append("a=ssrc:").append(m * 1000 + l).append(" cname:lgcname\r\n");
+                sb.append("a=ssrc:").append(m * 1000 + l).append(" msid:ls v").append(m).append("\r\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendTransport(StringBuilder sb, int mid) {
+        sb.append("c=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\na=ice-ufrag:Xp3z\r\n");
+        sb.append("a=ice-pwd:l1bM3vEHa5cO0H7kQdYnH0NT\r\na=ice-options:trickle renomination\r\n");
+        sb.append("a=fingerprint:sha-256 1B:9D:2A:4E:60:7C:DC:95:4F:8A:0E:1C:4C:55:8D:23:")
+            .append("7A:3E:19:C2:96:4A:88:0F:B4:6D:11:E8:25:F6:03:C1\r\n");
+        sb.append("a=setup:actpass\r\na=mid:").append(mid).append("\r\na=sendrecv\r\na=rtcp-mux\r\n");
+        for (int i = 1; i <= 8; i++) {
+            sb.append("a=extmap:").append(i).append(" urn:ietf:params:rtp-hdrext:ext").append(i).append("\r\n");
+        }
+    }
+
+    static LeaWebSocketMessage.SdpData sdp(String type, String sdp) {
+        final LeaWebSocketMessage.SdpData d = new LeaWebSocketMessage.SdpData();
+        d.type = type;
+        d.sdp = sdp;
+        d.version = LeaWebSocketMessage.WIRE_VERSION;
+        return d;
+    }
+
+    // What the server sends the partner for a request: the request's data, relayed as is.
+    static String relayed(LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data) throws IOException {
+        final LeaWebSocketMessage.Request req = LeaWebSocketMessage.decodeRequest(
+            LeaWebSocketMessage.encode(phase, "a/b", data));
+        return LeaWebSocketMessage.encodeResponse(phase, "b/a", true, "", req.data);
+    }
+
+    private static void compare(String name, LeaWebSocketMessage.EPhase phase, LeaWebSocketMessage.Data data,
+            int ops) throws IOException {
+        final Result gsonEnc = measure(ops, i -> GsonCodec.encode(phase, "a/b", data));
+        final Result enc = measure(ops, i -> LeaWebSocketMessage.encode(phase, "a/b", data));
+        print(name + " encode", gsonEnc, enc);
+        assertTrue(enc.bytesPerOp < gsonEnc.bytesPerOp);
+
+        final String msg = relayed(phase, data);
+        final Result gsonDec = measure(ops, i -> GsonCodec.decode(msg));
+        final Result dec = measure(ops, i -> LeaWebSocketMessage.decode(msg));
+        print(name + " decode", gsonDec, dec);
+        // Both still build the nested data string and the payload's own strings, which is
+        // most of what decoding allocates; the saving there is the second parse.
+        assertTrue(dec.bytesPerOp <= gsonDec.bytesPerOp);
+    }
+
+    @Test
+    public void candidate() throws IOException {
+        final LeaWebSocketMessage.CandidateData c = candidate(0);
+        final LeaWebSocketMessage.Response<?> resp = GsonCodec.decode(relayed(LeaWebSocketMessage.EPhase.CAND, c));
+        assertEquals(c.candidate, ((LeaWebSocketMessage.CandidateData) resp.data).candidate);
+        compare("CAND", LeaWebSocketMessage.EPhase.CAND, c, OPS);
+    }
+
+    @Test
+    public void largeOffer() throws IOException {
+        final String s = bigSdp();
+        assertTrue(s.length() > 20000);
+        final LeaWebSocketMessage.SdpData d = sdp("offer", s);
+        final LeaWebSocketMessage.Response<?> resp = GsonCodec.decode(relayed(LeaWebSocketMessage.EPhase.OFFER, d));
+        assertEquals(s, ((LeaWebSocketMessage.SdpData) resp.data).sdp);
+        compare("OFFER " + s.length() / 1024 + "KB", LeaWebSocketMessage.EPhase.OFFER, d, OPS / 20);
+    }
+
+    // What a client receives over a call: 70% CAND in batches of 4, 15% OFFER and 15% ANS,
+    // shuffled. The baseline resolves the phase through values() and the payload class
+    // through a map and reflection; the codec through its tables and streaming readers.
+    @Test
+    public void realisticMix() throws IOException {
+        final String s = bigSdp();
+        final List<String> msgs = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            final LeaWebSocketMessage.CandidateBatchData b = new LeaWebSocketMessage.CandidateBatchData();
+            b.candidates = new LeaWebSocketMessage.CandidateData[4];
+            for (int j = 0; j < b.candidates.length; j++) {
+                b.candidates[j] = candidate(i * 4 + j);
+            }
+            msgs.add(relayed(LeaWebSocketMessage.EPhase.CAND, b));
+        }
+        for (int i = 0; i < 15; i++) {
+            msgs.add(relayed(LeaWebSocketMessage.EPhase.OFFER, sdp("offer", s)));
+            msgs.add(relayed(LeaWebSocketMessage.EPhase.ANS, sdp("answer", s)));
+        }
+        Collections.shuffle(msgs, new Random(1));
+        final String[] mix = msgs.toArray(new String[0]);
+        for (String m : mix) {
+            assertEquals(GsonCodec.decode(m).phase, LeaWebSocketMessage.decode(m).phase);
+        }
+
+        final Result gson = measure(OPS / 10, i -> GsonCodec.decode(mix[i % mix.length]));
+        final Result streaming = measure(OPS / 10, i -> LeaWebSocketMessage.decode(mix[i % mix.length]));
+        print("mix decode", gson, streaming);
+        assertTrue(streaming.bytesPerOp <= gson.bytesPerOp);
+    }
+}
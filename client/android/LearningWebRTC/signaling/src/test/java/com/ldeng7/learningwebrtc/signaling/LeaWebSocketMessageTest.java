@@ -0,0 +1,152 @@
+package com.ldeng7.learningwebrtc.signaling;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LeaWebSocketMessageTest {
+    // The server relays a request's data untouched into the partner's response.
+    private static LeaWebSocketMessage.Response<?> relay(LeaWebSocketMessage.EPhase phase,
+            LeaWebSocketMessage.Data data) throws IOException {
+        final LeaWebSocketMessage.Request req = LeaWebSocketMessage.decodeRequest(
+            LeaWebSocketMessage.encode(phase, "a/b", data));
+        assertEquals(phase, req.phase);
+        assertEquals("a/b", req.sid);
+        return LeaWebSocketMessage.decode(
+            LeaWebSocketMessage.encodeResponse(req.phase, "b/a", true, "", req.data));
+    }
+
+    private static LeaWebSocketMessage.CandidateData candidate(int i) {
+        final LeaWebSocketMessage.CandidateData c = new LeaWebSocketMessage.CandidateData();
+        c.candidate = "candidate:" + i + " 1 udp 2122260223 10.0.0.1 " + (50000 + i) + " typ host";
+        c.sdpMid = String.valueOf(i);
+        c.sdpMLineIndex = i;
+        return c;
+    }
+
+    @Test
+    public void sdpRoundTrip() throws IOException {
+        final LeaWebSocketMessage.SdpData d = new LeaWebSocketMessage.SdpData();
+        d.type = "offer";
+        d.sdp = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=\"quoted\" \\ \u00e9\r\n";
+        d.version = LeaWebSocketMessage.WIRE_VERSION;
+        final LeaWebSocketMessage.Response<?> resp = relay(LeaWebSocketMessage.EPhase.OFFER, d);
+        assertEquals("b/a", resp.sid);
+        assertTrue(resp.success);
+        final LeaWebSocketMessage.SdpData got = (LeaWebSocketMessage.SdpData) resp.data;
+        assertEquals(d.type, got.type);
+        assertEquals(d.sdp, got.sdp);
+        assertEquals(d.version, got.version);
+    }
+
+    @Test
+    public void sdpWithoutVersionIsLegacy() throws IOException {
+        final LeaWebSocketMessage.Response<?> resp = LeaWebSocketMessage.decode(
+            "{\"phase\":3,\"success\":true,\"message\":\"\",\"data\":\"{\\\"type\\\":\\\"answer\\\",\\\"sdp\\\":\\\"v=0\\\"}\"}");
+        assertEquals(LeaWebSocketMessage.EPhase.ANS, resp.phase);
+        assertEquals(LeaWebSocketMessage.WIRE_VERSION_LEGACY, ((LeaWebSocketMessage.SdpData) resp.data).version);
+    }
+
+    @Test
+    public void candidateRoundTrip() throws IOException {
+        final LeaWebSocketMessage.Response<?> resp = relay(LeaWebSocketMessage.EPhase.CAND, candidate(3));
+        final LeaWebSocketMessage.CandidateData[] got = (LeaWebSocketMessage.CandidateData[]) resp.data;
+        assertEquals(1, got.length);
+        assertEquals(candidate(3).candidate, got[0].candidate);
+        assertEquals("3", got[0].sdpMid);
+        assertEquals(3, got[0].sdpMLineIndex);
+    }
+
+    @Test
+    public void candidateBatchRoundTrip() throws IOException {
+        final LeaWebSocketMessage.CandidateBatchData b = new LeaWebSocketMessage.CandidateBatchData();
+        b.candidates = new LeaWebSocketMessage.CandidateData[] {candidate(0), candidate(1), candidate(2)};
+        final LeaWebSocketMessage.Response<?> resp = relay(LeaWebSocketMessage.EPhase.CAND, b);
+        final LeaWebSocketMessage.CandidateData[] got = (LeaWebSocketMessage.CandidateData[]) resp.data;
+        assertEquals(3, got.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(b.candidates[i].candidate, got[i].candidate);
+            assertEquals(i, got[i].sdpMLineIndex);
+        }
+    }
+
+    @Test
+    public void dialRoundTrip() throws IOException {
+        final LeaWebSocketMessage.DialRequestData d = new LeaWebSocketMessage.DialRequestData();
+        d.localUid = "alice";
+        d.remoteUid = "bob";
+        d.version = LeaWebSocketMessage.WIRE_VERSION;
+        final LeaWebSocketMessage.Request req = LeaWebSocketMessage.decodeRequest(
+            LeaWebSocketMessage.encode(LeaWebSocketMessage.EPhase.DIAL, "alice/bob", d));
+        final LeaWebSocketMessage.DialRequestData got = LeaWebSocketMessage.decodeDialRequest(req.data);
+        assertEquals("alice", got.localUid);
+        assertEquals("bob", got.remoteUid);
+        assertEquals(LeaWebSocketMessage.WIRE_VERSION, got.version);
+
+        final LeaWebSocketMessage.Response<?> ack = LeaWebSocketMessage.decode(
+            LeaWebSocketMessage.encodeResponse(LeaWebSocketMessage.EPhase.DIAL, "alice/bob", true, "", "true",
+                LeaWebSocketMessage.WIRE_VERSION));
+        assertEquals(Boolean.TRUE, ack.data);
+        assertEquals(LeaWebSocketMessage.WIRE_VERSION, ack.version);
+    }
+
+    @Test
+    public void legacyDialHasNoVersion() throws IOException {
+        assertEquals(0, LeaWebSocketMessage.decodeDialRequest("{\"Uid\":\"a\",\"Ruid\":\"b\"}").version);
+        final String ack = LeaWebSocketMessage.encodeResponse(LeaWebSocketMessage.EPhase.DIAL, "a/b", true, "", "false");
+        assertFalse(ack.contains("version"));
+        assertEquals(0, LeaWebSocketMessage.decode(ack).version);
+    }
+
+    @Test
+    public void stopCarriesNoData() throws IOException {
+        final LeaWebSocketMessage.Response<?> resp = relay(LeaWebSocketMessage.EPhase.STOP, null);
+        assertEquals(LeaWebSocketMessage.EPhase.STOP, resp.phase);
+        assertNull(resp.data);
+    }
+
+    @Test
+    public void rejectionKeepsMessage() throws IOException {
+        final LeaWebSocketMessage.Response<?> resp = LeaWebSocketMessage.decode(
+            LeaWebSocketMessage.encodeResponse(LeaWebSocketMessage.EPhase.OFFER, "", false, "incorrect phase", null));
+        assertFalse(resp.success);
+        assertNull(resp.sid);
+        assertEquals("incorrect phase", resp.message);
+        assertNull(resp.data);
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        final LeaWebSocketMessage.Response<?> resp = LeaWebSocketMessage.decode(
+            "{\"extra\":{\"a\":[1,2]},\"phase\":5,\"success\":true,\"message\":\"\",\"data\":\"null\"}");
+        assertEquals(LeaWebSocketMessage.EPhase.STOP, resp.phase);
+    }
+
+    private static void assertRejected(String msg, boolean request) {
+        try {
+            if (request) {
+                LeaWebSocketMessage.decodeRequest(msg);
+            } else {
+                LeaWebSocketMessage.decode(msg);
+            }
+            fail("decoded " + msg);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unknownPhaseIsRejected() {
+        assertRejected("{\"phase\":" + LeaWebSocketMessage.PHASE_COUNT + ",\"success\":true,\"data\":\"null\"}", false);
+        assertRejected("{\"phase\":-1,\"success\":true,\"data\":\"null\"}", false);
+        assertRejected("{\"success\":true,\"data\":\"null\"}", false);
+        assertRejected("{\"phase\":99,\"sid\":\"a/b\",\"data\":\"null\"}", true);
+        assertRejected("{\"sid\":\"a/b\",\"data\":\"null\"}", true);
+    }
+}
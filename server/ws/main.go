@@ -18,31 +18,83 @@ const (
 	PHASE_STOP
 )
 
+// How long a session whose connection dropped abnormally is kept for the client to
+// reconnect and re-DIAL before the partner is told to stop. A var so tests can shorten it.
+var RESUME_GRACE = 15 * time.Second
+
+// Messages a connection may have waiting to be written before it is dropped as stuck.
+const SEND_QUEUE_SIZE = 256
+
 type Req struct {
 	Phase int
+	Sid   string
 	Data  string
 }
 
 type DialReqData struct {
-	Uid  string
-	Ruid string
+	Uid     string
+	Ruid    string
+	Version int
+	// Set when re-DIALing after a reconnect to re-attach a session already underway.
+	Resume bool
 }
 
 type Resp struct {
 	Phase   int    `json:"phase"`
+	Sid     string `json:"sid,omitempty"`
 	Success bool   `json:"success"`
 	Message string `json:"message"`
 	Data    string `json:"data"`
+	// On a DIAL ack, the wire version the partner announced in its DIAL.
+	Version int `json:"version,omitempty"`
+}
+
+// A client connection. Its messages are written by its own goroutine, so a slow peer
+// backs up only its own queue and never holds h.mu.
+type Peer struct {
+	ws  *websocket.Conn
+	out chan *Resp
+	// Set under h.mu once out is closed.
+	closed bool
+}
+
+func newPeer(ws *websocket.Conn) *Peer {
+	p := &Peer{ws: ws, out: make(chan *Resp, SEND_QUEUE_SIZE)}
+	go p.writeLoop()
+	return p
+}
+
+func (p *Peer) writeLoop() {
+	for resp := range p.out {
+		println("send phase", resp.Phase)
+		if err := p.ws.WriteJSON(resp); err != nil {
+			println(err.Error())
+		}
+	}
+}
+
+type Binding struct {
+	conn    *Peer
+	sid     string
+	timer   *time.Timer
+	version int
+	// The partner hung up while conn was away; the STOP is sent on resume.
+	stopped bool
+}
+
+type Session struct {
+	u, p *User
 }
 
 type Handler struct {
-	userConns map[*User]*websocket.Conn
+	mu        sync.Mutex
+	userConns map[*User]*Binding
 	upgrader  *websocket.Upgrader
 }
 
 func NewHandler() *Handler {
 	return &Handler{
-		userConns: map[*User]*websocket.Conn{},
+		userConns: map[*User]*Binding{},
 		upgrader: &websocket.Upgrader{
 			CheckOrigin:     func(_ *http.Request) bool { return true },
 			ReadBufferSize:  16 * 1024,
@@ -51,103 +103,225 @@ func NewHandler() *Handler {
 	}
 }
 
-func send(conn *websocket.Conn, resp *Resp) {
-	println("send phase", resp.Phase)
-	if err := conn.WriteJSON(resp); err != nil {
-		println(err.Error())
+// Called with h.mu held; never blocks. A peer whose queue is full is disconnected, which
+// detaches its sessions as for any other dropped connection.
+func send(conn *Peer, resp *Resp) {
+	if conn.closed {
+		return
+	}
+	select {
+	case conn.out <- resp:
+	default:
+		println("send queue full")
+		conn.ws.Close()
 	}
 }
 
-func sendJson(conn *websocket.Conn, phase int, success bool, msg string, json string) {
-	resp := Resp{phase, success, msg, json}
+func sendJson(conn *Peer, phase int, sid string, success bool, msg string, json string) {
+	resp := Resp{Phase: phase, Sid: sid, Success: success, Message: msg, Data: json}
 	send(conn, &resp)
 }
 
-func sendData(conn *websocket.Conn, phase int, success bool, msg string, data interface{}) {
+func sendData(conn *Peer, phase int, sid string, success bool, msg string, data interface{}) {
 	json, _ := json.Marshal(data)
-	resp := Resp{phase, success, msg, string(json)}
+	resp := Resp{Phase: phase, Sid: sid, Success: success, Message: msg, Data: string(json)}
+	send(conn, &resp)
+}
+
+// Tells a paired user its role and the version its partner dialed with, so both sides
+// know before any SDP whether the other accepts batched candidates.
+func sendDialAck(conn *Peer, sid string, offerer bool, version int) {
+	json, _ := json.Marshal(offerer)
+	resp := Resp{Phase: PHASE_DIAL, Sid: sid, Success: true, Data: string(json), Version: version}
 	send(conn, &resp)
 }
 
-func (h *Handler) closeUser(uPtr, pPtr **User) {
-	u, p := *uPtr, *pPtr
+func isDecodeError(err error) bool {
+	switch err.(type) {
+	case *json.SyntaxError, *json.UnmarshalTypeError:
+		return true
+	}
+	return false
+}
+
+func (h *Handler) closeUser(u, p *User) {
 	if nil == u {
 		return
 	}
 
 	users.DeleteUserById(u.Id)
-	if conn := h.userConns[u]; nil != conn {
-		conn.Close()
+	if b := h.userConns[u]; nil != b && nil != b.timer {
+		b.timer.Stop()
 	}
 	delete(h.userConns, u)
 
 	if nil != p {
-		if pConn := h.userConns[p]; nil != pConn {
-			sendData(pConn, PHASE_STOP, true, "", nil)
+		if pb := h.userConns[p]; nil != pb {
+			if nil != pb.conn {
+				sendData(pb.conn, PHASE_STOP, pb.sid, true, "", nil)
+			} else {
+				pb.stopped = true
+			}
+		}
+	}
+}
+
+// Unbinds the sessions still served by conn. A clean close stops them right away;
+// otherwise they are kept for RESUME_GRACE so the client can reconnect.
+func (h *Handler) detach(conn *Peer, sessions map[string]*Session, clean bool) {
+	for _, s := range sessions {
+		u, p := s.u, s.p
+		b := h.userConns[u]
+		if nil == b || b.conn != conn {
+			continue
+		}
+		if clean {
+			h.closeUser(u, p)
+			continue
+		}
+		b.conn = nil
+		b.timer = time.AfterFunc(RESUME_GRACE, func() {
+			h.mu.Lock()
+			defer h.mu.Unlock()
+			if h.userConns[u] == b && nil == b.conn {
+				h.closeUser(u, p)
+			}
+		})
+	}
+}
+
+func (h *Handler) resume(conn *Peer, sessions map[string]*Session, req *Req, u *User, b *Binding) {
+	if nil != b.timer {
+		b.timer.Stop()
+		b.timer = nil
+	}
+	b.conn, b.sid = conn, req.Sid
+	// The partner may be gone, or its id already taken by a new user.
+	p := users[u.PartnerId]
+	if b.stopped || nil == p || p.PartnerId != u.Id {
+		h.closeUser(u, nil)
+		sendData(conn, PHASE_STOP, req.Sid, true, "", nil)
+		return
+	}
+	sessions[req.Sid] = &Session{u, p}
+	sendData(conn, PHASE_DIAL, req.Sid, true, "resumed", nil)
+}
+
+func (h *Handler) handle(conn *Peer, sessions map[string]*Session, req *Req) {
+	s := sessions[req.Sid]
+	switch req.Phase {
+	case PHASE_DIAL:
+		data := DialReqData{}
+		if err := json.Unmarshal([]byte(req.Data), &data); nil != err {
+			return
+		}
+		u := users.FindOrCreateUserById(data.Uid)
+		if b := h.userConns[u]; nil != b && u.State != USER_STATE_IDLE && data.Ruid == u.PartnerId {
+			// A binding still served by another connection is only taken over by a client
+			// that knows it lost its socket, not by a second device with the same uid.
+			if nil != b.conn && b.conn != conn && !data.Resume {
+				sendData(conn, req.Phase, req.Sid, false, "uid in use", nil)
+				return
+			}
+			h.resume(conn, sessions, req, u, b)
+			return
+		}
+		if data.Resume {
+			// Torn down while the client was away, e.g. past RESUME_GRACE; waiting as a
+			// fresh dialer would never end.
+			if u.State == USER_STATE_IDLE {
+				users.DeleteUserById(u.Id)
+			}
+			sendData(conn, PHASE_STOP, req.Sid, true, "", nil)
+			return
+		}
+		switch u.State {
+		case USER_STATE_IDLE:
+			p := users.FindOrCreateUserById(data.Ruid)
+			if p.State != USER_STATE_IDLE {
+				sendData(conn, req.Phase, req.Sid, false, "invalid remote uid", nil)
+				return
+			}
+			u.State, p.State = USER_STATE_DIALING, USER_STATE_DIALING
+			u.PartnerId, p.PartnerId = data.Ruid, data.Uid
+			h.userConns[u] = &Binding{conn: conn, sid: req.Sid, version: data.Version}
+			sessions[req.Sid] = &Session{u, p}
+		case USER_STATE_DIALING:
+			if data.Ruid != u.PartnerId {
+				sendData(conn, req.Phase, req.Sid, false, "invalid remote uid", nil)
+				return
+			}
+			p := users.FindOrCreateUserById(data.Ruid)
+			pb := h.userConns[p]
+			if nil == pb || nil == pb.conn {
+				sendData(conn, req.Phase, req.Sid, false, "remote not connected", nil)
+				return
+			}
+			u.State, p.State = USER_STATE_BUSY, USER_STATE_BUSY
+			h.userConns[u] = &Binding{conn: conn, sid: req.Sid, version: data.Version}
+			sessions[req.Sid] = &Session{u, p}
+			sendDialAck(conn, req.Sid, false, pb.version)
+			sendDialAck(pb.conn, pb.sid, true, data.Version)
+		default:
+			sendData(conn, req.Phase, req.Sid, false, "invalid local uid", nil)
+		}
+	case PHASE_OFFER, PHASE_ANSWER, PHASE_CANDIDATE:
+		var pb *Binding
+		if nil != s {
+			pb = h.userConns[s.p]
+		}
+		if nil == pb || nil == pb.conn {
+			sendData(conn, req.Phase, req.Sid, false, "incorrect phase", nil)
+			return
+		}
+		sendJson(pb.conn, req.Phase, pb.sid, true, "", req.Data)
+	case PHASE_STOP:
+		if nil != s {
+			delete(sessions, req.Sid)
+			h.closeUser(s.u, s.p)
 		}
 	}
 }
 
 func (h *Handler) ServeHTTP(w http.ResponseWriter, r *http.Request) {
-	conn, err := h.upgrader.Upgrade(w, r, nil)
+	ws, err := h.upgrader.Upgrade(w, r, nil)
 	if nil != err {
 		println(err.Error())
 		return
 	}
-	var u, p *User
-	defer h.closeUser(&u, &p)
+	conn := newPeer(ws)
+	// One connection may carry several sessions, keyed by the client-chosen sid.
+	sessions := map[string]*Session{}
+	clean := false
+	defer func() {
+		h.mu.Lock()
+		h.detach(conn, sessions, clean)
+		conn.closed = true
+		close(conn.out)
+		h.mu.Unlock()
+		ws.Close()
+	}()
 
 	for {
 		var req Req
-		err := conn.ReadJSON(&req)
+		err := ws.ReadJSON(&req)
 		if nil != err {
 			if _, ok := err.(*websocket.CloseError); ok {
+				clean = websocket.IsCloseError(err, websocket.CloseNormalClosure,
+					websocket.CloseGoingAway, websocket.CloseNoStatusReceived)
 				break
 			}
 			println(err.Error())
-			time.Sleep(time.Second)
+			if !isDecodeError(err) {
+				break
+			}
 			continue
 		}
 
 		println("recv phase", req.Phase)
-		switch req.Phase {
-		case PHASE_DIAL:
-			data := DialReqData{}
-			if err := json.Unmarshal([]byte(req.Data), &data); nil != err {
-				continue
-			}
-			u = users.FindOrCreateUserById(data.Uid)
-			switch u.State {
-			case USER_STATE_IDLE:
-				p = users.FindOrCreateUserById(data.Ruid)
-				if p.State != USER_STATE_IDLE {
-					p = nil
-					sendData(conn, req.Phase, false, "invalid remote uid", nil)
-					continue
-				}
-				u.State, p.State = USER_STATE_DIALING, USER_STATE_DIALING
-				u.PartnerId, p.PartnerId = data.Ruid, data.Uid
-				h.userConns[u] = conn
-			case USER_STATE_DIALING:
-				if data.Ruid != u.PartnerId {
-					sendData(conn, req.Phase, false, "invalid remote uid", nil)
-					continue
-				}
-				p = users.FindOrCreateUserById(data.Ruid)
-				u.State, p.State = USER_STATE_BUSY, USER_STATE_BUSY
-				h.userConns[u] = conn
-				sendData(conn, req.Phase, true, "", false)
-				sendData(h.userConns[p], req.Phase, true, "", true)
-			default:
-				sendData(conn, req.Phase, false, "invalid local uid", nil)
-			}
-		case PHASE_OFFER, PHASE_ANSWER, PHASE_CANDIDATE:
-			if nil == p || nil == h.userConns[p] {
-				sendData(conn, req.Phase, false, "incorrect phase", nil)
-				continue
-			}
-			sendJson(h.userConns[p], req.Phase, true, "", req.Data)
-		}
+		h.mu.Lock()
+		h.handle(conn, sessions, &req)
+		h.mu.Unlock()
 	}
 }
 
@@ -0,0 +1,123 @@
+package main
+
+import (
+	"encoding/json"
+	"net/http/httptest"
+	"strings"
+	"testing"
+	"time"
+
+	"github.com/gorilla/websocket"
+)
+
+type client struct {
+	t    *testing.T
+	conn *websocket.Conn
+	sid  string
+}
+
+func dial(t *testing.T, srv *httptest.Server, uid, ruid string, resume bool) *client {
+	conn, _, err := websocket.DefaultDialer.Dial("ws"+strings.TrimPrefix(srv.URL, "http"), nil)
+	if nil != err {
+		t.Fatal(err)
+	}
+	c := &client{t: t, conn: conn, sid: uid + "/" + ruid}
+	data, _ := json.Marshal(DialReqData{Uid: uid, Ruid: ruid, Version: 2, Resume: resume})
+	c.send(PHASE_DIAL, string(data))
+	return c
+}
+
+func (c *client) send(phase int, data string) {
+	if err := c.conn.WriteJSON(&Req{Phase: phase, Sid: c.sid, Data: data}); nil != err {
+		c.t.Fatal(err)
+	}
+}
+
+func (c *client) recv() *Resp {
+	c.conn.SetReadDeadline(time.Now().Add(5 * time.Second))
+	resp := &Resp{}
+	if err := c.conn.ReadJSON(resp); nil != err {
+		c.t.Fatal(err)
+	}
+	return resp
+}
+
+func (c *client) expect(phase int, success bool, msg string) *Resp {
+	resp := c.recv()
+	if resp.Phase != phase || resp.Success != success || resp.Message != msg {
+		c.t.Fatalf("got phase %d success %v message %q, want phase %d success %v message %q",
+			resp.Phase, resp.Success, resp.Message, phase, success, msg)
+	}
+	return resp
+}
+
+// Drops the socket without a close frame, as a lost network does.
+func (c *client) drop() {
+	c.conn.UnderlyingConn().Close()
+}
+
+func pair(t *testing.T, srv *httptest.Server, a, b string) (*client, *client) {
+	ca := dial(t, srv, a, b, false)
+	cb := dial(t, srv, b, a, false)
+	// Either DIAL may reach the server first; the roles only have to differ.
+	ra := ca.expect(PHASE_DIAL, true, "")
+	rb := cb.expect(PHASE_DIAL, true, "")
+	if ra.Data == rb.Data {
+		t.Fatalf("both got offerer %s", ra.Data)
+	}
+	return ca, cb
+}
+
+func TestResumeWithinGrace(t *testing.T) {
+	srv := httptest.NewServer(NewHandler())
+	defer srv.Close()
+	ca, cb := pair(t, srv, "rw-a", "rw-b")
+	defer cb.conn.Close()
+
+	ca.drop()
+	ca = dial(t, srv, "rw-a", "rw-b", true)
+	defer ca.conn.Close()
+	ca.expect(PHASE_DIAL, true, "resumed")
+
+	// Relaying works both ways on the resumed session.
+	ca.send(PHASE_OFFER, `{"type":"offer"}`)
+	if resp := cb.expect(PHASE_OFFER, true, ""); `{"type":"offer"}` != resp.Data {
+		t.Fatalf("relayed %s", resp.Data)
+	}
+	cb.send(PHASE_ANSWER, `{"type":"answer"}`)
+	ca.expect(PHASE_ANSWER, true, "")
+}
+
+func TestResumeAfterGrace(t *testing.T) {
+	grace := RESUME_GRACE
+	RESUME_GRACE = 100 * time.Millisecond
+	defer func() { RESUME_GRACE = grace }()
+	srv := httptest.NewServer(NewHandler())
+	defer srv.Close()
+	ca, cb := pair(t, srv, "ra-a", "ra-b")
+	defer cb.conn.Close()
+
+	ca.drop()
+	cb.expect(PHASE_STOP, true, "")
+
+	// The session is gone, so the resume is answered with STOP rather than left waiting.
+	ca = dial(t, srv, "ra-a", "ra-b", true)
+	defer ca.conn.Close()
+	ca.expect(PHASE_STOP, true, "")
+}
+
+func TestDialDoesNotTakeOverLiveBinding(t *testing.T) {
+	srv := httptest.NewServer(NewHandler())
+	defer srv.Close()
+	ca, cb := pair(t, srv, "to-a", "to-b")
+	defer ca.conn.Close()
+	defer cb.conn.Close()
+
+	other := dial(t, srv, "to-a", "to-b", false)
+	defer other.conn.Close()
+	other.expect(PHASE_DIAL, false, "uid in use")
+
+	// The original connection still carries the call.
+	cb.send(PHASE_OFFER, `{"type":"offer"}`)
+	ca.expect(PHASE_OFFER, true, "")
+}